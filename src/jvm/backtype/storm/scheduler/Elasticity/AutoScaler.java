@@ -0,0 +1,343 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.generated.InvalidTopologyException;
+import backtype.storm.generated.Nimbus;
+import backtype.storm.generated.NotAliveException;
+import backtype.storm.generated.RebalanceOptions;
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.Topologies;
+import backtype.storm.scheduler.TopologyDetails;
+
+/**
+ * Closed loop controller that rebalances topologies by itself when they miss
+ * their service levels, checked once per new StatsSnapshot:
+ * - throughput: tuples per second executed by the output bolts (bolts
+ *   without children), at least elasticity.autoscale.min.throughput; not
+ *   checked while an output bolt has no stats
+ * - latency: complete latency of the slowest spout, at most
+ *   elasticity.autoscale.max.latency.ms
+ * - capacity: capacity of the busiest bolt, at most
+ *   elasticity.autoscale.max.capacity
+ * Throughput and latency are not checked when their level is 0.
+ *
+ * Hysteresis: a topology acts after elasticity.autoscale.breaches snapshots
+ * in a row missing a level, and only counts as recovered once every metric
+ * is inside its level by elasticity.autoscale.band (relative); in between
+ * the count is kept.
+ *
+ * Actions go through Nimbus rebalance, so the executors are placed by the
+ * usual REBALANCING path:
+ * - bolts over capacity with more tasks than executors get executors in
+ *   proportion to their capacity
+ * - otherwise the placement is replanned, unless the last replan did not
+ *   help, in which case nothing is left to try until the topology recovers
+ * - with elasticity.autoscale.min.capacity set, a topology recovered for
+ *   as many snapshots gets fewer executors for the bolts below it
+ * After an action the topology is left alone until its rebalance is over
+ * (TopologyRebalance IDLE) and elasticity.autoscale.cooldown.ms passed, then
+ * the effect is measured against the metrics before it.
+ *
+ * Nimbus holds its submit lock both while scheduling and while starting a
+ * rebalance, so rebalance calls are made from a thread of their own.
+ */
+public class AutoScaler {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(AutoScaler.class);
+
+	/**
+	 * Service level metrics of one topology
+	 */
+	static class Health {
+		double throughput = 0.0;
+		double latencyMs = 0.0;
+		double capacity = 0.0;
+		// bolt -> capacity
+		final Map<String, Double> bolts = new HashMap<String, Double>();
+
+		@Override
+		public String toString() {
+			return String.format("throughput %.1f/s latency %.1fms capacity %.3f", this.throughput,
+					this.latencyMs, this.capacity);
+		}
+	}
+
+	/**
+	 * Controller state of one topology
+	 */
+	static class Control {
+		int breaches = 0;
+		int calm = 0;
+		long statsTime = 0;
+		long actedAt = 0;
+		// shared with the rebalance call thread, which clears before on failure
+		volatile String action = null;
+		// metrics when the last action was taken, until its effect is measured
+		volatile Health before = null;
+		boolean replanFailed = false;
+		volatile boolean pending = false;
+	}
+
+	private final double minThroughput;
+	private final double maxLatencyMs;
+	private final double maxCapacity;
+	private final double minCapacity;
+	private final double band;
+	private final int breaches;
+	private final long cooldownMs;
+	private final int waitSecs;
+
+	// topology id -> controller state
+	private final Map<String, Control> controls = new HashMap<String, Control>();
+	private ExecutorService calls = null;
+
+	public AutoScaler(double minThroughput, double maxLatencyMs, double maxCapacity, double minCapacity,
+			double band, int breaches, long cooldownMs, int waitSecs) {
+		this.minThroughput = minThroughput;
+		this.maxLatencyMs = maxLatencyMs;
+		this.maxCapacity = maxCapacity;
+		this.minCapacity = minCapacity;
+		this.band = band;
+		this.breaches = Math.max(1, breaches);
+		this.cooldownMs = cooldownMs;
+		this.waitSecs = waitSecs;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static AutoScaler fromConf(Map conf) {
+		return new AutoScaler(
+				ElasticityConfig.getDouble(conf, ElasticityConfig.AUTOSCALE_MIN_THROUGHPUT, 0),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.AUTOSCALE_MAX_LATENCY_MS, 0),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.AUTOSCALE_MAX_CAPACITY, 0.8),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.AUTOSCALE_MIN_CAPACITY, 0),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.AUTOSCALE_BAND, 0.1),
+				ElasticityConfig.getInt(conf, ElasticityConfig.AUTOSCALE_BREACHES, 3),
+				ElasticityConfig.getLong(conf, ElasticityConfig.AUTOSCALE_COOLDOWN_MS, 600000),
+				ElasticityConfig.getInt(conf, ElasticityConfig.AUTOSCALE_WAIT_SECS, 10));
+	}
+
+	/**
+	 * Check every topology against the levels and act where needed, once per
+	 * scheduling round
+	 */
+	public void check(Topologies topologies, GlobalState globalState, StatsSnapshot stats, long now) {
+		Set<String> seen = new HashSet<String>();
+		for (TopologyDetails topo : topologies.getTopologies()) {
+			seen.add(topo.getId());
+			Control ctl = this.controls.get(topo.getId());
+			if (ctl == null) {
+				ctl = new Control();
+				this.controls.put(topo.getId(), ctl);
+			}
+			Map<String, Component> comps = globalState.components.get(topo.getId());
+			Map<String, StatsSnapshot.ComponentStat> compStats = stats.getComponents(topo.getId());
+			if (comps == null || compStats.isEmpty() == true || stats.timestamp == ctl.statsTime) {
+				continue;
+			}
+			ctl.statsTime = stats.timestamp;
+			if (ctl.pending == true || now - ctl.actedAt < this.cooldownMs
+					|| globalState.getRebalance(topo.getId()).getPhase() != TopologyRebalance.Phase.IDLE) {
+				continue;
+			}
+
+			Health health = this.measure(comps, compStats);
+			if (ctl.before != null) {
+				boolean helped = this.excess(health) < this.excess(ctl.before);
+				LOG.info("Effect of {} on {}: {} -> {}{}", new Object[] { ctl.action, topo.getId(), ctl.before,
+						health, helped ? "" : ", did not help" });
+				ctl.replanFailed = helped == false && ctl.action.equals("replan");
+				ctl.before = null;
+			}
+			if (this.excess(health) > 0) {
+				ctl.breaches++;
+				ctl.calm = 0;
+			} else if (this.recovered(health) == true) {
+				ctl.breaches = 0;
+				ctl.calm++;
+				ctl.replanFailed = false;
+			}
+			LOG.info("Autoscale {}: {} breaches: {} calm: {}", new Object[] { topo.getId(), health, ctl.breaches,
+					ctl.calm });
+
+			if (ctl.breaches >= this.breaches) {
+				this.scaleUp(topo, comps, health, ctl, now);
+			} else if (this.minCapacity > 0 && ctl.calm >= this.breaches) {
+				this.scaleDown(topo, comps, health, ctl, now);
+			}
+		}
+		this.controls.keySet().retainAll(seen);
+	}
+
+	/**
+	 * Throughput is what the output bolts executed, whether they emit or
+	 * not; it is NaN, i.e. neither a breach nor recovered, while an output
+	 * bolt has no stats
+	 */
+	Health measure(Map<String, Component> comps, Map<String, StatsSnapshot.ComponentStat> compStats) {
+		Health retVal = new Health();
+		for (Component comp : comps.values()) {
+			StatsSnapshot.ComponentStat cs = compStats.get(comp.id);
+			if (cs == null) {
+				if (comp.parents.isEmpty() == false && comp.children.isEmpty() == true) {
+					LOG.info("No stats of output bolt {}, throughput unknown", comp.id);
+					retVal.throughput = Double.NaN;
+				}
+				continue;
+			}
+			if (comp.parents.isEmpty() == true) {
+				retVal.latencyMs = Math.max(retVal.latencyMs, cs.latency.completeLatencyMs);
+				continue;
+			}
+			retVal.bolts.put(comp.id, cs.latency.capacity);
+			retVal.capacity = Math.max(retVal.capacity, cs.latency.capacity);
+			if (comp.children.isEmpty() == true) {
+				for (double rate : cs.getInputRates().values()) {
+					retVal.throughput += rate;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return how far the metrics are outside their levels, relative to
+	 *         them, summed; 0 if all levels are met
+	 */
+	private double excess(Health h) {
+		double retVal = 0.0;
+		if (this.minThroughput > 0 && h.throughput < this.minThroughput) {
+			retVal += (this.minThroughput - h.throughput) / this.minThroughput;
+		}
+		if (this.maxLatencyMs > 0 && h.latencyMs > this.maxLatencyMs) {
+			retVal += (h.latencyMs - this.maxLatencyMs) / this.maxLatencyMs;
+		}
+		if (this.maxCapacity > 0 && h.capacity > this.maxCapacity) {
+			retVal += (h.capacity - this.maxCapacity) / this.maxCapacity;
+		}
+		return retVal;
+	}
+
+	private boolean recovered(Health h) {
+		return (this.minThroughput <= 0 || h.throughput >= this.minThroughput * (1 + this.band))
+				&& (this.maxLatencyMs <= 0 || h.latencyMs <= this.maxLatencyMs * (1 - this.band))
+				&& (this.maxCapacity <= 0 || h.capacity <= this.maxCapacity * (1 - this.band));
+	}
+
+	private void scaleUp(TopologyDetails topo, Map<String, Component> comps, Health health, Control ctl, long now) {
+		double target = this.maxCapacity * (1 - this.band);
+		Map<String, Integer> numExecutors = new HashMap<String, Integer>();
+		for (Map.Entry<String, Double> bolt : health.bolts.entrySet()) {
+			Component comp = comps.get(bolt.getKey());
+			int n = comp.execs.size();
+			int tasks = numTasks(comp);
+			if (bolt.getValue() > this.maxCapacity && n < tasks && target > 0) {
+				int want = (int) Math.ceil(n * bolt.getValue() / target);
+				numExecutors.put(comp.id, Math.min(tasks, Math.max(n + 1, want)));
+			}
+		}
+		if (numExecutors.isEmpty() == false) {
+			this.rebalance(topo, numExecutors, ctl, health, now);
+		} else if (ctl.replanFailed == true) {
+			LOG.info("Autoscale {}: replanning did not help and no bolt can grow, holding", topo.getId());
+			ctl.breaches = 0;
+			ctl.actedAt = now;
+		} else {
+			this.rebalance(topo, null, ctl, health, now);
+		}
+	}
+
+	private void scaleDown(TopologyDetails topo, Map<String, Component> comps, Health health, Control ctl, long now) {
+		double target = this.maxCapacity * (1 - this.band);
+		Map<String, Integer> numExecutors = new HashMap<String, Integer>();
+		for (Map.Entry<String, Double> bolt : health.bolts.entrySet()) {
+			Component comp = comps.get(bolt.getKey());
+			int n = comp.execs.size();
+			if (bolt.getValue() < this.minCapacity && n > 1 && target > 0) {
+				// at most halve at a time, never grow
+				int want = (int) Math.ceil(n * bolt.getValue() / target);
+				numExecutors.put(comp.id, Math.min(n - 1, Math.max((n + 1) / 2, Math.max(1, want))));
+			}
+		}
+		if (numExecutors.isEmpty() == false) {
+			this.rebalance(topo, numExecutors, ctl, health, now);
+		}
+		ctl.calm = 0;
+	}
+
+	private static int numTasks(Component comp) {
+		int retVal = 0;
+		for (ExecutorDetails exec : comp.execs) {
+			retVal += exec.getEndTask() - exec.getStartTask() + 1;
+		}
+		return retVal;
+	}
+
+	/**
+	 * Ask Nimbus to rebalance topo, changing the executors of the given
+	 * components, or only replanning the placement if numExecutors is null
+	 */
+	private void rebalance(TopologyDetails topo, Map<String, Integer> numExecutors, final Control ctl, Health health,
+			long now) {
+		final String name = topo.getName();
+		final String action = numExecutors == null ? "replan" : "parallelism " + numExecutors;
+		final RebalanceOptions options = new RebalanceOptions();
+		options.set_wait_secs(this.waitSecs);
+		if (numExecutors != null) {
+			options.set_num_executors(numExecutors);
+		}
+		LOG.info("Autoscale {}: {}", topo.getId(), action);
+		ctl.action = action;
+		ctl.actedAt = now;
+		ctl.before = health;
+		ctl.breaches = 0;
+		ctl.calm = 0;
+		ctl.pending = true;
+		this.getCalls().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					NimbusClientPool.getInstance().execute(new NimbusClientPool.NimbusCall<Void>() {
+						@Override
+						public Void call(Nimbus.Client client) throws TException, NotAliveException,
+								InvalidTopologyException {
+							client.rebalance(name, options);
+							return null;
+						}
+					}, false);
+				} catch (TException e) {
+					LOG.info("error! cannot rebalance {} ({}): {}", new Object[] { name, action, e.toString() });
+					// nothing to measure
+					ctl.before = null;
+				} finally {
+					ctl.pending = false;
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getCalls() {
+		if (this.calls == null) {
+			this.calls = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "elasticity-autoscaler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return this.calls;
+	}
+}
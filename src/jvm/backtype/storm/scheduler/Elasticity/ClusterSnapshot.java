@@ -0,0 +1,111 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.generated.ClusterSummary;
+import backtype.storm.generated.Nimbus;
+import backtype.storm.generated.SupervisorSummary;
+import backtype.storm.generated.TopologySummary;
+
+/**
+ * ClusterSummary fetched once per scheduling round, with topologies indexed
+ * by id. Status checks, topology lookups and stats collection of a round all
+ * read from the same snapshot instead of each calling getClusterInfo.
+ */
+public class ClusterSnapshot {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ClusterSnapshot.class);
+
+	public final long timestamp;
+	private final boolean valid;
+	private final List<SupervisorSummary> supervisors;
+	private final Map<String, TopologySummary> topologies;
+
+	ClusterSnapshot(ClusterSummary summary) {
+		this.timestamp = System.currentTimeMillis();
+		this.topologies = new HashMap<String, TopologySummary>();
+		if (summary == null) {
+			this.valid = false;
+			this.supervisors = new ArrayList<SupervisorSummary>();
+			return;
+		}
+		this.valid = true;
+		this.supervisors = summary.get_supervisors() == null ? new ArrayList<SupervisorSummary>()
+				: summary.get_supervisors();
+		if (summary.get_topologies() != null) {
+			for (TopologySummary topo : summary.get_topologies()) {
+				this.topologies.put(topo.get_id(), topo);
+			}
+		}
+	}
+
+	/**
+	 * Fetch the cluster summary from Nimbus. Never returns null: if Nimbus
+	 * cannot be reached the returned snapshot is empty and isValid() is false.
+	 */
+	public static ClusterSnapshot take() {
+		try {
+			ClusterSummary clusterSummary = NimbusClientPool.getInstance()
+					.execute(new NimbusClientPool.NimbusCall<ClusterSummary>() {
+						@Override
+						public ClusterSummary call(Nimbus.Client client)
+								throws TException {
+							return client.getClusterInfo();
+						}
+					});
+			return new ClusterSnapshot(clusterSummary);
+		} catch (TException e) {
+			LOG.error("Unable to get cluster summary from Nimbus: {}",
+					e.toString());
+			return new ClusterSnapshot(null);
+		}
+	}
+
+	public boolean isValid() {
+		return this.valid;
+	}
+
+	public TopologySummary getTopology(String topoId) {
+		return this.topologies.get(topoId);
+	}
+
+	public boolean hasTopology(String topoId) {
+		return this.topologies.containsKey(topoId);
+	}
+
+	/**
+	 * @return status of the topology, e.g. ACTIVE or REBALANCING, or null if
+	 *         Nimbus does not know it
+	 */
+	public String getStatus(String topoId) {
+		TopologySummary topo = this.topologies.get(topoId);
+		if (topo == null) {
+			return null;
+		}
+		return topo.get_status();
+	}
+
+	public Collection<TopologySummary> getTopologies() {
+		return Collections.unmodifiableCollection(this.topologies.values());
+	}
+
+	public List<SupervisorSummary> getSupervisors() {
+		return Collections.unmodifiableList(this.supervisors);
+	}
+
+	@Override
+	public String toString() {
+		return "ClusterSnapshot@" + this.timestamp + " topologies: "
+				+ this.topologies.keySet();
+	}
+}
@@ -0,0 +1,227 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storm config keys understood by the elasticity scheduler, and helpers to
+ * read them out of the untyped conf map handed to IScheduler.prepare
+ */
+public class ElasticityConfig {
+
+	public static final String NIMBUS_HOST = "nimbus.host";
+	public static final String NIMBUS_THRIFT_PORT = "nimbus.thrift.port";
+
+	/**
+	 * Nimbus client pool
+	 */
+	public static final String NIMBUS_CLIENT_POOL_SIZE = "elasticity.nimbus.pool.size";
+	public static final String NIMBUS_CLIENT_TIMEOUT_MS = "elasticity.nimbus.timeout.ms";
+	public static final String NIMBUS_CLIENT_VALIDATE_IDLE_MS = "elasticity.nimbus.validate.idle.ms";
+	public static final String NIMBUS_CLIENT_BACKOFF_BASE_MS = "elasticity.nimbus.backoff.base.ms";
+	public static final String NIMBUS_CLIENT_BACKOFF_MAX_MS = "elasticity.nimbus.backoff.max.ms";
+
+	/**
+	 * Background stats collector
+	 */
+	public static final String STATS_POLL_INTERVAL_MS = "elasticity.stats.poll.interval.ms";
+	// list of window lengths in seconds, e.g. [30, 300, 3600]
+	public static final String STATS_RATE_WINDOWS_SECS = "elasticity.stats.rate.windows.secs";
+	public static final String STATS_LOG_DIR = "elasticity.stats.log.dir";
+	// compact binary records instead of text lines, see StatsLogReader
+	public static final String STATS_LOG_BINARY = "elasticity.stats.log.binary";
+	public static final String STATS_LOG_MAX_BYTES = "elasticity.stats.log.max.bytes";
+	public static final String STATS_LOG_MAX_AGE_MS = "elasticity.stats.log.max.age.ms";
+	public static final String STATS_LOG_BACKUPS = "elasticity.stats.log.backups";
+
+	/**
+	 * On disk checkpoint of the scheduler state, default dir is
+	 * <storm.local.dir>/elasticity
+	 */
+	public static final String CHECKPOINT_ENABLED = "elasticity.checkpoint.enabled";
+	public static final String CHECKPOINT_DIR = "elasticity.checkpoint.dir";
+	public static final String CHECKPOINT_STATS_INTERVAL_MS = "elasticity.checkpoint.stats.interval.ms";
+
+	/**
+	 * Hardware profile server in Master
+	 */
+	public static final String MASTER_PORT = "elasticity.master.port";
+	public static final String MASTER_BACKLOG = "elasticity.master.backlog";
+	// connections silent for longer than this are closed
+	public static final String MASTER_READ_TIMEOUT_MS = "elasticity.master.read.timeout.ms";
+	public static final String MASTER_MAX_CONNECTIONS = "elasticity.master.max.connections";
+	// samples kept per node, and how long a silent node is remembered
+	public static final String MASTER_HISTORY_SAMPLES = "elasticity.master.history.samples";
+	public static final String MASTER_HISTORY_RETENTION_MS = "elasticity.master.history.retention.ms";
+
+	/**
+	 * Ranking of target nodes by hardware headroom: window of the p95 load,
+	 * and NIC speed in bytes per second (default 1Gbit)
+	 */
+	public static final String NODE_HEADROOM_WINDOW_MS = "elasticity.node.headroom.window.ms";
+	public static final String NODE_NIC_BYTES_PER_SEC = "elasticity.node.nic.bytes.per.sec";
+
+	/**
+	 * Strategy ranking the components to migrate: "centrality" (number of
+	 * parents and children), "capacity" (measured bolt capacity) or "traffic"
+	 * (measured tuple rates, migrating executors that talk to each other into
+	 * the same worker)
+	 */
+	public static final String STRATEGY = "elasticity.strategy";
+
+	/**
+	 * Rebalancing: executors moved per rebalance (default 3 in threshold
+	 * mode, unlimited in incremental mode), and how long a migrated topology
+	 * is left to settle before it may be rebalanced again
+	 */
+	public static final String REBALANCE_MAX_MIGRATIONS = "elasticity.rebalance.max.migrations";
+	public static final String REBALANCE_STABILIZE_MS = "elasticity.rebalance.stabilize.ms";
+	// "incremental" (IncrementalRebalancer) or "threshold" (the max.migrations
+	// top ranked executors to one new worker)
+	public static final String REBALANCE_MODE = "elasticity.rebalance.mode";
+	// slots migrated executors may go to: "all" (every slot of every empty
+	// node, loaded in proportion to the node's cores and headroom) or
+	// "first" (one slot of the empty node with most headroom)
+	public static final String REBALANCE_TARGETS = "elasticity.rebalance.targets";
+
+	/**
+	 * IncrementalRebalancer objective: weights of the load imbalance and of
+	 * the traffic crossing workers, cost of traffic between workers of one
+	 * node relative to traffic between nodes, cost of moving one executor,
+	 * and the least gain a move must bring
+	 */
+	public static final String REBALANCE_LOAD_WEIGHT = "elasticity.rebalance.load.weight";
+	public static final String REBALANCE_NETWORK_WEIGHT = "elasticity.rebalance.network.weight";
+	public static final String REBALANCE_INTRA_NODE_COST = "elasticity.rebalance.intra.node.cost";
+	public static final String REBALANCE_MOVE_COST = "elasticity.rebalance.move.cost";
+	public static final String REBALANCE_MIN_GAIN = "elasticity.rebalance.min.gain";
+
+	/**
+	 * Placement of topologies that have no assignment yet: "even" (storm's
+	 * EvenScheduler) or "partition" (GraphPartitioner, executors that talk to
+	 * each other share workers), and how far above its fair share of the load
+	 * a slot or node may be filled
+	 */
+	public static final String PLACEMENT = "elasticity.placement";
+	public static final String PLACEMENT_IMBALANCE = "elasticity.placement.imbalance";
+
+	/**
+	 * Scale in, see ScaleInPlanner: a node is idle below the cpu percent and
+	 * tuples per second, and drained once idle for window.ms; other nodes are
+	 * filled up to max.cpu.percent, and min.nodes are always kept. Unless
+	 * apply is set the plan is only logged and published, see
+	 * GlobalStateSnapshot.getReleasableNodes
+	 */
+	public static final String SCALEIN_ENABLED = "elasticity.scalein.enabled";
+	public static final String SCALEIN_CPU_PERCENT = "elasticity.scalein.cpu.percent";
+	public static final String SCALEIN_TUPLES_PER_SEC = "elasticity.scalein.tuples.per.sec";
+	public static final String SCALEIN_WINDOW_MS = "elasticity.scalein.window.ms";
+	public static final String SCALEIN_MAX_CPU_PERCENT = "elasticity.scalein.max.cpu.percent";
+	public static final String SCALEIN_MIN_NODES = "elasticity.scalein.min.nodes";
+	public static final String SCALEIN_APPLY = "elasticity.scalein.apply";
+
+	/**
+	 * Autoscaling, see AutoScaler: service levels (0 is not checked), the
+	 * relative band a metric must be back inside to count as recovered,
+	 * snapshots in a row missing a level before acting, the least time
+	 * between actions, and the wait_secs of the rebalances it starts.
+	 * With min.capacity, bolts below it lose executors
+	 */
+	public static final String AUTOSCALE_ENABLED = "elasticity.autoscale.enabled";
+	public static final String AUTOSCALE_MIN_THROUGHPUT = "elasticity.autoscale.min.throughput";
+	public static final String AUTOSCALE_MAX_LATENCY_MS = "elasticity.autoscale.max.latency.ms";
+	public static final String AUTOSCALE_MAX_CAPACITY = "elasticity.autoscale.max.capacity";
+	public static final String AUTOSCALE_MIN_CAPACITY = "elasticity.autoscale.min.capacity";
+	public static final String AUTOSCALE_BAND = "elasticity.autoscale.band";
+	public static final String AUTOSCALE_BREACHES = "elasticity.autoscale.breaches";
+	public static final String AUTOSCALE_COOLDOWN_MS = "elasticity.autoscale.cooldown.ms";
+	public static final String AUTOSCALE_WAIT_SECS = "elasticity.autoscale.wait.secs";
+
+	@SuppressWarnings("rawtypes")
+	public static String getString(Map conf, String key, String defaultValue) {
+		if (conf == null || conf.get(key) == null) {
+			return defaultValue;
+		}
+		return conf.get(key).toString();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static int getInt(Map conf, String key, int defaultValue) {
+		return (int) getLong(conf, key, defaultValue);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static long getLong(Map conf, String key, long defaultValue) {
+		if (conf == null || conf.get(key) == null) {
+			return defaultValue;
+		}
+		Object val = conf.get(key);
+		if (val instanceof Number) {
+			return ((Number) val).longValue();
+		}
+		try {
+			return Long.parseLong(val.toString().trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static double getDouble(Map conf, String key, double defaultValue) {
+		if (conf == null || conf.get(key) == null) {
+			return defaultValue;
+		}
+		Object val = conf.get(key);
+		if (val instanceof Number) {
+			return ((Number) val).doubleValue();
+		}
+		try {
+			return Double.parseDouble(val.toString().trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Read a list of numbers, given either as a yaml list or as a comma
+	 * separated string
+	 */
+	@SuppressWarnings("rawtypes")
+	public static long[] getLongArray(Map conf, String key, long[] defaultValue) {
+		if (conf == null || conf.get(key) == null) {
+			return defaultValue;
+		}
+		Object val = conf.get(key);
+		Object[] items;
+		if (val instanceof List) {
+			items = ((List) val).toArray();
+		} else {
+			items = val.toString().split(",");
+		}
+		long[] retVal = new long[items.length];
+		try {
+			for (int i = 0; i < items.length; i++) {
+				if (items[i] instanceof Number) {
+					retVal[i] = ((Number) items[i]).longValue();
+				} else {
+					retVal[i] = Long.parseLong(items[i].toString().trim());
+				}
+			}
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+		return retVal;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static boolean getBoolean(Map conf, String key, boolean defaultValue) {
+		if (conf == null || conf.get(key) == null) {
+			return defaultValue;
+		}
+		Object val = conf.get(key);
+		if (val instanceof Boolean) {
+			return ((Boolean) val).booleanValue();
+		}
+		return Boolean.parseBoolean(val.toString().trim());
+	}
+}
@@ -1,8 +1,14 @@
 package backtype.storm.scheduler.Elasticity;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import org.slf4j.Logger;
@@ -22,92 +28,89 @@ public class ElasticityScheduler implements IScheduler {
 			.getLogger(ElasticityScheduler.class);
 	@SuppressWarnings("rawtypes")
 	private Map _conf;
+	private ScaleInPlanner _scaleIn;
+	private AutoScaler _autoScaler;
 
 	@Override
 	public void prepare(@SuppressWarnings("rawtypes") Map conf) {
 		_conf = conf;
+		_scaleIn = ScaleInPlanner.fromConf(conf);
+		_autoScaler = AutoScaler.fromConf(conf);
+		NimbusClientPool.configure(conf);
+		SchedulerCheckpoint.configure(conf).loadGlobalState(GlobalState.getInstance());
+		StatsCollector.start(conf, "ElasticityScheduler");
 	}
 
 	@Override
 	public void schedule(Topologies topologies, Cluster cluster) {
 		LOG.info("\n\n\nRerunning ElasticityScheduler...");
 
+		/**
+		 * One cluster summary for the whole round
+		 */
+		ClusterSnapshot snapshot = ClusterSnapshot.take();
+
 		/**
 		 * Get Global info
 		 */
 		GlobalState globalState = GlobalState.getInstance();
-		globalState.updateInfo(cluster, topologies);
+		globalState.updateInfo(cluster, topologies, snapshot);
 
 		LOG.info("Global State:\n{}", globalState);
 
 		/**
-		 * Get stats
+		 * Get stats, polled in the background by StatsCollector
 		 */
-		// GetStats stats = Stats.getInstance("ElasticityScheduler");
-		// stats.getStatistics
+		StatsCollector collector = StatsCollector.getInstance();
+		if (collector == null) {
+			LOG.info("error! stats collector is not running, scheduling without stats");
+		}
+		StatsSnapshot stats = collector == null ? StatsSnapshot.EMPTY : collector.getLatest();
+		LOG.info("Stats ({}ms old): {}", stats.getAge(), stats);
 
 		/**
 		 * Start hardware monitoring server
 		 */
-		Master server = Master.getInstance();
+		Master server = Master.getInstance(_conf);
 
 		/**
 		 * Start Scheduling
 		 */
+		long now = System.currentTimeMillis();
+		long stabilizeMs = ElasticityConfig.getLong(_conf, ElasticityConfig.REBALANCE_STABILIZE_MS, 60000);
+		Map<String, TopologyDetails> evenTopologies = new HashMap<String, TopologyDetails>();
 		for (TopologyDetails topo : topologies.getTopologies()) {
-			String status = HelperFuncs.getStatus(topo.getId());
-			LOG.info("status: {}", status);
-			if (status.equals("REBALANCING")) {
-				if (globalState.isBalanced == false) {
-					LOG.info("Rebalancing...{}=={}", cluster.getUnassignedExecutors(topo).size(), topo
-							.getExecutors().size());
-					if (cluster.getUnassignedExecutors(topo).size() == topo
-							.getExecutors().size()) {
-						LOG.info("Making migration assignments...");
-						
-						TreeMap<Component, Integer> priorityQueue = Strategies.centralityStrategy(globalState.components.get(topo.getId()));
-						
-						LOG.info("priorityQueue: {}", priorityQueue);
-						
-						List<Node> newNodes = globalState.getNewNode();
-						
-						if(newNodes.size()<=0) {
-							LOG.error("No new Nodes!");
-							break;
-						}
-						
-						Map<WorkerSlot, List<ExecutorDetails>> schedMap = globalState.schedState.get(topo.getId());
-						
-						Node targetNode = newNodes.get(0);
-						WorkerSlot target_ws = targetNode.slots.get(0);
-						LOG.info("target location: {}:{}", targetNode.hostname, target_ws.getPort());
-						
-						int THRESHOLD = 3;
-						List<ExecutorDetails> migratedTasks = new ArrayList<ExecutorDetails>();
-						for (Component comp : priorityQueue.keySet()) {
-							if(migratedTasks.size()>=THRESHOLD) {
-								break;
-							}
-							for(ExecutorDetails exec : comp.execs) {
-								if(migratedTasks.size()>=THRESHOLD) {
-									break;
-								}
-								globalState.migrateTask(exec, target_ws, topo);
-								migratedTasks.add(exec);
-							}
-						}
-						
-						LOG.info("Tasks migrated: {}", migratedTasks);
-						for(Map.Entry<WorkerSlot, List<ExecutorDetails>> sched : schedMap.entrySet()) {
-							cluster.assign(sched.getKey(), topo.getId(), sched.getValue());
-							LOG.info("Assigning {}=>{}",sched.getKey(), sched.getValue());
-						}
-
-						globalState.isBalanced = true;
-					}
+			String status = HelperFuncs.getStatus(snapshot, topo.getId());
+			TopologyRebalance rebalance = globalState.getRebalance(topo.getId());
+			TopologyRebalance.Phase phase = rebalance.update("REBALANCING".equals(status), now, stabilizeMs);
+			LOG.info("status: {} phase: {}", status, phase);
+			if (phase == TopologyRebalance.Phase.PLANNED) {
+				LOG.info("Rebalancing...{}=={}", cluster.getUnassignedExecutors(topo).size(), topo
+						.getExecutors().size());
+				if (cluster.getUnassignedExecutors(topo).size() == topo
+						.getExecutors().size()
+						&& this.migrate(topo, globalState, stats, cluster, rebalance, now) == false) {
+					evenTopologies.put(topo.getId(), topo);
 				}
-
 			} else {
+				evenTopologies.put(topo.getId(), topo);
+			}
+		}
+
+		if (ElasticityConfig.getString(_conf, ElasticityConfig.PLACEMENT, "even").equals("partition")) {
+			Iterator<TopologyDetails> it = evenTopologies.values().iterator();
+			while (it.hasNext()) {
+				TopologyDetails topo = it.next();
+				if (cluster.getAssignmentById(topo.getId()) == null && cluster.needsScheduling(topo) == true
+						&& this.partition(topo, globalState, stats, cluster) == true) {
+					it.remove();
+				}
+			}
+		}
+
+		if (evenTopologies.isEmpty() == false) {
+			Topologies even = new Topologies(evenTopologies);
+			for (TopologyDetails topo : even.getTopologies()) {
 				LOG.info("ID: {} NAME: {}", topo.getId(), topo.getName());
 				LOG.info("Unassigned Executors for {}: ", topo.getName());
 
@@ -116,18 +119,331 @@ public class ElasticityScheduler implements IScheduler {
 						.entrySet()) {
 					LOG.info("{} -> {}", k.getKey(), k.getValue());
 				}
+			}
 
-				LOG.info("running EvenScheduler now...");
-				new backtype.storm.scheduler.EvenScheduler().schedule(
-						topologies, cluster);
+			LOG.info("running EvenScheduler now...");
+			new backtype.storm.scheduler.EvenScheduler().schedule(
+					even, cluster);
+		}
 
-				globalState.storeState(cluster, topologies);
-				globalState.isBalanced = false;
-			}
+		if (ElasticityConfig.getBoolean(_conf, ElasticityConfig.SCALEIN_ENABLED, false) == true) {
+			this.scaleIn(topologies, globalState, stats, cluster, now);
+		}
+		if (ElasticityConfig.getBoolean(_conf, ElasticityConfig.AUTOSCALE_ENABLED, false) == true) {
+			_autoScaler.check(topologies, globalState, stats, now);
+		}
+		globalState.storeState(cluster, topologies);
 
+		for (TopologyDetails topo : topologies.getTopologies()) {
 			LOG.info("Current Assignment: {}",
 					HelperFuncs.nodeToTask(cluster, topo.getId()));
 		}
+		for (TopologyRebalance rebalance : globalState.getRebalances()) {
+			LOG.info("Rebalance: {}", rebalance);
+		}
+
+		SchedulerCheckpoint ckpt = SchedulerCheckpoint.getInstance();
+		if (ckpt != null) {
+			ckpt.saveGlobalState(globalState);
+		} else {
+			LOG.info("error! checkpoint is not configured, not saving the global state");
+		}
+
+	}
+
+	/**
+	 * Make and assign the migration plan of a PLANNED topology whose
+	 * executors were all released by Nimbus
+	 * @return false if nothing was assigned and the topology must be placed
+	 *         anew, e.g. when its executors changed
+	 */
+	private boolean migrate(TopologyDetails topo, GlobalState globalState, StatsSnapshot stats, Cluster cluster, TopologyRebalance rebalance, long now) {
+		LOG.info("Making migration assignments...");
+		
+		Map<WorkerSlot, Set<ExecutorDetails>> schedMap = globalState.schedState.get(topo.getId());
+		if (schedMap == null) {
+			LOG.info("error! no stored scheduling state for {}", topo.getId());
+			rebalance.migrating(0, now);
+			return false;
+		}
+		Set<ExecutorDetails> stored = new HashSet<ExecutorDetails>();
+		for (Set<ExecutorDetails> execs : schedMap.values()) {
+			stored.addAll(execs);
+		}
+		if (stored.equals(new HashSet<ExecutorDetails>(topo.getExecutors())) == false) {
+			// the rebalance changed the parallelism, nothing to migrate from
+			LOG.info("Executors of {} changed, placing them anew", topo.getId());
+			rebalance.migrating(0, now);
+			return false;
+		}
+		
+		TrafficGraph graph = TrafficGraph.build(topo.getId(), globalState.components.get(topo.getId()), stats);
+		TreeMap<Component, Integer> priorityQueue = this.rankComponents(globalState.components.get(topo.getId()), stats.getComponents(topo.getId()), graph);
+		
+		LOG.info("priorityQueue: {}", priorityQueue);
+		
+		List<Node> newNodes = Strategies.headroomStrategy(globalState.getNewNode(),
+				ElasticityConfig.getLong(_conf, ElasticityConfig.NODE_HEADROOM_WINDOW_MS, 60000),
+				ElasticityConfig.getDouble(_conf, ElasticityConfig.NODE_NIC_BYTES_PER_SEC, 125000000));
+		
+		List<ExecutorDetails> candidates = new ArrayList<ExecutorDetails>();
+		for (Component comp : priorityQueue.keySet()) {
+			candidates.addAll(comp.execs);
+		}
+		
+		// free slots of the new nodes, and what each of them can take
+		List<WorkerSlot> targets = new ArrayList<WorkerSlot>();
+		boolean spread = ElasticityConfig.getString(_conf, ElasticityConfig.REBALANCE_TARGETS, "all").equals("all");
+		for (Node n : newNodes) {
+			for (WorkerSlot ws : n.slots) {
+				if (spread == true || targets.isEmpty() == true) {
+					targets.add(ws);
+				}
+			}
+		}
+		Set<Node> planNodes = new LinkedHashSet<Node>(newNodes);
+		for (WorkerSlot ws : schedMap.keySet()) {
+			if (globalState.nodes.containsKey(ws.getNodeId()) == true) {
+				planNodes.add(globalState.nodes.get(ws.getNodeId()));
+			}
+		}
+		Map<WorkerSlot, Double> capacities = this.slotCapacities(planNodes, newNodes);
+		Map<ExecutorDetails, Double> loads = GraphPartitioner.executorLoads(topo.getExecutors(), topo.getId(), stats);
+		LOG.info("target locations: {}", targets);
+		
+		List<ExecutorDetails> migratedTasks = new ArrayList<ExecutorDetails>();
+		if (ElasticityConfig.getString(_conf, ElasticityConfig.REBALANCE_MODE, "incremental").equals("threshold")) {
+			if(targets.size()<=0) {
+				LOG.error("No new Nodes!");
+				rebalance.migrating(0, now);
+				return false;
+			}
+			
+			int THRESHOLD = ElasticityConfig.getInt(_conf, ElasticityConfig.REBALANCE_MAX_MIGRATIONS, 3);
+			if (this.getStrategy().equals("traffic")) {
+				// keep the executors that talk to each other together
+				LOG.info("Traffic: {}", graph);
+				migratedTasks.addAll(graph.pickGroup(candidates, THRESHOLD));
+			} else {
+				migratedTasks.addAll(candidates.subList(0, Math.min(THRESHOLD, candidates.size())));
+			}
+			// each to the target slot least loaded for its capacity
+			Map<WorkerSlot, Double> targetLoads = new HashMap<WorkerSlot, Double>();
+			for (ExecutorDetails exec : migratedTasks) {
+				WorkerSlot best = null;
+				double bestFill = Double.MAX_VALUE;
+				for (WorkerSlot ws : targets) {
+					Double load = targetLoads.get(ws);
+					double fill = ((load == null ? 0.0 : load) + loads.get(exec)) / capacities.get(ws);
+					if (fill < bestFill) {
+						best = ws;
+						bestFill = fill;
+					}
+				}
+				Double load = targetLoads.get(best);
+				targetLoads.put(best, (load == null ? 0.0 : load) + loads.get(exec));
+				globalState.migrateTask(exec, best, topo);
+			}
+		} else {
+			if (targets.isEmpty() == true) {
+				LOG.info("No new Nodes, rebalancing within the used slots");
+			}
+			List<IncrementalRebalancer.Move> moves = IncrementalRebalancer.fromConf(_conf).plan(schedMap, candidates, graph,
+					loads, targets, capacities);
+			for (IncrementalRebalancer.Move move : moves) {
+				globalState.migrateTask(move.exec, move.to, topo);
+				migratedTasks.add(move.exec);
+			}
+		}
+		
+		LOG.info("Tasks migrated: {}", migratedTasks);
+		for(Map.Entry<WorkerSlot, Set<ExecutorDetails>> sched : schedMap.entrySet()) {
+			if(sched.getValue().isEmpty() == true) {
+				continue;
+			}
+			cluster.assign(sched.getKey(), topo.getId(), sched.getValue());
+			LOG.info("Assigning {}=>{}",sched.getKey(), sched.getValue());
+		}
+
+		rebalance.migrating(migratedTasks.size(), now);
+		globalState.publish();
+		return true;
+	}
+
+	/**
+	 * Find the nodes that can be released, and with elasticity.scalein.apply
+	 * move their workers away. Nothing is planned while a topology is being
+	 * rebalanced or settling, or has executors left to place.
+	 */
+	private void scaleIn(Topologies topologies, GlobalState globalState, StatsSnapshot stats, Cluster cluster, long now) {
+		List<Node> idle = _scaleIn.update(globalState.nodes.values(), stats, now);
+		for (TopologyDetails topo : topologies.getTopologies()) {
+			TopologyRebalance.Phase phase = globalState.getRebalance(topo.getId()).getPhase();
+			if (phase != TopologyRebalance.Phase.IDLE) {
+				LOG.info("Not scaling in while {} is {}", topo.getId(), phase);
+				return;
+			}
+			// merged workers leave fewer workers than requested, which
+			// needsScheduling reports forever; only unplaced executors count
+			if (cluster.getUnassignedExecutors(topo).isEmpty() == false) {
+				LOG.info("Not scaling in while {} has unassigned executors", topo.getId());
+				return;
+			}
+		}
+		ScaleInPlanner.Plan plan = _scaleIn.plan(globalState.nodes.values(), idle, cluster, stats);
+		globalState.setReleasableNodes(plan.releasable);
+		List<String> hosts = new ArrayList<String>();
+		for (String supId : plan.releasable) {
+			hosts.add(globalState.nodes.get(supId).hostname);
+		}
+		LOG.info("Supervisors that can be released: {}", hosts);
+		if (plan.moves.isEmpty() == true
+				|| ElasticityConfig.getBoolean(_conf, ElasticityConfig.SCALEIN_APPLY, false) == false) {
+			return;
+		}
+
+		// target slot -> what it runs now plus what moves there
+		Map<WorkerSlot, Set<ExecutorDetails>> targets = new HashMap<WorkerSlot, Set<ExecutorDetails>>();
+		Map<WorkerSlot, String> targetTopos = new HashMap<WorkerSlot, String>();
+		Map<String, Integer> moved = new HashMap<String, Integer>();
+		for (ScaleInPlanner.Move move : plan.moves) {
+			if (targets.containsKey(move.to) == false) {
+				Set<ExecutorDetails> execs = new LinkedHashSet<ExecutorDetails>();
+				for (Map.Entry<ExecutorDetails, WorkerSlot> entry : cluster.getAssignmentById(move.topologyId)
+						.getExecutorToSlot().entrySet()) {
+					if (entry.getValue().equals(move.to) == true) {
+						execs.add(entry.getKey());
+					}
+				}
+				targets.put(move.to, execs);
+				targetTopos.put(move.to, move.topologyId);
+			}
+			targets.get(move.to).addAll(move.execs);
+			Integer count = moved.get(move.topologyId);
+			moved.put(move.topologyId, (count == null ? 0 : count) + move.execs.size());
+		}
+		for (ScaleInPlanner.Move move : plan.moves) {
+			cluster.freeSlot(move.from);
+		}
+		for (Map.Entry<WorkerSlot, Set<ExecutorDetails>> entry : targets.entrySet()) {
+			cluster.freeSlot(entry.getKey());
+			cluster.assign(entry.getKey(), targetTopos.get(entry.getKey()), entry.getValue());
+			LOG.info("Assigning {}=>{}", entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, Integer> entry : moved.entrySet()) {
+			globalState.getRebalance(entry.getKey()).moved(entry.getValue(), now);
+		}
+	}
+
+	/**
+	 * Relative capacity of the slots of nodes: the node's processors (the
+	 * mean of the reporting nodes for a node that reports none) split over
+	 * its slots. The slots of empty nodes are also scaled by the node's
+	 * headroom, whatever load an empty node has is not storm's.
+	 */
+	private Map<WorkerSlot, Double> slotCapacities(Collection<Node> nodes, Collection<Node> emptyNodes) {
+		long windowMs = ElasticityConfig.getLong(_conf, ElasticityConfig.NODE_HEADROOM_WINDOW_MS, 60000);
+		double nicBps = ElasticityConfig.getDouble(_conf, ElasticityConfig.NODE_NIC_BYTES_PER_SEC, 125000000);
+		Map<Node, Double> cores = new HashMap<Node, Double>();
+		double sum = 0.0;
+		for (Node n : nodes) {
+			double c = n.profile == null ? Double.NaN : n.profile.getCores();
+			if (Double.isNaN(c) == false && c > 0) {
+				cores.put(n, c);
+				sum += c;
+			}
+		}
+		double mean = cores.isEmpty() == true ? 1.0 : sum / cores.size();
+		
+		Map<WorkerSlot, Double> retVal = new HashMap<WorkerSlot, Double>();
+		for (Node n : nodes) {
+			double capacity = cores.containsKey(n) == true ? cores.get(n) : mean;
+			if (emptyNodes.contains(n) == true && n.profile != null) {
+				double headroom = n.profile.getHeadroom(windowMs, nicBps);
+				capacity *= Double.isNaN(headroom) ? 1.0 : Math.max(headroom, 0.01);
+			}
+			for (WorkerSlot ws : n.slots) {
+				retVal.put(ws, capacity / n.slots.size());
+			}
+		}
+		LOG.info("Slot capacities: {}", retVal);
+		return retVal;
+	}
+
+	/**
+	 * Place a topology that has no assignment with GraphPartitioner
+	 * @return false if there are no free slots, leaving it to EvenScheduler
+	 */
+	private boolean partition(TopologyDetails topo, GlobalState globalState, StatsSnapshot stats, Cluster cluster) {
+		long start = System.currentTimeMillis();
+		long windowMs = ElasticityConfig.getLong(_conf, ElasticityConfig.NODE_HEADROOM_WINDOW_MS, 60000);
+		double nicBps = ElasticityConfig.getDouble(_conf, ElasticityConfig.NODE_NIC_BYTES_PER_SEC, 125000000);
+
+		// free slots one per node in turn, nodes with most headroom first
+		Map<String, Double> slotWeights = new HashMap<String, Double>();
+		List<List<WorkerSlot>> free = new ArrayList<List<WorkerSlot>>();
+		for (Node n : Strategies.headroomStrategy(globalState.nodes.values(), windowMs, nicBps)) {
+			List<WorkerSlot> slots = cluster.getAvailableSlots(n.sup);
+			if (slots.isEmpty() == false) {
+				free.add(new ArrayList<WorkerSlot>(slots));
+				double headroom = n.profile == null ? Double.NaN : n.profile.getHeadroom(windowMs, nicBps);
+				// a node without reports counts as idle; its share follows
+				// from the slots taken on it below, not from all free ones
+				slotWeights.put(n.supervisor_id, Double.isNaN(headroom) ? 1.0 : Math.max(headroom, 0.01));
+			}
+		}
+		List<WorkerSlot> slots = new ArrayList<WorkerSlot>();
+		while (slots.size() < topo.getNumWorkers() && free.isEmpty() == false) {
+			Iterator<List<WorkerSlot>> it = free.iterator();
+			while (it.hasNext() && slots.size() < topo.getNumWorkers()) {
+				List<WorkerSlot> nodeSlots = it.next();
+				slots.add(nodeSlots.remove(0));
+				if (nodeSlots.isEmpty() == true) {
+					it.remove();
+				}
+			}
+		}
+		if (slots.isEmpty() == true) {
+			LOG.info("No free slots for {}, leaving it to EvenScheduler", topo.getId());
+			return false;
+		}
+
+		Collection<ExecutorDetails> execs = cluster.getUnassignedExecutors(topo);
+		TrafficGraph graph = TrafficGraph.build(topo.getId(), globalState.components.get(topo.getId()), stats);
+		Map<WorkerSlot, List<ExecutorDetails>> placement = GraphPartitioner.place(execs, graph,
+				GraphPartitioner.executorLoads(execs, topo.getId(), stats), slots, slotWeights,
+				ElasticityConfig.getDouble(_conf, ElasticityConfig.PLACEMENT_IMBALANCE, 0.1));
+		for (Map.Entry<WorkerSlot, List<ExecutorDetails>> entry : placement.entrySet()) {
+			cluster.assign(entry.getKey(), topo.getId(), entry.getValue());
+			LOG.info("Assigning {}=>{}", entry.getKey(), entry.getValue());
+		}
+		LOG.info("Partitioned {} executors of {} over {} slots in {}ms", new Object[] {
+				execs.size(), topo.getId(), placement.size(), System.currentTimeMillis() - start });
+		return true;
+	}
+
+	/**
+	 * Order the components of a topology by migration priority using the
+	 * configured strategy
+	 */
+	private TreeMap<Component, Integer> rankComponents(Map<String, Component> components, Map<String, StatsSnapshot.ComponentStat> compStats, TrafficGraph graph) {
+		String strategy = this.getStrategy();
+		if (strategy.equals("traffic")) {
+			if (graph.isMeasured() == true) {
+				return Strategies.trafficStrategy(components, graph);
+			}
+			LOG.info("No stats yet, ranking by centrality");
+		}
+		if (strategy.equals("capacity")) {
+			if (compStats.isEmpty() == false) {
+				return Strategies.capacityStrategy(components, compStats);
+			}
+			LOG.info("No stats yet, falling back to centrality strategy");
+		}
+		return Strategies.centralityStrategy(components);
+	}
 
+	private String getStrategy() {
+		return ElasticityConfig.getString(_conf, ElasticityConfig.STRATEGY, "centrality");
 	}
 }
@@ -1,5 +1,7 @@
 package backtype.storm.scheduler.Elasticity;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -20,6 +22,8 @@ public class EvenScheduler implements IScheduler{
 	@Override
 	public void prepare(@SuppressWarnings("rawtypes") Map conf) {
 		_conf = conf;
+		NimbusClientPool.configure(conf);
+		StatsCollector.start(conf, "EvenScheduler");
 	}
 
 	@Override
@@ -30,15 +34,22 @@ public class EvenScheduler implements IScheduler{
 			LOG.info("Unassigned Executors for {}: ", topo.getName());
 			LOG.info("Current Assignment: {}", HelperFuncs.nodeToTask(cluster, topo.getId()));
 		}
-		GetStats gs = GetStats.getInstance("EvenScheduler");
-		GetTopologyInfo gt = new GetTopologyInfo();
-		gs.getStatistics();
+		ClusterSnapshot snapshot = ClusterSnapshot.take();
+		StatsCollector collector = StatsCollector.getInstance();
+		if (collector == null) {
+			LOG.info("error! stats collector is not running, scheduling without stats");
+		}
+		StatsSnapshot stats = collector == null ? StatsSnapshot.EMPTY : collector.getLatest();
+		LOG.info("Stats ({}ms old): {}", stats.getAge(), stats);
+		List<String> liveTopoIds = new ArrayList<String>();
 		for(TopologyDetails topo : topologies.getTopologies()) {
-			gt.getTopologyInfo(topo.getId());
-			LOG.info("Topology layout: {}", gt.all_comp);
+			LOG.info("Topology layout: {}", TopologyStructureCache.getInstance()
+					.getComponents(topo, snapshot));
+			liveTopoIds.add(topo.getId());
 		}
+		TopologyStructureCache.getInstance().retainAll(liveTopoIds);
 		
-		Master server = Master.getInstance();
+		Master server = Master.getInstance(_conf);
 		
 		LOG.info("running EvenScheduler now...");
 		new backtype.storm.scheduler.EvenScheduler().schedule(topologies, cluster);
@@ -0,0 +1,196 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per executor counters of the stats collector, keyed by (topology index,
+ * task start) packed into one long.
+ *
+ * Lookups go through an open addressed table of primitive long keys with
+ * linear probing, so polling 20k executors does not build a string key or
+ * box a counter per executor. Topology ids are mapped to a small int once per
+ * topology; the int is reused once evict dropped all executors of the
+ * topology, so the index stays as small as the set of live topologies.
+ */
+public class ExecutorStatsStore {
+
+	private static final long EMPTY = -1L;
+
+	private final Map<String, Integer> topoIndex;
+	private long[] rateWindowsMs;
+
+	private long[] keys;
+	private RateTracker[] transfer;
+	private RateTracker[] emit;
+	private int size;
+
+	public ExecutorStatsStore(long[] rateWindowsMs) {
+		this.topoIndex = new HashMap<String, Integer>();
+		this.rateWindowsMs = rateWindowsMs;
+		this.allocate(1024);
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		Arrays.fill(this.keys, EMPTY);
+		this.transfer = new RateTracker[capacity];
+		this.emit = new RateTracker[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * @return packed key of the executor starting at taskStart in topoId
+	 */
+	public long key(String topoId, int taskStart) {
+		Integer idx = this.topoIndex.get(topoId);
+		if (idx == null) {
+			// smallest index not in use
+			Set<Integer> used = new HashSet<Integer>(this.topoIndex.values());
+			idx = 0;
+			while (used.contains(idx) == true) {
+				idx++;
+			}
+			this.topoIndex.put(topoId, idx);
+		}
+		return ((long) idx << 32) | (taskStart & 0xffffffffL);
+	}
+
+	/**
+	 * @return slot of key, creating the trackers if the executor is new
+	 */
+	public int slot(long key) {
+		int mask = this.keys.length - 1;
+		int i = mix(key) & mask;
+		while (this.keys[i] != EMPTY) {
+			if (this.keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		if ((this.size + 1) * 2 > this.keys.length) {
+			this.rehash(this.keys.length * 2);
+			return this.slot(key);
+		}
+		this.keys[i] = key;
+		this.transfer[i] = new RateTracker(this.rateWindowsMs);
+		this.emit[i] = new RateTracker(this.rateWindowsMs);
+		this.size++;
+		return i;
+	}
+
+	public RateTracker getTransfer(int slot) {
+		return this.transfer[slot];
+	}
+
+	public RateTracker getEmit(int slot) {
+		return this.emit[slot];
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Drop executors whose last sample is older than before, and the
+	 * topologies left without executors
+	 */
+	public void evict(long before) {
+		boolean removed = false;
+		Set<Integer> live = new HashSet<Integer>();
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] == EMPTY) {
+				continue;
+			}
+			if (this.transfer[i].getLastTime() < before) {
+				this.keys[i] = EMPTY;
+				this.transfer[i] = null;
+				this.emit[i] = null;
+				this.size--;
+				removed = true;
+			} else {
+				live.add((int) (this.keys[i] >>> 32));
+			}
+		}
+		this.topoIndex.values().retainAll(live);
+		if (removed == true) {
+			// reinsert so that no probe chain is broken by the holes
+			this.rehash(this.keys.length);
+		}
+	}
+
+	/**
+	 * Drop all trackers, e.g. after the rate windows changed
+	 */
+	public void clear(long[] rateWindowsMs) {
+		this.rateWindowsMs = rateWindowsMs;
+		this.allocate(this.keys.length);
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(this.topoIndex.size());
+		for (Map.Entry<String, Integer> entry : this.topoIndex.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+		out.writeInt(this.size);
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != EMPTY) {
+				out.writeLong(this.keys[i]);
+				this.transfer[i].writeTo(out);
+				this.emit[i].writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * Replace all trackers with the ones written by writeTo
+	 */
+	public void readFrom(DataInput in) throws IOException {
+		this.topoIndex.clear();
+		this.allocate(this.keys.length);
+		int topos = in.readInt();
+		for (int i = 0; i < topos; i++) {
+			String topoId = in.readUTF();
+			this.topoIndex.put(topoId, in.readInt());
+		}
+		int n = in.readInt();
+		for (int j = 0; j < n; j++) {
+			int i = this.slot(in.readLong());
+			this.transfer[i] = RateTracker.readFrom(in, this.rateWindowsMs);
+			this.emit[i] = RateTracker.readFrom(in, this.rateWindowsMs);
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		RateTracker[] oldTransfer = this.transfer;
+		RateTracker[] oldEmit = this.emit;
+		this.allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == EMPTY) {
+				continue;
+			}
+			int i = mix(oldKeys[j]) & mask;
+			while (this.keys[i] != EMPTY) {
+				i = (i + 1) & mask;
+			}
+			this.keys[i] = oldKeys[j];
+			this.transfer[i] = oldTransfer[j];
+			this.emit[i] = oldEmit[j];
+			this.size++;
+		}
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
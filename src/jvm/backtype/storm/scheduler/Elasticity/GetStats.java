@@ -1,25 +1,28 @@
 package backtype.storm.scheduler.Elasticity;
 
-import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import backtype.storm.generated.ClusterSummary;
+import backtype.storm.generated.BoltStats;
+import backtype.storm.generated.ExecutorSpecificStats;
 import backtype.storm.generated.ExecutorStats;
 import backtype.storm.generated.ExecutorSummary;
+import backtype.storm.generated.GlobalStreamId;
 import backtype.storm.generated.Nimbus;
+import backtype.storm.generated.NotAliveException;
+import backtype.storm.generated.SpoutStats;
 import backtype.storm.generated.StormTopology;
 import backtype.storm.generated.TopologyInfo;
 import backtype.storm.generated.TopologySummary;
@@ -29,46 +32,38 @@ public class GetStats {
 		public String hostname;
 		public ArrayList<ExecutorSummary> bolts_on_node;
 		public ArrayList<ExecutorSummary> spouts_on_node;
-		public Integer emit_throughput;
-		public Integer transfer_throughput;
-		// transfer or emit
-		public HashMap<String, Integer> bolts_on_node_throughput;
-		public HashMap<String, Integer> spouts_on_node_throughput;
+		public long emit_throughput;
+		public long transfer_throughput;
+		public long bolts_transfer_throughput;
+		public long bolts_emit_throughput;
+		public long spouts_transfer_throughput;
+		public long spouts_emit_throughput;
 
 		public NodeStats(String hostname) {
 			this.hostname = hostname;
 			this.bolts_on_node = new ArrayList<ExecutorSummary>();
 			this.spouts_on_node = new ArrayList<ExecutorSummary>();
-			this.bolts_on_node_throughput = new HashMap<String, Integer>();
-			this.bolts_on_node_throughput.put("transfer", 0);
-			this.bolts_on_node_throughput.put("emit", 0);
-			this.spouts_on_node_throughput = new HashMap<String, Integer>();
-			this.spouts_on_node_throughput.put("transfer", 0);
-			this.spouts_on_node_throughput.put("emit", 0);
-			this.emit_throughput = 0;
-			this.transfer_throughput = 0;
 
 		}
 	}
 
 	public class ComponentStats {
 		public String componentId;
-		public Integer total_emit_throughput;
-		public Integer total_transfer_throughput;
-		public Integer parallelism_hint;
+		public long total_emit_throughput;
+		public long total_transfer_throughput;
+		public int parallelism_hint;
 
 		public ComponentStats(String id) {
 			this.componentId = id;
-			this.total_emit_throughput = 0;
-			this.total_transfer_throughput = 0;
 		}
 
 	}
 
 	private static GetStats instance = null;
 	private static final Logger LOG = LoggerFactory.getLogger(GetStats.class);
-	public HashMap<String, Integer> transferStatsTable;
-	public HashMap<String, Integer> emitStatsTable;
+	// (topology, task start) -> sliding window rates of the :all-time counters
+	public ExecutorStatsStore statsTable;
+	private long[] rateWindowsMs;
 	public HashMap<String, Long> startTimes;
 	// public HashMap<String, Integer> node_stats;
 	// public HashMap<String, HashMap<String, ArrayList<ExecutorSummary>>>
@@ -78,16 +73,19 @@ public class GetStats {
 	// public HashMap<String, Integer> parallelism_hint;
 	public HashMap<String, NodeStats> nodeStats;
 	public HashMap<String, ComponentStats> componentStats;
-	private File complete_log;
-	private File avg_log;
-	private File output_bolt_log;
+	private StatsLogWriter complete_log;
+	private StatsLogWriter output_bolt_log;
 	private String sched_type;
 
 	private static String LOG_PATH = "/tmp/";
 
+	// window of the bolt/spout specific stats used for latency and capacity
+	private static final String LATENCY_WINDOW = "600";
+	private static final int LATENCY_WINDOW_SECS = 600;
+
 	protected GetStats(String filename) {
-		transferStatsTable = new HashMap<String, Integer>();
-		emitStatsTable = new HashMap<String, Integer>();
+		rateWindowsMs = StatsSnapshot.DEFAULT_RATE_WINDOWS_MS;
+		statsTable = new ExecutorStatsStore(rateWindowsMs);
 		startTimes = new HashMap<String, Long>();
 		// node_stats = new HashMap<String, Integer>();
 		// location_stats = new HashMap<String, HashMap<String,
@@ -99,371 +97,548 @@ public class GetStats {
 		nodeStats = new HashMap<String, NodeStats>();
 		componentStats = new HashMap<String, ComponentStats>();
 
-		// delete old files
-		try {
-			complete_log = new File(LOG_PATH + filename + "_complete");
-			avg_log = new File(LOG_PATH + filename + "_complete");
-			output_bolt_log = new File(LOG_PATH + filename + "output_bolt");
-			sched_type=filename;
-
-			complete_log.delete();
-			avg_log.delete();
-			output_bolt_log.delete();
-		} catch (Exception e) {
-
-			e.printStackTrace();
+		sched_type = filename;
+		this.configureLog(null);
+	}
 
+	/**
+	 * (Re)open the stats logs, deleting old files
+	 */
+	@SuppressWarnings("rawtypes")
+	public synchronized void configureLog(Map conf) {
+		if (this.complete_log != null) {
+			this.complete_log.close();
+			this.output_bolt_log.close();
 		}
+		String dir = ElasticityConfig.getString(conf,
+				ElasticityConfig.STATS_LOG_DIR, LOG_PATH);
+		boolean binary = ElasticityConfig.getBoolean(conf,
+				ElasticityConfig.STATS_LOG_BINARY, false);
+		long maxBytes = ElasticityConfig.getLong(conf,
+				ElasticityConfig.STATS_LOG_MAX_BYTES, 64L * 1024 * 1024);
+		long maxAgeMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.STATS_LOG_MAX_AGE_MS, 24L * 60 * 60 * 1000);
+		int maxBackups = ElasticityConfig.getInt(conf,
+				ElasticityConfig.STATS_LOG_BACKUPS, 5);
 
+		// delete old files
+		File completeFile = new File(dir, this.sched_type + "_complete");
+		File outputBoltFile = new File(dir, this.sched_type + "output_bolt");
+		completeFile.delete();
+		outputBoltFile.delete();
+
+		this.complete_log = new StatsLogWriter(completeFile, binary,
+				maxBytes, maxAgeMs, maxBackups);
+		this.output_bolt_log = new StatsLogWriter(outputBoltFile, binary,
+				maxBytes, maxAgeMs, maxBackups);
 	}
 
-	public static GetStats getInstance(String filename) {
+	public static synchronized GetStats getInstance(String filename) {
 		if (instance == null) {
 			instance = new GetStats(filename);
 		}
 		return instance;
 	}
 
-	public void getStatistics() {
+	/**
+	 * Set the sliding windows rates are computed over. Trackers built for
+	 * other windows are dropped.
+	 */
+	public synchronized void setRateWindows(long[] windowsMs) {
+		if (windowsMs == null || windowsMs.length == 0
+				|| Arrays.equals(windowsMs, this.rateWindowsMs)) {
+			return;
+		}
+		this.rateWindowsMs = windowsMs.clone();
+		this.statsTable.clear(this.rateWindowsMs);
+	}
+
+	/**
+	 * Write topology start times and the counters of every executor, so a
+	 * restarted Nimbus computes rates from the old baselines
+	 */
+	public synchronized void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(this.startTimes.size());
+		for (Map.Entry<String, Long> entry : this.startTimes.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+		this.statsTable.writeTo(out);
+	}
+
+	public synchronized void readCheckpoint(DataInput in) throws IOException {
+		int n = in.readInt();
+		HashMap<String, Long> times = new HashMap<String, Long>();
+		for (int i = 0; i < n; i++) {
+			String topoId = in.readUTF();
+			times.put(topoId, in.readLong());
+		}
+		this.statsTable.readFrom(in);
+		this.startTimes = times;
+	}
+
+	public StatsSnapshot getStatistics() {
+		return this.getStatistics(ClusterSnapshot.take());
+	}
+
+	/**
+	 * Poll executor stats of every topology in snapshot
+	 * @return immutable copy of the throughput computed by this poll
+	 */
+	public synchronized StatsSnapshot getStatistics(ClusterSnapshot snapshot) {
 		LOG.info("Getting stats...");
 
 		// reseting values
 		this.nodeStats.clear();
 		this.componentStats.clear();
+		List<StatsSnapshot.ExecutorStat> polled = new ArrayList<StatsSnapshot.ExecutorStat>();
+		long pollTime = System.currentTimeMillis();
+		Map<String, Integer> parallelismHints = new HashMap<String, Integer>();
 
-		TSocket tsocket = new TSocket("localhost", 6627);
-		TFramedTransport tTransport = new TFramedTransport(tsocket);
-		TBinaryProtocol tBinaryProtocol = new TBinaryProtocol(tTransport);
-		Nimbus.Client client = new Nimbus.Client(tBinaryProtocol);
+		NimbusClientPool pool = NimbusClientPool.getInstance();
 
-		try {
-			tTransport.open();
-			ClusterSummary clusterSummary = client.getClusterInfo();
-			List<TopologySummary> topologies = clusterSummary.get_topologies();
-			for (TopologySummary topo : topologies) {
-				// get start time of topology
-				if (this.startTimes.containsKey(topo.get_id()) == false) {
-					this.startTimes.put(topo.get_id(),
-							(System.currentTimeMillis() / 1000));
-				}
-				TopologyInfo topologyInfo = null;
-				StormTopology stormTopo = null;
-				try {
-					topologyInfo = client.getTopologyInfo(topo.get_id());
-					stormTopo = client.getTopology(topo.get_id());
-				} catch (Exception e) {
-					LOG.info(e.toString());
+		for (final TopologySummary topo : snapshot.getTopologies()) {
+			// get start time of topology
+			if (this.startTimes.containsKey(topo.get_id()) == false) {
+				this.startTimes.put(topo.get_id(),
+						(System.currentTimeMillis() / 1000));
+			}
+			TopologyInfo topologyInfo = null;
+			StormTopology stormTopo = null;
+			try {
+				topologyInfo = pool
+						.execute(new NimbusClientPool.NimbusCall<TopologyInfo>() {
+							@Override
+							public TopologyInfo call(Nimbus.Client client)
+									throws TException, NotAliveException {
+								return client.getTopologyInfo(topo.get_id());
+							}
+						});
+				stormTopo = TopologyStructureCache.getInstance()
+						.getStormTopology(topo.get_id());
+			} catch (Exception e) {
+				LOG.info(e.toString());
+				continue;
+			}
+			if (stormTopo == null) {
+				continue;
+			}
+			// get all executors for topology
+			List<ExecutorSummary> executorSummaries = topologyInfo
+					.get_executors();
+			// iterate all executors
+			for (ExecutorSummary executorSummary : executorSummaries) {
+
+				ExecutorStats executorStats = executorSummary.get_stats();
+				if (executorStats == null) {
 					continue;
 				}
-				// get all executors for topology
-				List<ExecutorSummary> executorSummaries = topologyInfo
-						.get_executors();
-				// iterate all executors
-				for (ExecutorSummary executorSummary : executorSummaries) {
-
-					ExecutorStats executorStats = executorSummary.get_stats();
-					if (executorStats == null) {
-						continue;
-					}
-
-					// getting general info
-					String host = executorSummary.get_host();
-					int port = executorSummary.get_port();
-					String componentId = executorSummary.get_component_id();
-					String taskId = Integer.toString(executorSummary
-							.get_executor_info().get_task_start());
-
-					// populating data structures
-					if (this.nodeStats.containsKey(host) == false) {
-						this.nodeStats.put(host, new NodeStats(host));
-					}
-					if (this.componentStats.containsKey(componentId) == false) {
-						this.componentStats.put(componentId,
-								new ComponentStats(componentId));
-					}
-					/*
-					 * if(this.location_stats.containsKey(host) == false) {
-					 * this.location_stats.put(host, new HashMap<String,
-					 * ArrayList<ExecutorSummary>>());
-					 * this.location_stats.get(host).put("bolts", new
-					 * ArrayList<ExecutorSummary>());
-					 * this.location_stats.get(host).put("spouts", new
-					 * ArrayList<ExecutorSummary>());
-					 * this.node_component_stats.put(host, new HashMap<String,
-					 * Integer>());
-					 * this.node_component_stats.get(host).put("bolts", 0);
-					 * this.node_component_stats.get(host).put("spouts", 0); }
-					 */
-					// getting component info
-					if (stormTopo.get_bolts().containsKey(componentId) == true) {
-						// this.location_stats.get(host).get("bolts").add(executorSummary);
-						// this.parallelism_hint.put(componentId,
-						// stormTopo.get_bolts().get(componentId).get_common().get_parallelism_hint());
-
-						// adding bolt to host
-						this.nodeStats.get(host).bolts_on_node
-								.add(executorSummary);
-						// getting parallelism hint
-						this.componentStats.get(componentId).parallelism_hint = stormTopo
-								.get_bolts().get(componentId).get_common()
-								.get_parallelism_hint();
-					} else if (stormTopo.get_spouts().containsKey(componentId) == true) {
-						// this.location_stats.get(host).get("spouts").add(executorSummary);
-						// this.parallelism_hint.put(componentId,
-						// stormTopo.get_spouts().get(componentId).get_common().get_parallelism_hint());
-
-						// adding spout to host
-						this.nodeStats.get(host).spouts_on_node
-								.add(executorSummary);
-						// getting parallelism hint
-						this.componentStats.get(componentId).parallelism_hint = stormTopo
-								.get_spouts().get(componentId).get_common()
-								.get_parallelism_hint();
-					} else {
-						LOG.info("ERROR: type of component not determined!");
-					}
-
-					// get transfer info
-					Map<String, Map<String, Long>> transfer = executorStats
-							.get_transferred();
-					// get emit info
-					Map<String, Map<String, Long>> emit = executorStats
-							.get_emitted();
-
-					if (transfer.get(":all-time").get("default") != null
-							&& emit.get(":all-time").get("default") != null) {
-						// getting task hash
-						String hash_id = host + ':' + port + ':' + componentId
-								+ ":" + topo.get_id() + ":" + taskId;
-						// getting total output
-						Integer totalTransferOutput = transfer.get(":all-time")
-								.get("default").intValue();
-						Integer totalEmitOutput = emit.get(":all-time")
-								.get("default").intValue();
-
-						if (this.transferStatsTable.containsKey(hash_id) == false) {
-							this.transferStatsTable.put(hash_id,
-									totalTransferOutput);
-						}
-						if (this.emitStatsTable.containsKey(hash_id) == false) {
-							this.emitStatsTable.put(hash_id, totalEmitOutput);
-						}
-
-						// get throughput
-						Integer transfer_throughput = totalTransferOutput
-								- this.transferStatsTable.get(hash_id);
-						Integer emit_throughput = totalEmitOutput
-								- this.emitStatsTable.get(hash_id);
-
-						LOG.info((host + ':' + port + ':' + componentId + ":"
-								+ topo.get_id() + ":" + taskId + ","
-								+ transfer.get(":all-time").get("default")
-								+ "," + this.transferStatsTable.get(hash_id)
-								+ "," + transfer_throughput + ","
-								+ emit.get(":all-time").get("default")+","
-								+ this.emitStatsTable.get(hash_id) + "," + emit_throughput));
-						// LOG.info("-->transfered: {}\n -->emmitted: {}",
-						// executorStats.get_transferred(),
-						// executorStats.get_emitted());
-
-						this.transferStatsTable.put(hash_id,
-								totalTransferOutput);
-						this.emitStatsTable.put(hash_id, totalEmitOutput);
-
-						// get node stats
-						/*
-						 * if (this.node_stats.containsKey(host) == false) {
-						 * this.node_stats.put(host, 0); }
-						 * this.node_stats.put(host, this.node_stats.get(host) +
-						 * transfer_throughput);
-						 */
-						this.nodeStats.get(host).transfer_throughput += transfer_throughput;
-						this.nodeStats.get(host).emit_throughput += emit_throughput;
-
-						// get node component stats
-						/*
-						 * if (stormTopo.get_bolts().containsKey(componentId) ==
-						 * true){
-						 * this.node_component_stats.get(host).put("bolts",
-						 * this.node_component_stats.get(host).get("bolts")+
-						 * transfer_throughput); } else if
-						 * (stormTopo.get_spouts().containsKey(componentId) ==
-						 * true) {
-						 * this.node_component_stats.get(host).put("spouts",
-						 * this.node_component_stats.get(host).get("spouts")+
-						 * transfer_throughput); }
-						 */
-						if (stormTopo.get_bolts().containsKey(componentId) == true) {
-							this.nodeStats.get(host).bolts_on_node_throughput
-									.put("transfer",
-											this.nodeStats.get(host).bolts_on_node_throughput
-													.get("transfer")
-													+ transfer_throughput);
-							this.nodeStats.get(host).bolts_on_node_throughput
-									.put("emit",
-											this.nodeStats.get(host).bolts_on_node_throughput
-													.get("emit")
-													+ emit_throughput);
-						} else if (stormTopo.get_spouts().containsKey(
-								componentId) == true) {
-							this.nodeStats.get(host).spouts_on_node_throughput
-									.put("transfer",
-											this.nodeStats.get(host).spouts_on_node_throughput
-													.get("transfer")
-													+ transfer_throughput);
-							this.nodeStats.get(host).spouts_on_node_throughput
-									.put("emit",
-											this.nodeStats.get(host).spouts_on_node_throughput
-													.get("emit")
-													+ emit_throughput);
-						}
-
-						// get individual component stats
-						/*
-						 * if(this.indv_component_stats.containsKey(componentId)==
-						 * false) { this.indv_component_stats.put(componentId,
-						 * 0); } this.indv_component_stats.put(componentId,
-						 * this.indv_component_stats.get(componentId) +
-						 * transfer_throughput);
-						 */
-
-						this.componentStats.get(componentId).total_transfer_throughput += transfer_throughput;
-						this.componentStats.get(componentId).total_emit_throughput += emit_throughput;
-
-						// write to file
-						long unixTime = (System.currentTimeMillis() / 1000)
-								- this.startTimes.get(topo.get_id());
-						String data = String.valueOf(unixTime) + ':' + this.sched_type+":"+host
-								+ ':' + port + ':' + componentId + ":"
-								+ topo.get_id() + ":" + taskId + ","
-								+ transfer_throughput + "\n";
-
-						try {
-							// LOG.info("writting to file...");
-
-							FileWriter fileWritter = new FileWriter(
-									this.complete_log, true);
-							BufferedWriter bufferWritter = new BufferedWriter(
-									fileWritter);
-							bufferWritter.append(data);
-							bufferWritter.close();
-							fileWritter.close();
-						} catch (IOException ex) {
-							LOG.info("error! writin to file {}", ex);
-						}
-					}
+
+				// getting general info
+				String host = executorSummary.get_host();
+				int port = executorSummary.get_port();
+				String componentId = executorSummary.get_component_id();
+				int taskId = executorSummary.get_executor_info()
+						.get_task_start();
+
+				// populating data structures
+				if (this.nodeStats.containsKey(host) == false) {
+					this.nodeStats.put(host, new NodeStats(host));
 				}
-				LOG.info("!!!- GENERAL STATISTICS -!!!");
-				LOG.info("OVERALL THROUGHPUT:");
-				for (Map.Entry<String, NodeStats> ns : this.nodeStats
-						.entrySet()) {
-					LOG.info(
-							"{} -> transfer: {}    emit: {}",
-							new Object[] { ns.getKey(),
-									ns.getValue().transfer_throughput,
-									ns.getValue().emit_throughput });
+				if (this.componentStats.containsKey(componentId) == false) {
+					this.componentStats.put(componentId,
+							new ComponentStats(componentId));
 				}
-				// this.node_stats.clear();
-				LOG.info("NODE STATS:");
 				/*
-				 * for(Map.Entry<String, HashMap<String,
-				 * ArrayList<ExecutorSummary>>> entry :
-				 * this.location_stats.entrySet()) { LOG.info("{}:",
-				 * entry.getKey());
-				 * LOG.info("# of Spouts: {}    # of Bolts: {}",
-				 * entry.getValue().get("spouts").size(),
-				 * entry.getValue().get("bolts").size()); LOG.info(
-				 * "total Spout throughput: {}    total Bolt throughput: {}",
-				 * this.node_component_stats.get(entry.getKey()).get("spouts"),
-				 * this.node_component_stats.get(entry.getKey()).get("bolts"));
-				 * //LOG.info("Spouts: {}\nBolts: {}",
-				 * entry.getValue().get("spouts"),
-				 * entry.getValue().get("bolts")); }
+				 * if(this.location_stats.containsKey(host) == false) {
+				 * this.location_stats.put(host, new HashMap<String,
+				 * ArrayList<ExecutorSummary>>());
+				 * this.location_stats.get(host).put("bolts", new
+				 * ArrayList<ExecutorSummary>());
+				 * this.location_stats.get(host).put("spouts", new
+				 * ArrayList<ExecutorSummary>());
+				 * this.node_component_stats.put(host, new HashMap<String,
+				 * Integer>());
+				 * this.node_component_stats.get(host).put("bolts", 0);
+				 * this.node_component_stats.get(host).put("spouts", 0); }
 				 */
-				for (Map.Entry<String, NodeStats> ns : this.nodeStats
-						.entrySet()) {
-					LOG.info("{}:", ns.getKey());
-					LOG.info("# of Spouts: {}    # of Bolts: {}",
-							ns.getValue().spouts_on_node.size(),
-							ns.getValue().bolts_on_node.size());
-					LOG.info("total spout throughput (transfer):{} (emit):{}",
-							ns.getValue().spouts_on_node_throughput
-									.get("transfer"),
-							ns.getValue().spouts_on_node_throughput.get("emit"));
-					LOG.info("total bolt throughput (transfer):{} (emit):{}",
-							ns.getValue().bolts_on_node_throughput
-									.get("transfer"),
-							ns.getValue().bolts_on_node_throughput.get("emit"));
+				// getting component info
+				if (stormTopo.get_bolts().containsKey(componentId) == true) {
+					// this.location_stats.get(host).get("bolts").add(executorSummary);
+					// this.parallelism_hint.put(componentId,
+					// stormTopo.get_bolts().get(componentId).get_common().get_parallelism_hint());
+
+					// adding bolt to host
+					this.nodeStats.get(host).bolts_on_node
+							.add(executorSummary);
+					// getting parallelism hint
+					this.componentStats.get(componentId).parallelism_hint = stormTopo
+							.get_bolts().get(componentId).get_common()
+							.get_parallelism_hint();
+					parallelismHints.put(topo.get_id() + ":" + componentId,
+							this.componentStats.get(componentId).parallelism_hint);
+				} else if (stormTopo.get_spouts().containsKey(componentId) == true) {
+					// this.location_stats.get(host).get("spouts").add(executorSummary);
+					// this.parallelism_hint.put(componentId,
+					// stormTopo.get_spouts().get(componentId).get_common().get_parallelism_hint());
+
+					// adding spout to host
+					this.nodeStats.get(host).spouts_on_node
+							.add(executorSummary);
+					// getting parallelism hint
+					this.componentStats.get(componentId).parallelism_hint = stormTopo
+							.get_spouts().get(componentId).get_common()
+							.get_parallelism_hint();
+					parallelismHints.put(topo.get_id() + ":" + componentId,
+							this.componentStats.get(componentId).parallelism_hint);
+				} else {
+					LOG.info("ERROR: type of component not determined!");
+				}
 
+				// get transfer info
+				Map<String, Map<String, Long>> transfer = executorStats
+						.get_transferred();
+				// get emit info
+				Map<String, Map<String, Long>> emit = executorStats
+						.get_emitted();
+
+				// sinks and bolts that emit only on named streams have no
+				// "default" counts, they still get latency and capacity
+				long totalTransferOutput = allTime(transfer, "default");
+				long totalEmitOutput = allTime(emit, "default");
+
+				int slot = this.statsTable.slot(this.statsTable.key(
+						topo.get_id(), taskId));
+				RateTracker transferRate = this.statsTable
+						.getTransfer(slot);
+				RateTracker emitRate = this.statsTable.getEmit(slot);
+				long prevTransferOutput = transferRate.getLastRaw();
+				long prevEmitOutput = emitRate.getLastRaw();
+
+				// get throughput, a counter that went backwards means the
+				// worker restarted
+				int uptime = executorSummary.get_uptime_secs();
+				long transfer_throughput = transferRate.record(pollTime,
+						totalTransferOutput, uptime);
+				long emit_throughput = emitRate.record(pollTime,
+						totalEmitOutput, uptime);
+
+				if (LOG.isDebugEnabled()) {
+					LOG.debug(host + ':' + port + ':' + componentId + ":"
+							+ topo.get_id() + ":" + taskId + ","
+							+ totalTransferOutput + ","
+							+ prevTransferOutput + ","
+							+ transfer_throughput + "," + totalEmitOutput
+							+ "," + prevEmitOutput + "," + emit_throughput);
 				}
+				// LOG.info("-->transfered: {}\n -->emmitted: {}",
+				// executorStats.get_transferred(),
+				// executorStats.get_emitted());
 
-				LOG.info("COMPONENT STATS:");
+				// get node stats
 				/*
-				 * for(Map.Entry<String, Integer> entry:
-				 * this.indv_component_stats.entrySet()) {
-				 * LOG.info("Component: {} avg throughput: {}", entry.getKey(),
-				 * entry.getValue() /
-				 * this.parallelism_hint.get(entry.getKey()));
-				 * 
-				 * }
+				 * if (this.node_stats.containsKey(host) == false) {
+				 * this.node_stats.put(host, 0); }
+				 * this.node_stats.put(host, this.node_stats.get(host) +
+				 * transfer_throughput);
 				 */
-				int num_output_bolt = 0;
-				int total_output_bolt_emit = 0;
-				String output_bolts = "";
-				for (Map.Entry<String, ComponentStats> cs : this.componentStats
-						.entrySet()) {
-					int avg_transfer_throughput = cs.getValue().total_transfer_throughput
-							/ cs.getValue().parallelism_hint;
-					int avg_emit_throughput = cs.getValue().total_emit_throughput
-							/ cs.getValue().parallelism_hint;
-					if (cs.getKey().matches(".*_output_.*")) {
-						LOG.info(
-								"Component: {}(output) total throughput (transfer): {} (emit): {} avg throughput (transfer): {} (emit): {}",
-								new Object[] { cs.getKey(), 
-										cs.getValue().total_transfer_throughput,
-										cs.getValue().total_emit_throughput,
-										avg_transfer_throughput,
-										avg_emit_throughput });
-						num_output_bolt++;
-						total_output_bolt_emit += cs.getValue().total_emit_throughput;
-						output_bolts += cs.getKey() + ",";
-					} else {
-						LOG.info(
-								"Component: {} total throughput (transfer): {} (emit): {} avg throughput (transfer): {} (emit): {}",
-								new Object[] { cs.getKey(), 
-										cs.getValue().total_transfer_throughput,
-										cs.getValue().total_emit_throughput,
-										avg_transfer_throughput,
-										avg_emit_throughput });
-					}
+				this.nodeStats.get(host).transfer_throughput += transfer_throughput;
+				this.nodeStats.get(host).emit_throughput += emit_throughput;
+
+				// get node component stats
+				/*
+				 * if (stormTopo.get_bolts().containsKey(componentId) ==
+				 * true){
+				 * this.node_component_stats.get(host).put("bolts",
+				 * this.node_component_stats.get(host).get("bolts")+
+				 * transfer_throughput); } else if
+				 * (stormTopo.get_spouts().containsKey(componentId) ==
+				 * true) {
+				 * this.node_component_stats.get(host).put("spouts",
+				 * this.node_component_stats.get(host).get("spouts")+
+				 * transfer_throughput); }
+				 */
+				if (stormTopo.get_bolts().containsKey(componentId) == true) {
+					this.nodeStats.get(host).bolts_transfer_throughput += transfer_throughput;
+					this.nodeStats.get(host).bolts_emit_throughput += emit_throughput;
+				} else if (stormTopo.get_spouts().containsKey(
+						componentId) == true) {
+					this.nodeStats.get(host).spouts_transfer_throughput += transfer_throughput;
+					this.nodeStats.get(host).spouts_emit_throughput += emit_throughput;
+				}
+
+				// get individual component stats
+				/*
+				 * if(this.indv_component_stats.containsKey(componentId)==
+				 * false) { this.indv_component_stats.put(componentId,
+				 * 0); } this.indv_component_stats.put(componentId,
+				 * this.indv_component_stats.get(componentId) +
+				 * transfer_throughput);
+				 */
+
+				this.componentStats.get(componentId).total_transfer_throughput += transfer_throughput;
+				this.componentStats.get(componentId).total_emit_throughput += emit_throughput;
+
+				polled.add(new StatsSnapshot.ExecutorStat(topo
+						.get_id(), componentId, host, port, executorSummary
+						.get_executor_info().get_task_start(),
+						executorSummary.get_executor_info().get_task_end(),
+						stormTopo.get_spouts().containsKey(componentId),
+						transfer_throughput, emit_throughput,
+						rates(transferRate), rates(emitRate), getLatency(
+								executorStats, uptime), getInputRates(
+								executorStats, uptime)));
+
+				// write to file
+				long unixTime = (System.currentTimeMillis() / 1000)
+						- this.startTimes.get(topo.get_id());
+				try {
+					this.complete_log.writeExecutor(unixTime,
+							this.sched_type, host, port, componentId,
+							topo.get_id(), taskId, transfer_throughput);
+				} catch (IOException ex) {
+					LOG.info("error! writin to file {}", ex);
+				}
+			}
+			LOG.info("!!!- GENERAL STATISTICS -!!!");
+			LOG.info("OVERALL THROUGHPUT:");
+			for (Map.Entry<String, NodeStats> ns : this.nodeStats
+					.entrySet()) {
+				LOG.info(
+						"{} -> transfer: {}    emit: {}",
+						new Object[] { ns.getKey(),
+								ns.getValue().transfer_throughput,
+								ns.getValue().emit_throughput });
+			}
+			// this.node_stats.clear();
+			LOG.info("NODE STATS:");
+			/*
+			 * for(Map.Entry<String, HashMap<String,
+			 * ArrayList<ExecutorSummary>>> entry :
+			 * this.location_stats.entrySet()) { LOG.info("{}:",
+			 * entry.getKey());
+			 * LOG.info("# of Spouts: {}    # of Bolts: {}",
+			 * entry.getValue().get("spouts").size(),
+			 * entry.getValue().get("bolts").size()); LOG.info(
+			 * "total Spout throughput: {}    total Bolt throughput: {}",
+			 * this.node_component_stats.get(entry.getKey()).get("spouts"),
+			 * this.node_component_stats.get(entry.getKey()).get("bolts"));
+			 * //LOG.info("Spouts: {}\nBolts: {}",
+			 * entry.getValue().get("spouts"),
+			 * entry.getValue().get("bolts")); }
+			 */
+			for (Map.Entry<String, NodeStats> ns : this.nodeStats
+					.entrySet()) {
+				LOG.info("{}:", ns.getKey());
+				LOG.info("# of Spouts: {}    # of Bolts: {}",
+						ns.getValue().spouts_on_node.size(),
+						ns.getValue().bolts_on_node.size());
+				LOG.info("total spout throughput (transfer):{} (emit):{}",
+						ns.getValue().spouts_transfer_throughput,
+						ns.getValue().spouts_emit_throughput);
+				LOG.info("total bolt throughput (transfer):{} (emit):{}",
+						ns.getValue().bolts_transfer_throughput,
+						ns.getValue().bolts_emit_throughput);
+
+			}
+
+			LOG.info("COMPONENT STATS:");
+			/*
+			 * for(Map.Entry<String, Integer> entry:
+			 * this.indv_component_stats.entrySet()) {
+			 * LOG.info("Component: {} avg throughput: {}", entry.getKey(),
+			 * entry.getValue() /
+			 * this.parallelism_hint.get(entry.getKey()));
+			 * 
+			 * }
+			 */
+			int num_output_bolt = 0;
+			long total_output_bolt_emit = 0;
+			String output_bolts = "";
+			for (Map.Entry<String, ComponentStats> cs : this.componentStats
+					.entrySet()) {
+				int parallelism_hint = Math.max(1,
+						cs.getValue().parallelism_hint);
+				long avg_transfer_throughput = cs.getValue().total_transfer_throughput
+						/ parallelism_hint;
+				long avg_emit_throughput = cs.getValue().total_emit_throughput
+						/ parallelism_hint;
+				if (cs.getKey().matches(".*_output_.*")) {
+					LOG.info(
+							"Component: {}(output) total throughput (transfer): {} (emit): {} avg throughput (transfer): {} (emit): {}",
+							new Object[] { cs.getKey(), 
+									cs.getValue().total_transfer_throughput,
+									cs.getValue().total_emit_throughput,
+									avg_transfer_throughput,
+									avg_emit_throughput });
+					num_output_bolt++;
+					total_output_bolt_emit += cs.getValue().total_emit_throughput;
+					output_bolts += cs.getKey() + ",";
+				} else {
+					LOG.info(
+							"Component: {} total throughput (transfer): {} (emit): {} avg throughput (transfer): {} (emit): {}",
+							new Object[] { cs.getKey(), 
+									cs.getValue().total_transfer_throughput,
+									cs.getValue().total_emit_throughput,
+									avg_transfer_throughput,
+									avg_emit_throughput });
 				}
-				if (num_output_bolt > 0) {
-					LOG.info("Output Bolts stats: ");
-
-					long unixTime = (System.currentTimeMillis() / 1000)
-							- this.startTimes.get(topo.get_id());
-					String data = String.valueOf(unixTime) + ':' +this.sched_type+","+ output_bolts
-							+ ":" + topo.get_id() + ":"
-							+ total_output_bolt_emit / num_output_bolt + "\n";
-					LOG.info(data);
-					try {
-						// LOG.info("writting to file...");
-
-						FileWriter fileWritter = new FileWriter(
-								this.output_bolt_log, true);
-						BufferedWriter bufferWritter = new BufferedWriter(
-								fileWritter);
-						bufferWritter.append(data);
-						bufferWritter.close();
-						fileWritter.close();
-					} catch (IOException ex) {
-						LOG.info("error! writin to file {}", ex);
-					}
+			}
+			if (num_output_bolt > 0) {
+				LOG.info("Output Bolts stats: ");
+
+				long unixTime = (System.currentTimeMillis() / 1000)
+						- this.startTimes.get(topo.get_id());
+				long avg_output_bolt_emit = total_output_bolt_emit
+						/ num_output_bolt;
+				LOG.info("{}:{},{}:{}:{}", new Object[] { unixTime,
+						this.sched_type, output_bolts, topo.get_id(),
+						avg_output_bolt_emit });
+				try {
+					this.output_bolt_log.writeOutput(unixTime,
+							this.sched_type, output_bolts, topo.get_id(),
+							avg_output_bolt_emit);
+				} catch (IOException ex) {
+					LOG.info("error! writin to file {}", ex);
 				}
 			}
-		} catch (TException e) {
-			e.printStackTrace();
 		}
+		// one flush per poll instead of one open/close per line
+		try {
+			this.complete_log.flush();
+			this.output_bolt_log.flush();
+		} catch (IOException ex) {
+			LOG.info("error! writin to file {}", ex);
+		}
+
+		// forget executors that have not been reported for a whole window
+		long maxWindowMs = 0;
+		for (long windowMs : this.rateWindowsMs) {
+			maxWindowMs = Math.max(maxWindowMs, windowMs);
+		}
+		this.statsTable.evict(pollTime - maxWindowMs);
+		return new StatsSnapshot(pollTime, polled, parallelismHints,
+				this.rateWindowsMs);
+	}
+
+	/**
+	 * Read bolt execute/process latency or spout complete latency out of the
+	 * ExecutorSpecificStats union, over the LATENCY_WINDOW window
+	 */
+	static StatsSnapshot.LatencyStat getLatency(ExecutorStats executorStats,
+			int uptimeSecs) {
+		ExecutorSpecificStats specific = executorStats.get_specific();
+		if (specific == null) {
+			return StatsSnapshot.LatencyStat.NONE;
+		}
+		if (specific.is_set_bolt() == true) {
+			BoltStats bolt = specific.get_bolt();
+			Map<GlobalStreamId, Long> executed = window(bolt.get_executed());
+			Map<GlobalStreamId, Double> executeMs = window(bolt
+					.get_execute_ms_avg());
+			Map<GlobalStreamId, Double> processMs = window(bolt
+					.get_process_ms_avg());
+			long totalExecuted = 0;
+			double executeSum = 0.0;
+			double processSum = 0.0;
+			for (Map.Entry<GlobalStreamId, Long> entry : executed.entrySet()) {
+				long count = entry.getValue() == null ? 0 : entry.getValue();
+				Double execute = executeMs.get(entry.getKey());
+				Double process = processMs.get(entry.getKey());
+				totalExecuted += count;
+				executeSum += count * (execute == null ? 0.0 : execute);
+				processSum += count * (process == null ? 0.0 : process);
+			}
+			// the window is shorter than 10 minutes for young executors
+			int windowSecs = uptimeSecs > 0 ? Math.min(uptimeSecs,
+					LATENCY_WINDOW_SECS) : LATENCY_WINDOW_SECS;
+			return new StatsSnapshot.LatencyStat(totalExecuted == 0 ? 0.0
+					: executeSum / totalExecuted, totalExecuted == 0 ? 0.0
+					: processSum / totalExecuted, 0.0, totalExecuted,
+					sum(window(bolt.get_acked())),
+					sum(window(bolt.get_failed())), executeSum
+							/ (windowSecs * 1000.0));
+		}
+		if (specific.is_set_spout() == true) {
+			SpoutStats spout = specific.get_spout();
+			Map<String, Long> acked = window(spout.get_acked());
+			Map<String, Double> completeMs = window(spout.get_complete_ms_avg());
+			long totalAcked = 0;
+			double completeSum = 0.0;
+			for (Map.Entry<String, Long> entry : acked.entrySet()) {
+				long count = entry.getValue() == null ? 0 : entry.getValue();
+				Double complete = completeMs.get(entry.getKey());
+				totalAcked += count;
+				completeSum += count * (complete == null ? 0.0 : complete);
+			}
+			return new StatsSnapshot.LatencyStat(0.0, 0.0, totalAcked == 0 ? 0.0
+					: completeSum / totalAcked, 0, totalAcked,
+					sum(window(spout.get_failed())), 0.0);
+		}
+		return StatsSnapshot.LatencyStat.NONE;
+	}
+
+	/**
+	 * Read the tuples per second a bolt executed from each source component
+	 * over the LATENCY_WINDOW window, empty for spouts
+	 */
+	static Map<String, Double> getInputRates(ExecutorStats executorStats,
+			int uptimeSecs) {
+		ExecutorSpecificStats specific = executorStats.get_specific();
+		if (specific == null || specific.is_set_bolt() == false) {
+			return Collections.emptyMap();
+		}
+		int windowSecs = uptimeSecs > 0 ? Math.min(uptimeSecs,
+				LATENCY_WINDOW_SECS) : LATENCY_WINDOW_SECS;
+		Map<String, Double> retVal = new HashMap<String, Double>();
+		for (Map.Entry<GlobalStreamId, Long> entry : window(
+				specific.get_bolt().get_executed()).entrySet()) {
+			if (entry.getValue() == null) {
+				continue;
+			}
+			String source = entry.getKey().get_componentId();
+			Double rate = retVal.get(source);
+			retVal.put(source, (rate == null ? 0.0 : rate)
+					+ entry.getValue() / (double) windowSecs);
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return all-time count of stream, 0 if it never emitted
+	 */
+	private static long allTime(Map<String, Map<String, Long>> counts,
+			String stream) {
+		if (counts == null || counts.get(":all-time") == null) {
+			return 0;
+		}
+		Long count = counts.get(":all-time").get(stream);
+		return count == null ? 0 : count.longValue();
+	}
+
+	private static <K, V> Map<K, V> window(Map<String, Map<K, V>> stats) {
+		if (stats == null || stats.get(LATENCY_WINDOW) == null) {
+			return Collections.emptyMap();
+		}
+		return stats.get(LATENCY_WINDOW);
+	}
+
+	private static <K> long sum(Map<K, Long> counts) {
+		long retVal = 0;
+		for (Long count : counts.values()) {
+			if (count != null) {
+				retVal += count;
+			}
+		}
+		return retVal;
+	}
+
+	private static double[] rates(RateTracker tracker) {
+		double[] retVal = new double[tracker.getNumWindows()];
+		for (int i = 0; i < retVal.length; i++) {
+			retVal[i] = tracker.getRate(i);
+		}
+		return retVal;
 	}
 
 }
@@ -1,10 +1,19 @@
 package backtype.storm.scheduler.Elasticity;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,108 +34,473 @@ public class GlobalState {
 	
 	private static GlobalState instance = null;
 	
+	//latest published copy, read by other threads without locking
+	private static final AtomicReference<GlobalStateSnapshot> snapshot = new AtomicReference<GlobalStateSnapshot>(GlobalStateSnapshot.EMPTY);
+	
 	//supervisor id -> Node
 	public Map<String, Node> nodes;
 	//topology id -> <component name - > Component>
 	public Map<String, Map<String, Component>>components;
 	
 	//Topology id -> <worker slot -> collection<executors>>
-	public Map <String, Map<WorkerSlot, List<ExecutorDetails>>> schedState;
+	public Map <String, Map<WorkerSlot, Set<ExecutorDetails>>> schedState;
+	//Topology id -> <executor -> worker slot>, reverse index of schedState
+	private Map<String, Map<ExecutorDetails, WorkerSlot>> schedIndex;
+	
+	//Topology id -> <executor -> worker slot>, the assignments nodes reflects
+	private Map<String, Map<ExecutorDetails, WorkerSlot>> assigned;
+	//topologies whose assignment changed since schedState was stored
+	private Set<String> schedDirty;
+	
+	//supervisor id -> number of slots holding executors in schedState
+	private Map<String, Integer> usedSlots;
+	//supervisor ids of nodes without executors in schedState
+	private Set<String> emptyNodes;
+	//supervisor ids of nodes with both used and free slots in schedState
+	private Set<String> underutilizedNodes;
 	
+	//parts of the last snapshot, reused by publish() while unchanged
+	private long version = 0;
+	private Map<String, GlobalStateSnapshot.NodeState> publishedNodes;
+	private Set<String> nodesChanged;
+	private Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> publishedSched;
+	private Set<String> schedChanged;
 	
+	//topology id -> rebalance progress
+	private Map<String, TopologyRebalance> rebalances;
 	
-	public boolean isBalanced = false;
+	//supervisor ids the last scale in plan found releasable
+	private Set<String> releasableNodes;
 	
-	private GlobalState() {
-		this.schedState = new HashMap<String, Map<WorkerSlot, List<ExecutorDetails>>>();
+	// package-private so tests can start from an empty state
+	GlobalState() {
+		this.schedState = new HashMap<String, Map<WorkerSlot, Set<ExecutorDetails>>>();
+		this.schedIndex = new HashMap<String, Map<ExecutorDetails, WorkerSlot>>();
+		this.assigned = new HashMap<String, Map<ExecutorDetails, WorkerSlot>>();
+		this.schedDirty = new HashSet<String>();
+		this.usedSlots = new HashMap<String, Integer>();
+		this.emptyNodes = new LinkedHashSet<String>();
+		this.underutilizedNodes = new LinkedHashSet<String>();
+		this.publishedNodes = new HashMap<String, GlobalStateSnapshot.NodeState>();
+		this.nodesChanged = new HashSet<String>();
+		this.publishedSched = new HashMap<String, Map<WorkerSlot, Set<ExecutorDetails>>>();
+		this.schedChanged = new HashSet<String>();
+		this.rebalances = new HashMap<String, TopologyRebalance>();
+		this.releasableNodes = new LinkedHashSet<String>();
 	}
 
-	public static GlobalState getInstance() {
+	public static synchronized GlobalState getInstance() {
 		if(instance==null) {
 			instance = new GlobalState();
 		}
 		return instance;
 	}
 	
+	/**
+	 * @return the state as of the last publish(), safe to read from any thread
+	 */
+	public static GlobalStateSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * Publish the current state as a new GlobalStateSnapshot. Called by the
+	 * scheduling thread after every round of changes.
+	 */
+	public void publish() {
+		Map<String, GlobalStateSnapshot.NodeState> nodeStates = new HashMap<String, GlobalStateSnapshot.NodeState>();
+		if(this.nodes != null) {
+			for(Node n : this.nodes.values()) {
+				GlobalStateSnapshot.NodeState ns = this.publishedNodes.get(n.supervisor_id);
+				if(ns == null || this.nodesChanged.contains(n.supervisor_id) == true || ns.profile != n.profile) {
+					ns = new GlobalStateSnapshot.NodeState(n);
+				}
+				nodeStates.put(n.supervisor_id, ns);
+			}
+		}
+		Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> sched = new HashMap<String, Map<WorkerSlot, Set<ExecutorDetails>>>();
+		for(Map.Entry<String, Map<WorkerSlot, Set<ExecutorDetails>>> entry : this.schedState.entrySet()) {
+			Map<WorkerSlot, Set<ExecutorDetails>> copy = this.publishedSched.get(entry.getKey());
+			if(copy == null || this.schedChanged.contains(entry.getKey()) == true) {
+				copy = GlobalStateSnapshot.copySched(entry.getValue());
+			}
+			sched.put(entry.getKey(), copy);
+		}
+		Map<String, Map<String, Component>> comps = new HashMap<String, Map<String, Component>>();
+		if(this.components != null) {
+			for(Map.Entry<String, Map<String, Component>> entry : this.components.entrySet()) {
+				comps.put(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+			}
+		}
+		Map<String, TopologyRebalance.Phase> phases = new HashMap<String, TopologyRebalance.Phase>();
+		for(TopologyRebalance rebalance : this.rebalances.values()) {
+			phases.put(rebalance.topologyId, rebalance.getPhase());
+		}
+		this.version++;
+		snapshot.set(new GlobalStateSnapshot(this.version, nodeStates, comps, sched,
+				new LinkedHashSet<String>(this.emptyNodes), new LinkedHashSet<String>(this.underutilizedNodes), phases,
+				new LinkedHashSet<String>(this.releasableNodes)));
+		this.publishedNodes = nodeStates;
+		this.publishedSched = sched;
+		this.nodesChanged.clear();
+		this.schedChanged.clear();
+	}
+	
+	/**
+	 * @return rebalance progress of topology topoId, IDLE if never seen
+	 */
+	public TopologyRebalance getRebalance(String topoId) {
+		TopologyRebalance retVal = this.rebalances.get(topoId);
+		if(retVal == null) {
+			retVal = new TopologyRebalance(topoId);
+			this.rebalances.put(topoId, retVal);
+		}
+		return retVal;
+	}
+	
+	public Collection<TopologyRebalance> getRebalances() {
+		return this.rebalances.values();
+	}
+	
+	private boolean isPlanned(String topoId) {
+		TopologyRebalance rebalance = this.rebalances.get(topoId);
+		return rebalance != null && rebalance.getPhase() == TopologyRebalance.Phase.PLANNED;
+	}
+	
+	/**
+	 * Write the stored scheduling state and rebalance progress, see
+	 * SchedulerCheckpoint
+	 */
+	public void writeCheckpoint(DataOutput out) throws IOException {
+		out.writeInt(this.rebalances.size());
+		for(TopologyRebalance rebalance : this.rebalances.values()) {
+			rebalance.writeTo(out);
+		}
+		out.writeInt(this.schedState.size());
+		for(Map.Entry<String, Map<WorkerSlot, Set<ExecutorDetails>>> entry : this.schedState.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for(Map.Entry<WorkerSlot, Set<ExecutorDetails>> sched : entry.getValue().entrySet()) {
+				out.writeUTF(sched.getKey().getNodeId());
+				out.writeInt(sched.getKey().getPort());
+				out.writeInt(sched.getValue().size());
+				for(ExecutorDetails exec : sched.getValue()) {
+					out.writeInt(exec.getStartTask());
+					out.writeInt(exec.getEndTask());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Restore the scheduling state written by writeCheckpoint. Topologies
+	 * that are running normally get their state replaced by the real
+	 * assignment on the next storeState; a topology that was PLANNED keeps
+	 * it to make its migration plan.
+	 */
+	public void readCheckpoint(DataInput in) throws IOException {
+		Map<String, TopologyRebalance> loadedRebalances = new HashMap<String, TopologyRebalance>();
+		int numRebalances = in.readInt();
+		for(int r = 0; r < numRebalances; r++) {
+			TopologyRebalance rebalance = TopologyRebalance.readFrom(in);
+			loadedRebalances.put(rebalance.topologyId, rebalance);
+		}
+		Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> loaded = new HashMap<String, Map<WorkerSlot, Set<ExecutorDetails>>>();
+		Map<String, Map<ExecutorDetails, WorkerSlot>> loadedIndex = new HashMap<String, Map<ExecutorDetails, WorkerSlot>>();
+		int topos = in.readInt();
+		for(int t = 0; t < topos; t++) {
+			String topoId = in.readUTF();
+			Map<WorkerSlot, Set<ExecutorDetails>> topoSched = new HashMap<WorkerSlot, Set<ExecutorDetails>>();
+			Map<ExecutorDetails, WorkerSlot> topoIndex = new HashMap<ExecutorDetails, WorkerSlot>();
+			int slots = in.readInt();
+			for(int s = 0; s < slots; s++) {
+				WorkerSlot ws = new WorkerSlot(in.readUTF(), in.readInt());
+				Set<ExecutorDetails> execs = new LinkedHashSet<ExecutorDetails>();
+				int n = in.readInt();
+				for(int e = 0; e < n; e++) {
+					ExecutorDetails exec = new ExecutorDetails(in.readInt(), in.readInt());
+					execs.add(exec);
+					topoIndex.put(exec, ws);
+				}
+				topoSched.put(ws, execs);
+			}
+			loaded.put(topoId, topoSched);
+			loadedIndex.put(topoId, topoIndex);
+		}
+		
+		for(Map<WorkerSlot, Set<ExecutorDetails>> old : this.schedState.values()) {
+			this.releaseSlots(old);
+		}
+		this.schedState = loaded;
+		this.schedIndex = loadedIndex;
+		for(Map<WorkerSlot, Set<ExecutorDetails>> topoSched : loaded.values()) {
+			for(Map.Entry<WorkerSlot, Set<ExecutorDetails>> sched : topoSched.entrySet()) {
+				if(sched.getValue().isEmpty() == false) {
+					this.slotFilled(sched.getKey());
+				}
+			}
+		}
+		this.schedChanged.addAll(loaded.keySet());
+		this.rebalances = loadedRebalances;
+		this.publish();
+	}
+	
 	public void storeState(Cluster cluster, Topologies topologies) {
 		this.storeSchedState(cluster, topologies);
+		this.publish();
 	}
 	
+	/**
+	 * Store the current assignment of every topology as schedState. Only
+	 * topologies whose assignment changed since the last call are rebuilt.
+	 * A PLANNED topology whose executors Nimbus released keeps its state
+	 * until the migration plan is made from it.
+	 */
 	public void storeSchedState(Cluster cluster, Topologies topologies) {
-		this.schedState = new HashMap<String, Map<WorkerSlot, List<ExecutorDetails>>>();
+		// the cluster may have been changed since updateInfo, e.g. by EvenScheduler
+		this.syncNodes(cluster);
+		this.syncAssignments(cluster);
 		
+		Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> newState = new HashMap<String, Map<WorkerSlot, Set<ExecutorDetails>>>();
+		Map<String, Map<ExecutorDetails, WorkerSlot>> newIndex = new HashMap<String, Map<ExecutorDetails, WorkerSlot>>();
 		for(TopologyDetails topo : topologies.getTopologies()) {
 			if(cluster.getAssignmentById(topo.getId())!=null) {
-				
-				Map<WorkerSlot, List<ExecutorDetails>> topoSched = new HashMap<WorkerSlot, List<ExecutorDetails>>();
-				for(Map.Entry<ExecutorDetails, WorkerSlot> entry : cluster.getAssignmentById(topo.getId()).getExecutorToSlot().entrySet()) {
-					if(topoSched.containsKey(entry.getValue()) == false) {
-						topoSched.put(entry.getValue(), new ArrayList<ExecutorDetails>());
+				Map<WorkerSlot, Set<ExecutorDetails>> topoSched = this.schedState.get(topo.getId());
+				Map<ExecutorDetails, WorkerSlot> topoIndex = this.schedIndex.get(topo.getId());
+				if(topoSched == null || this.schedDirty.contains(topo.getId()) == true) {
+					this.releaseSlots(topoSched);
+					topoSched = new HashMap<WorkerSlot, Set<ExecutorDetails>>();
+					topoIndex = new HashMap<ExecutorDetails, WorkerSlot>(this.assigned.get(topo.getId()));
+					for(Map.Entry<ExecutorDetails, WorkerSlot> entry : topoIndex.entrySet()) {
+						if(topoSched.containsKey(entry.getValue()) == false) {
+							topoSched.put(entry.getValue(), new LinkedHashSet<ExecutorDetails>());
+						}
+						topoSched.get(entry.getValue()).add(entry.getKey());
+					}
+					for(WorkerSlot ws : topoSched.keySet()) {
+						this.slotFilled(ws);
 					}
-					topoSched.get(entry.getValue()).add(entry.getKey());
+					this.schedChanged.add(topo.getId());
 				}
-				
-				this.schedState.put(topo.getId(), topoSched);
-				
+				newState.put(topo.getId(), topoSched);
+				newIndex.put(topo.getId(), topoIndex);
+			} else if(this.isPlanned(topo.getId()) == true && this.schedState.containsKey(topo.getId()) == true) {
+				newState.put(topo.getId(), this.schedState.get(topo.getId()));
+				newIndex.put(topo.getId(), this.schedIndex.get(topo.getId()));
+			}
+		}
+		for(Map.Entry<String, Map<WorkerSlot, Set<ExecutorDetails>>> old : this.schedState.entrySet()) {
+			if(newState.containsKey(old.getKey()) == false) {
+				this.releaseSlots(old.getValue());
 			}
-			
+		}
+		this.schedState = newState;
+		this.schedIndex = newIndex;
+		this.schedDirty.clear();
+	}
+	
+	private void releaseSlots(Map<WorkerSlot, Set<ExecutorDetails>> topoSched) {
+		if(topoSched == null) {
+			return;
+		}
+		for(Map.Entry<WorkerSlot, Set<ExecutorDetails>> sched : topoSched.entrySet()) {
+			if(sched.getValue().isEmpty() == false) {
+				this.slotEmptied(sched.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * A slot of schedState got its first executor
+	 */
+	private void slotFilled(WorkerSlot ws) {
+		Integer used = this.usedSlots.get(ws.getNodeId());
+		this.usedSlots.put(ws.getNodeId(), used == null ? 1 : used + 1);
+		this.refreshOccupancy(ws.getNodeId());
+	}
+	
+	/**
+	 * A slot of schedState lost its last executor
+	 */
+	private void slotEmptied(WorkerSlot ws) {
+		Integer used = this.usedSlots.get(ws.getNodeId());
+		if(used == null || used <= 1) {
+			this.usedSlots.remove(ws.getNodeId());
+		} else {
+			this.usedSlots.put(ws.getNodeId(), used - 1);
+		}
+		this.refreshOccupancy(ws.getNodeId());
+	}
+	
+	private void refreshOccupancy(String supId) {
+		Node n = this.nodes == null ? null : this.nodes.get(supId);
+		this.emptyNodes.remove(supId);
+		this.underutilizedNodes.remove(supId);
+		if(n == null) {
+			return;
+		}
+		Integer used = this.usedSlots.get(supId);
+		if(used == null) {
+			this.emptyNodes.add(supId);
+		} else if(used < n.slots.size()) {
+			this.underutilizedNodes.add(supId);
 		}
 	}
 	
 	public void updateInfo(Cluster cluster, Topologies topologies) {
-		this.nodes = this.getNodes(cluster);
-		this.components = this.getComponents(topologies);
+		this.updateInfo(cluster, topologies, ClusterSnapshot.take());
 	}
 
-	public  Map<String, Map<String, Component>> getComponents(Topologies topologies) {
+	public void updateInfo(Cluster cluster, Topologies topologies, ClusterSnapshot snapshot) {
+		this.syncNodes(cluster);
+		this.syncAssignments(cluster);
+		ProfileResolver.getInstance().attach(this.nodes);
+		this.components = this.getComponents(topologies, snapshot);
+		this.rebalances.keySet().retainAll(this.components.keySet());
+		this.publish();
+	}
+
+	public  Map<String, Map<String, Component>> getComponents(Topologies topologies, ClusterSnapshot snapshot) {
 		Map<String, Map<String, Component>> retVal = new HashMap<String, Map<String, Component>>();
-		GetTopologyInfo gt = new GetTopologyInfo();
+		TopologyStructureCache cache = TopologyStructureCache.getInstance();
+		List<String> liveTopoIds = new ArrayList<String>();
 		
 		for(TopologyDetails topo : topologies.getTopologies()) {
-			gt.getTopologyInfo(topo.getId());
-			for(Component comp : gt.all_comp.values()) {
-				comp.execs = HelperFuncs.compToExecs(topo, comp.id);
-			}
-			retVal.put(topo.getId(), gt.all_comp);
-			
+			retVal.put(topo.getId(), cache.getComponents(topo, snapshot));
+			liveTopoIds.add(topo.getId());
 		}
+		cache.retainAll(liveTopoIds);
 		return retVal;
 	}
 	
+	/**
+	 * Build all nodes from scratch
+	 */
 	public Map<String, Node> getNodes(Cluster cluster) {
-		Map<String, Node> retVal = new HashMap<String, Node>();
-		for (Map.Entry<String, SupervisorDetails> sup : cluster
-				.getSupervisors().entrySet()) {
+		this.nodes = null;
+		this.syncNodes(cluster);
+		this.syncAssignments(cluster);
+		return this.nodes;
+	}
 
-			Node newNode = new Node(sup.getKey(), cluster);
-			retVal.put(sup.getKey(), newNode);
+	/**
+	 * Keep the nodes of the previous round if the supervisors did not change.
+	 * A supervisor that joined only adds a node; one that left, or whose host
+	 * or slots changed, makes all nodes be rebuilt, which is rare enough not
+	 * to be worth tracking executor by executor.
+	 */
+	private void syncNodes(Cluster cluster) {
+		Map<String, SupervisorDetails> sups = cluster.getSupervisors();
+		boolean rebuild = (this.nodes == null);
+		if (rebuild == false) {
+			for (Node n : this.nodes.values()) {
+				SupervisorDetails sup = sups.get(n.supervisor_id);
+				if (sup == null || sup.getHost().equals(n.hostname) == false
+						|| new HashSet<WorkerSlot>(cluster.getAssignableSlots(sup)).equals(new HashSet<WorkerSlot>(n.slots)) == false) {
+					LOG.info("Supervisor {} changed, rebuilding nodes", n.supervisor_id);
+					rebuild = true;
+					break;
+				}
+				n.sup = sup;
+			}
 		}
+		if (rebuild == true) {
+			this.nodes = new HashMap<String, Node>();
+			// forget what was applied, so every executor is placed again
+			this.assigned.clear();
+		}
+		if (rebuild == true) {
+			this.emptyNodes.clear();
+			this.underutilizedNodes.clear();
+		}
+		for (Map.Entry<String, SupervisorDetails> sup : sups.entrySet()) {
+			if (this.nodes.containsKey(sup.getKey()) == false) {
+				this.nodes.put(sup.getKey(), new Node(sup.getKey(), cluster));
+				this.nodesChanged.add(sup.getKey());
+				this.refreshOccupancy(sup.getKey());
+			}
+		}
+	}
 
-		for (Map.Entry<String, SchedulerAssignment> entry : cluster
-				.getAssignments().entrySet()) {
-			for (Map.Entry<ExecutorDetails, WorkerSlot> exec : entry.getValue()
-					.getExecutorToSlot().entrySet()) {
-				if (retVal.containsKey(exec.getValue().getNodeId()) == true) {
-					if (retVal.get(exec.getValue().getNodeId()).slot_to_exec
-							.containsKey(exec.getValue()) == true) {
-						retVal.get(exec.getValue().getNodeId()).slot_to_exec
-								.get(exec.getValue()).add(exec.getKey());
-						retVal.get(exec.getValue().getNodeId()).execs.add(exec
-								.getKey());
-					} else {
-						LOG.info(
-								"ERROR: should have node {} should have worker: {}",
-								exec.getValue().getNodeId(), exec.getValue());
-						return null;
-					}
-				} else {
-					LOG.info("ERROR: should have node {}", exec.getValue()
-							.getNodeId());
-					return null;
+	/**
+	 * Apply the executors added, moved and removed since the last call to
+	 * the nodes, by diffing the cluster's assignments against assigned
+	 */
+	private void syncAssignments(Cluster cluster) {
+		Map<String, SchedulerAssignment> current = cluster.getAssignments();
+
+		Iterator<Map.Entry<String, Map<ExecutorDetails, WorkerSlot>>> topoIt = this.assigned.entrySet().iterator();
+		while (topoIt.hasNext()) {
+			Map.Entry<String, Map<ExecutorDetails, WorkerSlot>> topo = topoIt.next();
+			if (current.containsKey(topo.getKey()) == false) {
+				for (Map.Entry<ExecutorDetails, WorkerSlot> exec : topo.getValue().entrySet()) {
+					this.unplace(exec.getKey(), exec.getValue());
 				}
+				topoIt.remove();
+				this.schedDirty.add(topo.getKey());
+			}
+		}
+
+		for (Map.Entry<String, SchedulerAssignment> entry : current.entrySet()) {
+			Map<ExecutorDetails, WorkerSlot> now = entry.getValue().getExecutorToSlot();
+			Map<ExecutorDetails, WorkerSlot> prev = this.assigned.get(entry.getKey());
+			if (prev == null) {
+				prev = new HashMap<ExecutorDetails, WorkerSlot>();
+				this.assigned.put(entry.getKey(), prev);
+			}
+			boolean changed = false;
+			Iterator<Map.Entry<ExecutorDetails, WorkerSlot>> it = prev.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<ExecutorDetails, WorkerSlot> exec = it.next();
+				if (now.containsKey(exec.getKey()) == false) {
+					this.unplace(exec.getKey(), exec.getValue());
+					it.remove();
+					changed = true;
+				}
+			}
+			for (Map.Entry<ExecutorDetails, WorkerSlot> exec : now.entrySet()) {
+				WorkerSlot old = prev.get(exec.getKey());
+				if (exec.getValue().equals(old) == true) {
+					continue;
+				}
+				if (old != null) {
+					this.unplace(exec.getKey(), old);
+					prev.remove(exec.getKey());
+				}
+				if (this.place(exec.getKey(), exec.getValue()) == true) {
+					prev.put(exec.getKey(), exec.getValue());
+				}
+				changed = true;
+			}
+			if (changed == true) {
+				this.schedDirty.add(entry.getKey());
 			}
 		}
-		return retVal;
+	}
+
+	private boolean place(ExecutorDetails exec, WorkerSlot ws) {
+		Node n = this.nodes.get(ws.getNodeId());
+		if (n == null) {
+			LOG.info("ERROR: should have node {}", ws.getNodeId());
+			return false;
+		}
+		if (n.slot_to_exec.containsKey(ws) == false) {
+			LOG.info("ERROR: should have node {} should have worker: {}", ws.getNodeId(), ws);
+			return false;
+		}
+		n.slot_to_exec.get(ws).add(exec);
+		n.execs.add(exec);
+		this.nodesChanged.add(n.supervisor_id);
+		return true;
+	}
+
+	private void unplace(ExecutorDetails exec, WorkerSlot ws) {
+		Node n = this.nodes.get(ws.getNodeId());
+		if (n != null && n.slot_to_exec.containsKey(ws) == true) {
+			n.slot_to_exec.get(ws).remove(exec);
+			n.execs.remove(exec);
+			this.nodesChanged.add(n.supervisor_id);
+		}
 	}
 	
 	/**
@@ -135,68 +509,96 @@ public class GlobalState {
 	 * @param ws
 	 */
 	public void migrateTask(ExecutorDetails exec, WorkerSlot ws, TopologyDetails topo) {
-		Map<WorkerSlot, List<ExecutorDetails>> schedMap = this.schedState.get(topo.getId());
+		Map<WorkerSlot, Set<ExecutorDetails>> schedMap = this.schedState.get(topo.getId());
+		Map<ExecutorDetails, WorkerSlot> index = this.schedIndex.get(topo.getId());
 		
-		if(this.execExist(exec, topo) == false) {
+		WorkerSlot current = index == null ? null : index.get(exec);
+		if(current == null) {
 			LOG.error("Error: exec {} does not exist!", exec);
 			return;
 		}
+		if(current.equals(ws) == true) {
+			return;
+		}
 		
 		if(schedMap.containsKey(ws)==false) {
-			schedMap.put(ws, new ArrayList<ExecutorDetails>());
+			schedMap.put(ws, new LinkedHashSet<ExecutorDetails>());
 		}
 		
-		for(Map.Entry<WorkerSlot, List<ExecutorDetails>> sched : schedMap.entrySet()) {
-			if(sched.getValue().contains(exec) == true) {
-				sched.getValue().remove(exec);
-			}
+		schedMap.get(current).remove(exec);
+		if(schedMap.get(current).isEmpty() == true) {
+			this.slotEmptied(current);
+		}
+		if(schedMap.get(ws).isEmpty() == true) {
+			this.slotFilled(ws);
 		}
-		
 		schedMap.get(ws).add(exec);
+		index.put(exec, ws);
+		this.schedChanged.add(topo.getId());
+		this.schedDirty.add(topo.getId());
 	}
 	
 	public boolean execExist(ExecutorDetails exec, TopologyDetails topo) {
-		Map<WorkerSlot, List<ExecutorDetails>> schedMap = this.schedState.get(topo.getId());
-		for(Map.Entry<WorkerSlot, List<ExecutorDetails>> sched : schedMap.entrySet()) {
-			if(sched.getValue().contains(exec) == true) {
-				return true;
-			}
-		}
-		return false;
+		Map<ExecutorDetails, WorkerSlot> index = this.schedIndex.get(topo.getId());
+		return index != null && index.containsKey(exec);
 	}
 	
+	/**
+	 * @return slot exec is placed on in schedState, null if it is not
+	 */
+	public WorkerSlot getSlot(ExecutorDetails exec, TopologyDetails topo) {
+		Map<ExecutorDetails, WorkerSlot> index = this.schedIndex.get(topo.getId());
+		return index == null ? null : index.get(exec);
+	}
+	
+	/**
+	 * @return nodes without executors in schedState
+	 */
 	public List<Node> getNewNode () {
-		
 		List<Node> retVal = new ArrayList<Node>();
-		retVal.addAll(this.nodes.values());
-		
-		for(Map.Entry<String, Map<WorkerSlot, List<ExecutorDetails>>> i : this.schedState.entrySet()) {
-			for(Map.Entry<WorkerSlot, List<ExecutorDetails>> k : i.getValue().entrySet()) {
-				if(k.getValue().size() > 0 ){
-					for(Node n : this.nodes.values()) {
-						if(n.slots.contains(k.getKey())){
-							retVal.remove(n);
-						}
-					}
-				}
-			}
+		for(String supId : this.emptyNodes) {
+			retVal.add(this.nodes.get(supId));
 		}
-		/*
-		for (Map.Entry<String, Node> n : this.nodes.entrySet()) {
-			if(n.getValue().execs.size()==0) {
-				retVal.add(n.getValue());
-			}
+		return retVal;
+	}
+	
+	/**
+	 * @return supervisor ids the last scale in plan found releasable
+	 */
+	public Set<String> getReleasableNodes() {
+		return Collections.unmodifiableSet(this.releasableNodes);
+	}
+	
+	public void setReleasableNodes(Collection<String> supIds) {
+		this.releasableNodes = new LinkedHashSet<String>(supIds);
+	}
+	
+	/**
+	 * @return nodes with executors in schedState that still have free slots
+	 */
+	public List<Node> getUnderutilizedNodes() {
+		List<Node> retVal = new ArrayList<Node>();
+		for(String supId : this.underutilizedNodes) {
+			retVal.add(this.nodes.get(supId));
 		}
-		*/
 		return retVal;
 	}
 	
+	/**
+	 * @return number of slots of node supId holding executors in schedState
+	 */
+	public int getUsedSlots(String supId) {
+		Integer used = this.usedSlots.get(supId);
+		return used == null ? 0 : used;
+	}
+	
 	@Override 
 	public String toString(){
 		String str = "";
 		str+="\n!--Nodes--! \n";
 		for (Map.Entry<String, Node> n : this.nodes.entrySet()) {
 			str+="->hostname: "+n.getValue().hostname+" Supervisor Id: "+n.getValue().supervisor_id+"\n";
+			str+="->Profile: "+n.getValue().profile+"\n";
 			str+="->Execs: "+n.getValue().execs+"\n";
 			str+="->WorkerToExec: \n";
 			for(Map.Entry<WorkerSlot, List<ExecutorDetails>> entry : n.getValue().slot_to_exec.entrySet()) {
@@ -217,10 +619,18 @@ public class GlobalState {
 			
 		}
 		
+		str+="\n!--Rebalances--!\n";
+		for(TopologyRebalance rebalance : this.rebalances.values()) {
+			str+="->"+rebalance+"\n";
+		}
+		
+		str+="\n!--Releasable Nodes--!\n";
+		str+="->"+this.releasableNodes+"\n";
+		
 		str+="\n!--Stored Scheduling State--!\n";
-		for(Map.Entry<String, Map<WorkerSlot, List<ExecutorDetails>>> entry : this.schedState.entrySet()) {
+		for(Map.Entry<String, Map<WorkerSlot, Set<ExecutorDetails>>> entry : this.schedState.entrySet()) {
 			str+="->Topology: "+entry.getKey()+"\n";
-			for(Map.Entry<WorkerSlot, List<ExecutorDetails>> sched : entry.getValue().entrySet()) {
+			for(Map.Entry<WorkerSlot, Set<ExecutorDetails>> sched : entry.getValue().entrySet()) {
 				str+="-->WorkerSlot: "+sched.getKey().getNodeId()+":"+sched.getKey().getNodeId()+"\n";
 				str+=sched.getValue()+"\n";
 			}
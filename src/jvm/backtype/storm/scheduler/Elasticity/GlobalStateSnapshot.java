@@ -0,0 +1,170 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+/**
+ * Read only copy of GlobalState, published once per change by the
+ * scheduling thread. Other threads (stats collector, profile server, ...)
+ * read the latest one through GlobalState.getSnapshot() without locking and
+ * always see one consistent round.
+ *
+ * Nothing in a snapshot is modified after it is published. Parts that did not
+ * change since the previous snapshot (a node, the stored schedule of a
+ * topology) are shared with it instead of being copied again.
+ */
+public class GlobalStateSnapshot {
+
+	public static final GlobalStateSnapshot EMPTY = new GlobalStateSnapshot(0,
+			Collections.<String, NodeState> emptyMap(),
+			Collections.<String, Map<String, Component>> emptyMap(),
+			Collections.<String, Map<WorkerSlot, Set<ExecutorDetails>>> emptyMap(),
+			Collections.<String> emptySet(), Collections.<String> emptySet(),
+			Collections.<String, TopologyRebalance.Phase> emptyMap(),
+			Collections.<String> emptySet());
+
+	public final long version;
+	public final long timestamp;
+
+	private final Map<String, NodeState> nodes;
+	private final Map<String, Map<String, Component>> components;
+	private final Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> schedState;
+	private final Set<String> emptyNodes;
+	private final Set<String> underutilizedNodes;
+	private final Map<String, TopologyRebalance.Phase> rebalancePhases;
+	private final Set<String> releasableNodes;
+
+	GlobalStateSnapshot(long version, Map<String, NodeState> nodes,
+			Map<String, Map<String, Component>> components,
+			Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> schedState,
+			Set<String> emptyNodes, Set<String> underutilizedNodes,
+			Map<String, TopologyRebalance.Phase> rebalancePhases, Set<String> releasableNodes) {
+		this.version = version;
+		this.timestamp = System.currentTimeMillis();
+		this.nodes = Collections.unmodifiableMap(nodes);
+		this.components = Collections.unmodifiableMap(components);
+		this.schedState = Collections.unmodifiableMap(schedState);
+		this.emptyNodes = Collections.unmodifiableSet(emptyNodes);
+		this.underutilizedNodes = Collections.unmodifiableSet(underutilizedNodes);
+		this.rebalancePhases = Collections.unmodifiableMap(rebalancePhases);
+		this.releasableNodes = Collections.unmodifiableSet(releasableNodes);
+	}
+
+	/**
+	 * @return supervisor id -> node
+	 */
+	public Map<String, NodeState> getNodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * @return topology id -> component id -> Component
+	 */
+	public Map<String, Map<String, Component>> getComponents() {
+		return this.components;
+	}
+
+	/**
+	 * @return topology id -> worker slot -> executors, as last stored
+	 */
+	public Map<String, Map<WorkerSlot, Set<ExecutorDetails>>> getSchedState() {
+		return this.schedState;
+	}
+
+	/**
+	 * @return supervisor ids of nodes without executors in schedState
+	 */
+	public Set<String> getEmptyNodes() {
+		return this.emptyNodes;
+	}
+
+	/**
+	 * @return supervisor ids of nodes with used and free slots in schedState
+	 */
+	public Set<String> getUnderutilizedNodes() {
+		return this.underutilizedNodes;
+	}
+
+	/**
+	 * @return topology id -> rebalance phase, topologies never seen are IDLE
+	 */
+	public Map<String, TopologyRebalance.Phase> getRebalancePhases() {
+		return this.rebalancePhases;
+	}
+
+	/**
+	 * @return supervisor ids of the nodes the last scale in plan emptied or
+	 *         would empty, see ScaleInPlanner
+	 */
+	public Set<String> getReleasableNodes() {
+		return this.releasableNodes;
+	}
+
+	public long getAge() {
+		return System.currentTimeMillis() - this.timestamp;
+	}
+
+	/**
+	 * Read only copy of a Node
+	 */
+	public static class NodeState {
+		public final String supervisor_id;
+		public final String hostname;
+		public final List<WorkerSlot> slots;
+		public final Map<WorkerSlot, List<ExecutorDetails>> slot_to_exec;
+		public final int numExecs;
+		// thread safe live view, not a copy
+		public final NodeProfile profile;
+
+		NodeState(Node n) {
+			this.supervisor_id = n.supervisor_id;
+			this.hostname = n.hostname;
+			this.slots = Collections.unmodifiableList(new ArrayList<WorkerSlot>(n.slots));
+			Map<WorkerSlot, List<ExecutorDetails>> copy = new HashMap<WorkerSlot, List<ExecutorDetails>>();
+			for (Map.Entry<WorkerSlot, List<ExecutorDetails>> entry : n.slot_to_exec.entrySet()) {
+				copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<ExecutorDetails>(entry.getValue())));
+			}
+			this.slot_to_exec = Collections.unmodifiableMap(copy);
+			this.numExecs = n.execs.size();
+			this.profile = n.profile;
+		}
+
+		@Override
+		public String toString() {
+			return this.hostname + " (" + this.supervisor_id + ") execs: " + this.numExecs + " slot_to_exec: " + this.slot_to_exec;
+		}
+	}
+
+	static Map<WorkerSlot, Set<ExecutorDetails>> copySched(Map<WorkerSlot, Set<ExecutorDetails>> topoSched) {
+		Map<WorkerSlot, Set<ExecutorDetails>> copy = new HashMap<WorkerSlot, Set<ExecutorDetails>>();
+		for (Map.Entry<WorkerSlot, Set<ExecutorDetails>> entry : topoSched.entrySet()) {
+			copy.put(entry.getKey(), Collections.unmodifiableSet(new LinkedHashSet<ExecutorDetails>(entry.getValue())));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("version ").append(this.version).append("\n!--Nodes--!\n");
+		for (NodeState n : this.nodes.values()) {
+			sb.append("->").append(n).append("\n");
+		}
+		sb.append("!--Empty nodes--! ").append(this.emptyNodes).append("\n");
+		sb.append("!--Underutilized nodes--! ").append(this.underutilizedNodes).append("\n");
+		sb.append("!--Rebalances--! ").append(this.rebalancePhases).append("\n");
+		sb.append("!--Stored Scheduling State--!\n");
+		for (Map.Entry<String, Map<WorkerSlot, Set<ExecutorDetails>>> entry : this.schedState.entrySet()) {
+			sb.append("->Topology: ").append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,551 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+/**
+ * Multilevel k-way partitioning of the executor communication graph
+ * (TrafficGraph) onto worker slots, minimising the tuples per second that
+ * cross workers while keeping the load of every slot and node under a limit.
+ *
+ * As in METIS: the graph is coarsened by merging the endpoints of heavy edges
+ * until it is small, the coarsest graph is partitioned greedily (every vertex
+ * goes to the part it talks to most that still has room), and the partition
+ * is projected back level by level, moving boundary vertices to the part they
+ * talk to most at every level. Graphs are kept in compressed sparse row
+ * arrays, so a pass over 10k executors takes a few milliseconds.
+ */
+public class GraphPartitioner {
+
+	// coarsening stops at this many vertices per part, or when a level
+	// merges less than 10% of the vertices
+	static final int COARSEN_PER_PART = 15;
+	static final double MIN_SHRINK = 0.9;
+	static final int REFINE_PASSES = 4;
+
+	// load of an executor without stats of a measured topology, and the load
+	// every executor has on top of its capacity
+	static final double BASE_LOAD = 0.1;
+
+	/**
+	 * Graph in compressed sparse row form: the edges of v are
+	 * adj[xadj[v]] .. adj[xadj[v + 1] - 1], every edge stored in both
+	 * directions
+	 */
+	static class Graph {
+		final int n;
+		final int[] xadj;
+		final int[] adj;
+		final double[] ew;
+		final double[] vw;
+
+		Graph(int n, int[] xadj, int[] adj, double[] ew, double[] vw) {
+			this.n = n;
+			this.xadj = xadj;
+			this.adj = adj;
+			this.ew = ew;
+			this.vw = vw;
+		}
+	}
+
+	private final int k;
+	private final double[] partLimit;
+	// part -> index of its node in nodeLimit
+	private final int[] partNode;
+	private final double[] nodeLimit;
+	private final Random random;
+
+	GraphPartitioner(double[] partLimit, int[] partNode, double[] nodeLimit, long seed) {
+		this.k = partLimit.length;
+		this.partLimit = partLimit;
+		this.partNode = partNode;
+		this.nodeLimit = nodeLimit;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Place executors on slots
+	 * @param graph communication graph, executors missing from it have no edges
+	 * @param loads executor -> load, see executorLoads
+	 * @param slotWeights supervisor id -> relative capacity of one of its
+	 *        slots, 1.0 for nodes missing from it; a node's share is the
+	 *        sum over its slots in slots
+	 * @param imbalance how far above its fair share a slot or node may be
+	 *        loaded, e.g. 0.1
+	 * @return slot -> executors, slots left empty are not included
+	 */
+	public static Map<WorkerSlot, List<ExecutorDetails>> place(Collection<ExecutorDetails> execs, TrafficGraph graph,
+			Map<ExecutorDetails, Double> loads, List<WorkerSlot> slots, Map<String, Double> slotWeights, double imbalance) {
+		Map<WorkerSlot, List<ExecutorDetails>> retVal = new LinkedHashMap<WorkerSlot, List<ExecutorDetails>>();
+		if (execs.isEmpty() == true || slots.isEmpty() == true) {
+			return retVal;
+		}
+
+		List<ExecutorDetails> vertices = new ArrayList<ExecutorDetails>(execs);
+		Graph g = toGraph(vertices, graph, loads);
+		double total = 0.0;
+		for (double w : g.vw) {
+			total += w;
+		}
+
+		int k = slots.size();
+		Map<String, Integer> nodeIndex = new LinkedHashMap<String, Integer>();
+		int[] partNode = new int[k];
+		for (int p = 0; p < k; p++) {
+			String supId = slots.get(p).getNodeId();
+			if (nodeIndex.containsKey(supId) == false) {
+				nodeIndex.put(supId, nodeIndex.size());
+			}
+			partNode[p] = nodeIndex.get(supId);
+		}
+		// a slot's share is its node's weight, a node's share the sum over
+		// the slots taken on it, so the node limits never undercut the slots
+		double sumShares = 0.0;
+		double[] weights = new double[k];
+		double[] shares = new double[nodeIndex.size()];
+		for (int p = 0; p < k; p++) {
+			Double weight = slotWeights == null ? null : slotWeights.get(slots.get(p).getNodeId());
+			weights[p] = weight == null ? 1.0 : weight;
+			shares[partNode[p]] += weights[p];
+			sumShares += weights[p];
+		}
+		double[] nodeLimit = new double[shares.length];
+		for (int i = 0; i < shares.length; i++) {
+			nodeLimit[i] = (1.0 + imbalance) * total * (sumShares > 0 ? shares[i] / sumShares : 1.0 / shares.length);
+		}
+		double[] partLimit = new double[k];
+		for (int p = 0; p < k; p++) {
+			partLimit[p] = (1.0 + imbalance) * total * (sumShares > 0 ? weights[p] / sumShares : 1.0 / k);
+		}
+
+		int[] part = new GraphPartitioner(partLimit, partNode, nodeLimit, vertices.size()).partition(g);
+		for (int v = 0; v < part.length; v++) {
+			WorkerSlot ws = slots.get(part[v]);
+			if (retVal.containsKey(ws) == false) {
+				retVal.put(ws, new ArrayList<ExecutorDetails>());
+			}
+			retVal.get(ws).add(vertices.get(v));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Load of every executor: BASE_LOAD plus its measured capacity, the
+	 * average of the measured ones for executors without stats, and 1 for
+	 * all if the topology has no stats yet
+	 */
+	public static Map<ExecutorDetails, Double> executorLoads(Collection<ExecutorDetails> execs, String topoId, StatsSnapshot stats) {
+		Map<Integer, Double> measured = new HashMap<Integer, Double>();
+		double sum = 0.0;
+		for (StatsSnapshot.ExecutorStat es : stats.getExecutors(topoId)) {
+			measured.put(es.taskStart, BASE_LOAD + es.latency.capacity);
+			sum += BASE_LOAD + es.latency.capacity;
+		}
+		double unknown = measured.isEmpty() ? 1.0 : sum / measured.size();
+		Map<ExecutorDetails, Double> retVal = new HashMap<ExecutorDetails, Double>();
+		for (ExecutorDetails exec : execs) {
+			Double load = measured.get(exec.getStartTask());
+			retVal.put(exec, load == null ? unknown : load);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Total weight of the edges between different parts
+	 */
+	static double cut(Graph g, int[] part) {
+		double retVal = 0.0;
+		for (int v = 0; v < g.n; v++) {
+			for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+				if (part[g.adj[e]] != part[v]) {
+					retVal += g.ew[e];
+				}
+			}
+		}
+		// every edge was counted from both ends
+		return retVal / 2;
+	}
+
+	static Graph toGraph(List<ExecutorDetails> vertices, TrafficGraph graph, Map<ExecutorDetails, Double> loads) {
+		int n = vertices.size();
+		Map<ExecutorDetails, Integer> index = new HashMap<ExecutorDetails, Integer>();
+		for (int v = 0; v < n; v++) {
+			index.put(vertices.get(v), v);
+		}
+		int[] xadj = new int[n + 1];
+		double[] vw = new double[n];
+		int m = 0;
+		for (int v = 0; v < n; v++) {
+			m += graph.getNeighbors(vertices.get(v)).size();
+		}
+		int[] adj = new int[m];
+		double[] ew = new double[m];
+		m = 0;
+		for (int v = 0; v < n; v++) {
+			xadj[v] = m;
+			Double load = loads.get(vertices.get(v));
+			vw[v] = load == null ? 1.0 : load;
+			for (Map.Entry<ExecutorDetails, Double> edge : graph.getNeighbors(vertices.get(v)).entrySet()) {
+				Integer u = index.get(edge.getKey());
+				if (u != null && u != v) {
+					adj[m] = u;
+					ew[m] = edge.getValue();
+					m++;
+				}
+			}
+		}
+		xadj[n] = m;
+		return new Graph(n, xadj, Arrays.copyOf(adj, m), Arrays.copyOf(ew, m), vw);
+	}
+
+	/**
+	 * @return part of every vertex of g
+	 */
+	int[] partition(Graph g) {
+		List<Graph> levels = new ArrayList<Graph>();
+		List<int[]> maps = new ArrayList<int[]>();
+		double maxVertex = Double.MAX_VALUE;
+		for (double limit : this.partLimit) {
+			maxVertex = Math.min(maxVertex, limit / 2);
+		}
+
+		Graph cur = g;
+		while (cur.n > COARSEN_PER_PART * this.k) {
+			int[] cmap = new int[cur.n];
+			int cn = this.match(cur, cmap, maxVertex);
+			if (cn > MIN_SHRINK * cur.n) {
+				break;
+			}
+			levels.add(cur);
+			maps.add(cmap);
+			cur = contract(cur, cmap, cn);
+		}
+
+		int[] part = this.initialPartition(cur);
+		this.refine(cur, part);
+		for (int l = levels.size() - 1; l >= 0; l--) {
+			Graph fine = levels.get(l);
+			int[] cmap = maps.get(l);
+			int[] finePart = new int[fine.n];
+			for (int v = 0; v < fine.n; v++) {
+				finePart[v] = part[cmap[v]];
+			}
+			part = finePart;
+			this.refine(fine, part);
+		}
+		return part;
+	}
+
+	/**
+	 * Heavy edge matching: every vertex, in random order, is merged with the
+	 * unmatched neighbour it shares the heaviest edge with
+	 * @return number of coarse vertices, cmap is set to the coarse vertex of
+	 *         every vertex
+	 */
+	private int match(Graph g, int[] cmap, double maxVertex) {
+		Arrays.fill(cmap, -1);
+		int cn = 0;
+		for (int v : this.randomOrder(g.n)) {
+			if (cmap[v] >= 0) {
+				continue;
+			}
+			int best = -1;
+			double bestWeight = 0.0;
+			for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+				int u = g.adj[e];
+				if (cmap[u] < 0 && u != v && g.ew[e] > bestWeight && g.vw[v] + g.vw[u] <= maxVertex) {
+					best = u;
+					bestWeight = g.ew[e];
+				}
+			}
+			cmap[v] = cn;
+			if (best >= 0) {
+				cmap[best] = cn;
+			}
+			cn++;
+		}
+		return cn;
+	}
+
+	private static Graph contract(Graph g, int[] cmap, int cn) {
+		double[] vw = new double[cn];
+		// fine vertices grouped by coarse vertex
+		int[] start = new int[cn + 1];
+		for (int v = 0; v < g.n; v++) {
+			vw[cmap[v]] += g.vw[v];
+			start[cmap[v] + 1]++;
+		}
+		for (int c = 0; c < cn; c++) {
+			start[c + 1] += start[c];
+		}
+		int[] members = new int[g.n];
+		int[] fill = Arrays.copyOf(start, cn);
+		for (int v = 0; v < g.n; v++) {
+			members[fill[cmap[v]]++] = v;
+		}
+
+		int[] xadj = new int[cn + 1];
+		int[] adj = new int[g.adj.length];
+		double[] ew = new double[g.adj.length];
+		// coarse neighbour -> its position in adj, valid if >= xadj[c]
+		int[] pos = new int[cn];
+		Arrays.fill(pos, -1);
+		int m = 0;
+		for (int c = 0; c < cn; c++) {
+			xadj[c] = m;
+			for (int i = start[c]; i < start[c + 1]; i++) {
+				int v = members[i];
+				for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+					int u = cmap[g.adj[e]];
+					if (u == c) {
+						continue;
+					}
+					if (pos[u] >= xadj[c]) {
+						ew[pos[u]] += g.ew[e];
+					} else {
+						pos[u] = m;
+						adj[m] = u;
+						ew[m] = g.ew[e];
+						m++;
+					}
+				}
+			}
+		}
+		xadj[cn] = m;
+		return new Graph(cn, xadj, Arrays.copyOf(adj, m), Arrays.copyOf(ew, m), vw);
+	}
+
+	/**
+	 * Greedy graph growing: every part in turn is grown from the heaviest
+	 * unassigned vertex, always adding the vertex most connected to it, until
+	 * it has its share of the load. Vertices left over go to the part they are
+	 * connected to most that has room, or to the least loaded part.
+	 */
+	private int[] initialPartition(Graph g) {
+		int[] part = new int[g.n];
+		Arrays.fill(part, -1);
+		double[] load = new double[this.k];
+		double[] nodeLoad = new double[this.nodeLimit.length];
+
+		Integer[] seeds = new Integer[g.n];
+		for (int v = 0; v < g.n; v++) {
+			seeds[v] = v;
+		}
+		final double[] vw = g.vw;
+		Arrays.sort(seeds, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(vw[b], vw[a]);
+			}
+		});
+
+		double total = 0.0;
+		double sumLimits = 0.0;
+		for (int v = 0; v < g.n; v++) {
+			total += g.vw[v];
+		}
+		for (int p = 0; p < this.k; p++) {
+			sumLimits += this.partLimit[p];
+		}
+
+		// connection of unassigned vertices to the part being grown, valid
+		// if stamp[v] == p + 1
+		double[] gain = new double[g.n];
+		int[] stamp = new int[g.n];
+		int nextSeed = 0;
+		for (int p = 0; p < this.k; p++) {
+			double target = total * this.partLimit[p] / sumLimits;
+			PriorityQueue<Candidate> frontier = new PriorityQueue<Candidate>();
+			while (load[p] < target) {
+				int v = -1;
+				while (frontier.isEmpty() == false) {
+					Candidate c = frontier.poll();
+					if (part[c.v] < 0 && stamp[c.v] == p + 1 && gain[c.v] == c.gain) {
+						v = c.v;
+						break;
+					}
+				}
+				while (v < 0 && nextSeed < g.n) {
+					if (part[seeds[nextSeed]] < 0 && stamp[seeds[nextSeed]] != -(p + 1)) {
+						v = seeds[nextSeed];
+					}
+					nextSeed++;
+				}
+				if (v < 0) {
+					break;
+				}
+				if (this.fits(p, g.vw[v], load, nodeLoad) == false) {
+					// not for this part
+					stamp[v] = -(p + 1);
+					continue;
+				}
+				part[v] = p;
+				load[p] += g.vw[v];
+				nodeLoad[this.partNode[p]] += g.vw[v];
+				for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+					int u = g.adj[e];
+					if (part[u] >= 0 || stamp[u] == -(p + 1)) {
+						continue;
+					}
+					if (stamp[u] != p + 1) {
+						stamp[u] = p + 1;
+						gain[u] = 0.0;
+					}
+					gain[u] += g.ew[e];
+					frontier.add(new Candidate(u, gain[u]));
+				}
+			}
+			// seeds skipped for this part are candidates for the next one
+			nextSeed = 0;
+		}
+
+		double[] conn = new double[this.k];
+		for (int v : seeds) {
+			if (part[v] >= 0) {
+				continue;
+			}
+			Arrays.fill(conn, 0.0);
+			for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+				if (part[g.adj[e]] >= 0) {
+					conn[part[g.adj[e]]] += g.ew[e];
+				}
+			}
+			int best = -1;
+			for (int p = 0; p < this.k; p++) {
+				if (this.fits(p, g.vw[v], load, nodeLoad) == true && (best < 0 || conn[p] > conn[best])) {
+					best = p;
+				}
+			}
+			if (best < 0) {
+				for (int p = 0; p < this.k; p++) {
+					if (best < 0 || (load[p] + g.vw[v]) / this.partLimit[p] < (load[best] + g.vw[v]) / this.partLimit[best]) {
+						best = p;
+					}
+				}
+			}
+			part[v] = best;
+			load[best] += g.vw[v];
+			nodeLoad[this.partNode[best]] += g.vw[v];
+		}
+		return part;
+	}
+
+	private static class Candidate implements Comparable<Candidate> {
+		final int v;
+		final double gain;
+
+		Candidate(int v, double gain) {
+			this.v = v;
+			this.gain = gain;
+		}
+
+		@Override
+		public int compareTo(Candidate o) {
+			// most connected first
+			return Double.compare(o.gain, this.gain);
+		}
+	}
+
+	/**
+	 * Greedy boundary refinement: move a vertex to the part it is connected
+	 * to most if that lowers the cut and the part has room. A vertex of an
+	 * overloaded part or node moves to the best part with room even if the
+	 * cut grows.
+	 */
+	private void refine(Graph g, int[] part) {
+		double[] load = new double[this.k];
+		double[] nodeLoad = new double[this.nodeLimit.length];
+		for (int v = 0; v < g.n; v++) {
+			load[part[v]] += g.vw[v];
+			nodeLoad[this.partNode[part[v]]] += g.vw[v];
+		}
+		double[] conn = new double[this.k];
+		int[] touched = new int[this.k];
+		boolean[] isTouched = new boolean[this.k];
+
+		for (int pass = 0; pass < REFINE_PASSES; pass++) {
+			int moves = 0;
+			for (int v : this.randomOrder(g.n)) {
+				int from = part[v];
+				int numTouched = 0;
+				for (int e = g.xadj[v]; e < g.xadj[v + 1]; e++) {
+					int p = part[g.adj[e]];
+					if (isTouched[p] == false) {
+						isTouched[p] = true;
+						touched[numTouched++] = p;
+					}
+					conn[p] += g.ew[e];
+				}
+
+				boolean overloaded = load[from] > this.partLimit[from]
+						|| nodeLoad[this.partNode[from]] > this.nodeLimit[this.partNode[from]];
+				int best = -1;
+				double bestGain = overloaded ? Double.NEGATIVE_INFINITY : 0.0;
+				if (overloaded == true) {
+					for (int p = 0; p < this.k; p++) {
+						double gain = conn[p] - conn[from];
+						if (p != from && gain > bestGain && this.fits(p, g.vw[v], load, nodeLoad) == true) {
+							best = p;
+							bestGain = gain;
+						}
+					}
+				} else {
+					for (int i = 0; i < numTouched; i++) {
+						int p = touched[i];
+						double gain = conn[p] - conn[from];
+						if (p != from && gain > bestGain && this.fits(p, g.vw[v], load, nodeLoad) == true) {
+							best = p;
+							bestGain = gain;
+						}
+					}
+				}
+				for (int i = 0; i < numTouched; i++) {
+					conn[touched[i]] = 0.0;
+					isTouched[touched[i]] = false;
+				}
+
+				if (best >= 0) {
+					part[v] = best;
+					load[from] -= g.vw[v];
+					load[best] += g.vw[v];
+					nodeLoad[this.partNode[from]] -= g.vw[v];
+					nodeLoad[this.partNode[best]] += g.vw[v];
+					moves++;
+				}
+			}
+			if (moves == 0) {
+				break;
+			}
+		}
+	}
+
+	private boolean fits(int p, double w, double[] load, double[] nodeLoad) {
+		return load[p] + w <= this.partLimit[p]
+				&& nodeLoad[this.partNode[p]] + w <= this.nodeLimit[this.partNode[p]];
+	}
+
+	private int[] randomOrder(int n) {
+		int[] retVal = new int[n];
+		for (int i = 0; i < n; i++) {
+			retVal[i] = i;
+		}
+		for (int i = n - 1; i > 0; i--) {
+			int j = this.random.nextInt(i + 1);
+			int tmp = retVal[i];
+			retVal[i] = retVal[j];
+			retVal[j] = tmp;
+		}
+		return retVal;
+	}
+}
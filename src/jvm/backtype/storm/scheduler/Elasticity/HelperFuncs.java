@@ -5,14 +5,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.transport.TFramedTransport;
-import org.apache.thrift.transport.TSocket;
-
-import backtype.storm.generated.ClusterSummary;
-import backtype.storm.generated.Nimbus;
-import backtype.storm.generated.TopologySummary;
 import backtype.storm.scheduler.Cluster;
 import backtype.storm.scheduler.ExecutorDetails;
 import backtype.storm.scheduler.TopologyDetails;
@@ -59,24 +51,10 @@ public class HelperFuncs {
 		
 	}
 	static String getStatus(String topo_id) {
-		TSocket tsocket = new TSocket("localhost", 6627);
-		TFramedTransport tTransport = new TFramedTransport(tsocket);
-		TBinaryProtocol tBinaryProtocol = new TBinaryProtocol(tTransport);
-		Nimbus.Client client = new Nimbus.Client(tBinaryProtocol);
-		try {
-			tTransport.open();
-
-			ClusterSummary clusterSummary = client.getClusterInfo();
-			List<TopologySummary> topologies = clusterSummary.get_topologies();
+		return getStatus(ClusterSnapshot.take(), topo_id);
+	}
 
-			for (TopologySummary topo : topologies) {
-				if(topo.get_id().equals(topo_id)==true) {
-					return topo.get_status();
-				}
-			}
-		} catch (TException e) {
-			e.printStackTrace();
-		}
-		return null;
+	static String getStatus(ClusterSnapshot snapshot, String topo_id) {
+		return snapshot.getStatus(topo_id);
 	}
 }
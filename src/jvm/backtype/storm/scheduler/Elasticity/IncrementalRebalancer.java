@@ -0,0 +1,326 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+/**
+ * Plans the fewest executor moves that improve a topology's placement.
+ *
+ * The objective is loadWeight x imbalance + networkWeight x cut, lower is
+ * better:
+ * - imbalance is the mean squared deviation of the slot loads from their
+ *   fair shares over the slots the topology uses plus the target slots,
+ *   relative to the mean load. Shares follow the slot capacities, so a slot
+ *   of a bigger node is meant to carry more; without capacities all shares
+ *   are equal and this is the squared coefficient of variation
+ * - cut is the fraction of the topology's traffic that crosses workers, an
+ *   edge between workers of the same node counting nodeFactor
+ *
+ * Moves are chosen greedily, the move with the largest gain net of moveCost
+ * first, each executor at most once. Planning stops when the best move
+ * would gain less than minGain, or after maxMoves moves.
+ */
+public class IncrementalRebalancer {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IncrementalRebalancer.class);
+
+	/**
+	 * One executor move of a plan
+	 */
+	public static class Move {
+		public final ExecutorDetails exec;
+		public final WorkerSlot from;
+		public final WorkerSlot to;
+		// decrease of the objective net of the move cost
+		public final double gain;
+
+		Move(ExecutorDetails exec, WorkerSlot from, WorkerSlot to, double gain) {
+			this.exec = exec;
+			this.from = from;
+			this.to = to;
+			this.gain = gain;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s:%d->%s:%d (%.4f)", this.exec, this.from.getNodeId(), this.from.getPort(),
+					this.to.getNodeId(), this.to.getPort(), this.gain);
+		}
+	}
+
+	private final double loadWeight;
+	private final double networkWeight;
+	private final double nodeFactor;
+	private final double moveCost;
+	private final double minGain;
+	private final int maxMoves;
+
+	// state of the plan being made
+	private List<WorkerSlot> slots;
+	private int[] slotNode;
+	private double[] slotLoad;
+	// fraction of the total load each slot should carry
+	private double[] slotShare;
+	private int[] place;
+	private int[][] nbrs;
+	private double[][] nbrWeights;
+	private double[] vw;
+	private double totalLoad;
+	private double totalTraffic;
+
+	public IncrementalRebalancer(double loadWeight, double networkWeight, double nodeFactor,
+			double moveCost, double minGain, int maxMoves) {
+		this.loadWeight = loadWeight;
+		this.networkWeight = networkWeight;
+		this.nodeFactor = nodeFactor;
+		this.moveCost = moveCost;
+		this.minGain = minGain;
+		this.maxMoves = maxMoves;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static IncrementalRebalancer fromConf(Map conf) {
+		return new IncrementalRebalancer(
+				ElasticityConfig.getDouble(conf, ElasticityConfig.REBALANCE_LOAD_WEIGHT, 1.0),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.REBALANCE_NETWORK_WEIGHT, 1.0),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.REBALANCE_INTRA_NODE_COST, 0.5),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.REBALANCE_MOVE_COST, 0.02),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.REBALANCE_MIN_GAIN, 0.005),
+				ElasticityConfig.getInt(conf, ElasticityConfig.REBALANCE_MAX_MIGRATIONS, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @param sched worker slot -> executors, the stored schedule of the topology
+	 * @param order executors by preference, ties go to the earlier one;
+	 *        executors of sched missing from it come last
+	 * @param loads executor -> load, see GraphPartitioner.executorLoads
+	 * @param targets free slots executors may move to besides the used ones
+	 * @param capacities slot -> relative capacity, see
+	 *        ElasticityScheduler.slotCapacities; null or missing slots count 1
+	 * @return moves in the order they were chosen, empty if none pays off
+	 */
+	public List<Move> plan(Map<WorkerSlot, Set<ExecutorDetails>> sched, List<ExecutorDetails> order,
+			TrafficGraph graph, Map<ExecutorDetails, Double> loads, Collection<WorkerSlot> targets,
+			Map<WorkerSlot, Double> capacities) {
+		List<ExecutorDetails> execs = this.init(sched, order, graph, loads, targets, capacities);
+		if (execs.isEmpty() == true) {
+			return new ArrayList<Move>();
+		}
+		int numSlots = this.slots.size();
+		double before = this.objective();
+
+		List<Move> retVal = new ArrayList<Move>();
+		boolean[] moved = new boolean[execs.size()];
+		double[] conn = new double[numSlots];
+		int[] touched = new int[numSlots];
+		while (retVal.size() < this.maxMoves) {
+			int bestExec = -1;
+			int bestSlot = -1;
+			double bestGain = this.minGain;
+			for (int v = 0; v < execs.size(); v++) {
+				if (moved[v] == true) {
+					continue;
+				}
+				int from = this.place[v];
+				int numTouched = 0;
+				for (int e = 0; e < this.nbrs[v].length; e++) {
+					int q = this.place[this.nbrs[v][e]];
+					if (this.nbrWeights[v][e] <= 0.0) {
+						continue;
+					}
+					if (conn[q] == 0.0) {
+						touched[numTouched++] = q;
+					}
+					conn[q] += this.nbrWeights[v][e];
+				}
+				for (int to = 0; to < numSlots; to++) {
+					if (to == from) {
+						continue;
+					}
+					double gain = -this.delta(v, from, to, conn, touched, numTouched) - this.moveCost;
+					if (gain > bestGain) {
+						bestExec = v;
+						bestSlot = to;
+						bestGain = gain;
+					}
+				}
+				for (int i = 0; i < numTouched; i++) {
+					conn[touched[i]] = 0.0;
+				}
+			}
+			if (bestExec < 0) {
+				break;
+			}
+			int from = this.place[bestExec];
+			this.slotLoad[from] -= this.vw[bestExec];
+			this.slotLoad[bestSlot] += this.vw[bestExec];
+			this.place[bestExec] = bestSlot;
+			moved[bestExec] = true;
+			retVal.add(new Move(execs.get(bestExec), this.slots.get(from), this.slots.get(bestSlot), bestGain));
+		}
+
+		LOG.info("Rebalance plan of {} moves, objective {} -> {}: {}", new Object[] {
+				retVal.size(), before, this.objective(), retVal });
+		return retVal;
+	}
+
+	private List<ExecutorDetails> init(Map<WorkerSlot, Set<ExecutorDetails>> sched, List<ExecutorDetails> order,
+			TrafficGraph graph, Map<ExecutorDetails, Double> loads, Collection<WorkerSlot> targets,
+			Map<WorkerSlot, Double> capacities) {
+		Set<WorkerSlot> slotSet = new LinkedHashSet<WorkerSlot>();
+		Map<ExecutorDetails, WorkerSlot> execToSlot = new HashMap<ExecutorDetails, WorkerSlot>();
+		for (Map.Entry<WorkerSlot, Set<ExecutorDetails>> entry : sched.entrySet()) {
+			if (entry.getValue().isEmpty() == false) {
+				slotSet.add(entry.getKey());
+			}
+			for (ExecutorDetails exec : entry.getValue()) {
+				execToSlot.put(exec, entry.getKey());
+			}
+		}
+		slotSet.addAll(targets);
+		this.slots = new ArrayList<WorkerSlot>(slotSet);
+
+		Map<WorkerSlot, Integer> slotIndex = new HashMap<WorkerSlot, Integer>();
+		Map<String, Integer> nodeIndex = new HashMap<String, Integer>();
+		this.slotNode = new int[this.slots.size()];
+		this.slotShare = new double[this.slots.size()];
+		double totalCapacity = 0.0;
+		for (int s = 0; s < this.slots.size(); s++) {
+			Double capacity = capacities == null ? null : capacities.get(this.slots.get(s));
+			this.slotShare[s] = capacity == null || capacity <= 0.0 ? 1.0 : capacity;
+			totalCapacity += this.slotShare[s];
+			slotIndex.put(this.slots.get(s), s);
+			String node = this.slots.get(s).getNodeId();
+			if (nodeIndex.containsKey(node) == false) {
+				nodeIndex.put(node, nodeIndex.size());
+			}
+			this.slotNode[s] = nodeIndex.get(node);
+		}
+		for (int s = 0; s < this.slots.size(); s++) {
+			this.slotShare[s] /= totalCapacity;
+		}
+
+		Set<ExecutorDetails> ordered = new LinkedHashSet<ExecutorDetails>();
+		for (ExecutorDetails exec : order) {
+			if (execToSlot.containsKey(exec) == true) {
+				ordered.add(exec);
+			}
+		}
+		ordered.addAll(execToSlot.keySet());
+		List<ExecutorDetails> execs = new ArrayList<ExecutorDetails>(ordered);
+		Map<ExecutorDetails, Integer> execIndex = new HashMap<ExecutorDetails, Integer>();
+		for (int v = 0; v < execs.size(); v++) {
+			execIndex.put(execs.get(v), v);
+		}
+
+		int n = execs.size();
+		this.place = new int[n];
+		this.vw = new double[n];
+		this.nbrs = new int[n][];
+		this.nbrWeights = new double[n][];
+		this.slotLoad = new double[this.slots.size()];
+		this.totalLoad = 0.0;
+		this.totalTraffic = 0.0;
+		for (int v = 0; v < n; v++) {
+			ExecutorDetails exec = execs.get(v);
+			Double load = loads.get(exec);
+			this.vw[v] = load == null ? 1.0 : load;
+			this.place[v] = slotIndex.get(execToSlot.get(exec));
+			this.slotLoad[this.place[v]] += this.vw[v];
+			this.totalLoad += this.vw[v];
+
+			Map<ExecutorDetails, Double> edges = graph.getNeighbors(exec);
+			int[] ids = new int[edges.size()];
+			double[] weights = new double[edges.size()];
+			int m = 0;
+			for (Map.Entry<ExecutorDetails, Double> edge : edges.entrySet()) {
+				Integer u = execIndex.get(edge.getKey());
+				if (u != null && u != v) {
+					ids[m] = u;
+					weights[m] = edge.getValue();
+					this.totalTraffic += edge.getValue();
+					m++;
+				}
+			}
+			this.nbrs[v] = m == ids.length ? ids : Arrays.copyOf(ids, m);
+			this.nbrWeights[v] = m == weights.length ? weights : Arrays.copyOf(weights, m);
+		}
+		// every edge was counted from both ends
+		this.totalTraffic /= 2;
+		return execs;
+	}
+
+	/**
+	 * Change of the objective if v moves from slot from to slot to
+	 * @param conn slot -> traffic of v with the executors in it, non zero
+	 *        for the numTouched slots in touched
+	 */
+	private double delta(int v, int from, int to, double[] conn, int[] touched, int numTouched) {
+		double retVal = 0.0;
+		int numSlots = this.slots.size();
+		double avg = this.totalLoad / numSlots;
+		if (avg > 0) {
+			double w = this.vw[v];
+			double sumSquares = 2 * w * (this.excess(to) - this.excess(from)) + 2 * w * w;
+			retVal += this.loadWeight * sumSquares / (avg * avg * numSlots);
+		}
+		if (this.totalTraffic > 0) {
+			double cut = 0.0;
+			for (int i = 0; i < numTouched; i++) {
+				int q = touched[i];
+				cut += conn[q] * (this.cost(to, q) - this.cost(from, q));
+			}
+			retVal += this.networkWeight * cut / this.totalTraffic;
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return load of slot s above its fair share
+	 */
+	private double excess(int s) {
+		return this.slotLoad[s] - this.slotShare[s] * this.totalLoad;
+	}
+
+	private double cost(int s, int q) {
+		if (s == q) {
+			return 0.0;
+		}
+		return this.slotNode[s] == this.slotNode[q] ? this.nodeFactor : 1.0;
+	}
+
+	private double objective() {
+		int numSlots = this.slots.size();
+		double avg = this.totalLoad / numSlots;
+		double imbalance = 0.0;
+		if (avg > 0) {
+			for (int s = 0; s < numSlots; s++) {
+				imbalance += this.excess(s) * this.excess(s);
+			}
+			imbalance /= avg * avg * numSlots;
+		}
+		double cut = 0.0;
+		if (this.totalTraffic > 0) {
+			for (int v = 0; v < this.place.length; v++) {
+				for (int e = 0; e < this.nbrs[v].length; e++) {
+					cut += this.nbrWeights[v][e] * this.cost(this.place[v], this.place[this.nbrs[v][e]]);
+				}
+			}
+			cut /= 2 * this.totalTraffic;
+		}
+		return this.loadWeight * imbalance + this.networkWeight * cut;
+	}
+}
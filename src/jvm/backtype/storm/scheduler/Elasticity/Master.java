@@ -1,140 +1,480 @@
 package backtype.storm.scheduler.Elasticity;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.HashMap;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 
 public class Master {
-	
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(Master.class);
-	public static HashMap<String, Profile> profile_map;
+	public static Map<String, Profile> profile_map;
 	private static Master instance;
-	
-	private Master(){
-		profile_map = new HashMap<String, Profile>();
+
+	private ServerThread server;
+
+	@SuppressWarnings("rawtypes")
+	private Master(Map conf){
+		profile_map = new ConcurrentHashMap<String, Profile>();
+		NodeMetricsStore.getInstance().configure(conf);
+		this.server = new ServerThread(
+				ElasticityConfig.getInt(conf, ElasticityConfig.MASTER_PORT, 6789),
+				ElasticityConfig.getInt(conf, ElasticityConfig.MASTER_BACKLOG, 256),
+				ElasticityConfig.getLong(conf, ElasticityConfig.MASTER_READ_TIMEOUT_MS, 10000),
+				ElasticityConfig.getInt(conf, ElasticityConfig.MASTER_MAX_CONNECTIONS, 1024));
 		try{
 			this.start();
 		} catch (IOException ex) {
-			
+			LOG.info("error! starting monitoring server: {}", ex.toString());
 		}
 	}
-	
+
 	public static Master getInstance() {
+		return getInstance(null);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static synchronized Master getInstance(Map conf) {
 		if(instance==null) {
-			instance=new Master();
+			instance=new Master(conf);
 		}
 		return instance;
 	}
-	
+
 	public void start() throws IOException{
-	//public static void start() throws IOException{
+		this.server.bind();
 		LOG.info("Cluster Stats Monitoring Server started...");
-		Thread t=new Thread(new ServerThread());
+		Thread t=new Thread(this.server, "elasticity-profile-server");
+		t.setDaemon(true);
 		t.start();
 	}
 
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.server.close();
+			instance = null;
+		}
+	}
+
+	/**
+	 * Report of an old agent, which sends no memory usage or cores
+	 */
+	static void putProfile(Profile prf) {
+		Master.profile_map.put(prf.ip, prf);
+		double[] values = new double[NodeMetricsStore.NUM_METRICS];
+		values[ProfileReport.CPU] = prf.getCpu_usage();
+		values[ProfileReport.BANDWIDTH_IN] = prf.getBandwidth_in();
+		values[ProfileReport.BANDWIDTH_OUT] = prf.getBandwidth_out();
+		values[ProfileReport.MEMORY] = Double.NaN;
+		values[ProfileReport.CORES] = Double.NaN;
+		NodeMetricsStore.getInstance().record(prf.ip, System.currentTimeMillis(), values);
+	}
+
+	/**
+	 * Replace the profile of report.host, keeping metrics the report lacks.
+	 * Profiles are never changed after they are put, so readers on other
+	 * threads always see a complete one.
+	 */
+	static void putReport(ProfileReport report) throws IOException {
+		Profile prf = new Profile(report.host);
+		Profile prev = Master.profile_map.get(report.host);
+		if (prev != null) {
+			prf.setCpu_usage(prev.getCpu_usage());
+			prf.setBandwidth_in(prev.getBandwidth_in());
+			prf.setBandwidth_out(prev.getBandwidth_out());
+			prf.setMemory_usage(prev.getMemory_usage());
+		}
+		report.applyTo(prf);
+		Master.profile_map.put(prf.ip, prf);
+		double[] values = new double[NodeMetricsStore.NUM_METRICS];
+		for (short m = 0; m < values.length; m++) {
+			values[m] = report.get(m, Double.NaN);
+		}
+		NodeMetricsStore.getInstance().record(prf.ip, System.currentTimeMillis(), values);
+	}
 }
 
+/**
+ * Accepts and reads all agent connections on one thread with a non blocking
+ * selector, so a slow or stalled agent only holds its own buffer and never
+ * delays the reports of other nodes. Connections that stay silent for longer
+ * than readTimeoutMs are closed.
+ */
 class ServerThread implements Runnable{
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(Master.class);
+
+	// upper bound of select() so idle connections are swept regularly
+	private static final long SWEEP_INTERVAL_MS = 1000;
+
+	private final int port;
+	private final int backlog;
+	private final long readTimeoutMs;
+	private final int maxConnections;
+
+	private Selector selector;
+	private ServerSocketChannel socket;
+	private int connections = 0;
+	private volatile boolean running = true;
+
+	public ServerThread(int port, int backlog, long readTimeoutMs, int maxConnections) {
+		this.port = port;
+		this.backlog = backlog;
+		this.readTimeoutMs = readTimeoutMs;
+		this.maxConnections = maxConnections;
+	}
+
+	public void bind() throws IOException {
+		this.selector = Selector.open();
+		this.socket = ServerSocketChannel.open();
+		this.socket.socket().setReuseAddress(true);
+		this.socket.socket().bind(new InetSocketAddress(this.port), this.backlog);
+		this.socket.configureBlocking(false);
+		this.socket.register(this.selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public void close() {
+		this.running = false;
+		try {
+			this.selector.close();
+			this.socket.close();
+		} catch (IOException e) {
+			LOG.info("error! closing monitoring server", e);
+		}
+	}
+
 	@Override
 	public void run() {
-		// TODO Auto-generated method stub
-		
-		int port = 6789;
-		ServerSocket socket;
+		long lastSweep = System.currentTimeMillis();
 		try {
-			socket = new ServerSocket(port, 10);
-			Socket connection;
-			while(true){
-				connection=socket.accept();
-				LOG.info("Waiting for connection...");
-				LOG.info("Connection received from " + connection.getInetAddress().getHostName());
-				ServerWorker worker=new ServerWorker(connection);
-				worker.run();			
+			while (this.running == true) {
+				this.selector.select(SWEEP_INTERVAL_MS);
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid() == false) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept();
+						continue;
+					}
+					ServerWorker worker = (ServerWorker) key.attachment();
+					boolean open = true;
+					if (key.isReadable()) {
+						open = worker.read();
+					}
+					if (open == true && key.isValid() && key.isWritable()) {
+						open = worker.write();
+					}
+					if (open == false) {
+						this.close(key);
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+					this.sweep(now);
+					NodeMetricsStore.getInstance().expire(now);
+					lastSweep = now;
+				}
 			}
+		} catch (ClosedSelectorException e) {
+			// stopped
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOG.info("error! monitoring server failed", e);
+		}
+		LOG.info("Cluster Stats Monitoring Server stopped");
+	}
+
+	/**
+	 * Accept all pending connections. A connection that fails while being
+	 * set up is closed and skipped, it never stops the server.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel connection;
+			try {
+				connection = this.socket.accept();
+			} catch (IOException e) {
+				LOG.info("error! accepting a connection", e);
+				return;
+			}
+			if (connection == null) {
+				return;
+			}
+			if (this.connections >= this.maxConnections) {
+				LOG.info("error! too many connections, refusing {}",
+						connection.socket().getInetAddress());
+				closeQuietly(connection);
+				continue;
+			}
+			SelectionKey key;
+			try {
+				connection.configureBlocking(false);
+				connection.socket().setTcpNoDelay(true);
+				key = connection.register(this.selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				LOG.info("error! setting up connection from " + connection.socket().getInetAddress(), e);
+				closeQuietly(connection);
+				continue;
+			}
+			ServerWorker worker = new ServerWorker(connection, key);
+			key.attach(worker);
+			this.connections++;
+			LOG.debug("Connection received from {}", worker.getRemote());
+			if (worker.write() == false) {
+				this.close(key);
+			}
+		}
+	}
+
+	private void sweep(long now) {
+		for (SelectionKey key : this.selector.keys()) {
+			// cancelled keys stay in keys() until the next select
+			if (key.isValid() == false) {
+				continue;
+			}
+			Object att = key.attachment();
+			if (att instanceof ServerWorker
+					&& now - ((ServerWorker) att).getLastReadAt() > this.readTimeoutMs) {
+				LOG.info("Closing idle connection from {}", ((ServerWorker) att).getRemote());
+				this.close(key);
+			}
+		}
+	}
+
+	/**
+	 * Close the connection of key, counting it only once
+	 */
+	private void close(SelectionKey key) {
+		boolean counted = key.isValid();
+		key.cancel();
+		closeQuietly(key.channel());
+		if (counted == true) {
+			this.connections--;
+		}
+	}
+
+	private static void closeQuietly(Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// already gone
 		}
-		
-		
 	}
-	
 }
 
-class ServerWorker implements Runnable{
-	
-	private Socket connection;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+/**
+ * State of one agent connection. The first two bytes tell the protocol:
+ * agents sending ProfileReport frames keep the connection open and stream one
+ * frame per report, old agents write ip, cpu, bandwidth_in and bandwidth_out
+ * with an ObjectOutputStream and the connection is closed after that report.
+ */
+class ServerWorker {
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(Master.class);
 
-	public ServerWorker(Socket connection) throws IOException {
-		// TODO Auto-generated constructor stub
-		this.connection=connection;
-		this.in=new ObjectInputStream(this.connection.getInputStream());
-		this.out=new ObjectOutputStream(this.connection.getOutputStream());
+	static final int MAX_BUFFER_BYTES = ProfileReport.MAX_FRAME_BYTES + ProfileReport.HEADER_BYTES;
+
+	private final SocketChannel connection;
+	private final SelectionKey key;
+	private final String remote;
+	private ByteBuffer in;
+	private final ByteBuffer out;
+	private long lastReadAt;
+	// null until the first two bytes arrived
+	private Boolean legacy = null;
+
+	public ServerWorker(SocketChannel connection, SelectionKey key) {
+		this.connection = connection;
+		this.key = key;
+		this.remote = String.valueOf(connection.socket().getInetAddress());
+		this.in = ByteBuffer.allocate(512);
+		// old agents open an ObjectInputStream too, which waits for our header
+		this.out = ByteBuffer.allocate(4);
+		this.out.putShort(ObjectStreamConstants.STREAM_MAGIC);
+		this.out.putShort(ObjectStreamConstants.STREAM_VERSION);
+		this.out.flip();
+		this.lastReadAt = System.currentTimeMillis();
 	}
 
-	@Override
-	public void run() {
-		// TODO Auto-generated method stub
-		System.out.println("master in run...");
+	public String getRemote() {
+		return this.remote;
+	}
+
+	public long getLastReadAt() {
+		return this.lastReadAt;
+	}
+
+	/**
+	 * @return false if the connection should be closed
+	 */
+	public boolean write() {
+		try {
+			this.connection.write(this.out);
+		} catch (IOException e) {
+			return false;
+		}
+		if (this.out.hasRemaining()) {
+			this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else {
+			this.key.interestOps(SelectionKey.OP_READ);
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the connection should be closed
+	 */
+	public boolean read() {
+		int n;
+		try {
+			n = this.connection.read(this.in);
+		} catch (IOException e) {
+			return false;
+		}
+		if (n < 0) {
+			return false;
+		}
+		if (n == 0) {
+			return true;
+		}
+		this.lastReadAt = System.currentTimeMillis();
+		if (this.legacy == null) {
+			if (this.in.position() < 2) {
+				return true;
+			}
+			this.legacy = (this.in.getShort(0) == ObjectStreamConstants.STREAM_MAGIC);
+		}
 		try {
-			this.out.flush();
-			
-			//receive profile
-			
-			Object obj=this.in.readObject();
-			String ip=obj.toString();
-			obj=this.in.readObject();
-			double cpu=Double.valueOf(obj.toString());
-			obj=this.in.readObject();
-			double bandwidth_in=Double.valueOf(obj.toString());
-			obj=this.in.readObject();
-			double bandwidth_out=Double.valueOf(obj.toString());
-			this.out.flush();
-
-			Profile prf=new Profile(ip);
+			if (this.legacy == true) {
+				Profile prf = this.parse();
+				if (prf != null) {
+					Master.putProfile(prf);
+					LOG.debug("Profile from {}: {} cpu {} in {} out {}",
+							new Object[] { this.remote, prf.ip, prf.getCpu_usage(),
+									prf.getBandwidth_in(), prf.getBandwidth_out() });
+					// old agents connect once per report
+					return false;
+				}
+			} else {
+				this.readFrames();
+			}
+		} catch (IOException e) {
+			LOG.info("error! bad report from {}: {}", this.remote, e.toString());
+			return false;
+		}
+		if (this.in.hasRemaining() == false) {
+			if (this.in.capacity() >= MAX_BUFFER_BYTES) {
+				LOG.info("error! report from {} too large", this.remote);
+				return false;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(
+					this.in.capacity() * 2, MAX_BUFFER_BYTES));
+			this.in.flip();
+			bigger.put(this.in);
+			this.in = bigger;
+		}
+		return true;
+	}
+
+	/**
+	 * Store every complete frame in the buffer and keep the partial rest
+	 */
+	private void readFrames() throws IOException {
+		int pos = 0;
+		int end = this.in.position();
+		while (end - pos >= ProfileReport.HEADER_BYTES) {
+			int length = this.in.getInt(pos);
+			if (length <= 0 || length > ProfileReport.MAX_FRAME_BYTES) {
+				throw new IOException("bad frame length " + length);
+			}
+			if (end - pos - ProfileReport.HEADER_BYTES < length) {
+				break;
+			}
+			ProfileReport report = ProfileReport.decode(ByteBuffer.wrap(
+					this.in.array(), pos + ProfileReport.HEADER_BYTES, length));
+			Master.putReport(report);
+			LOG.debug("Report from {}: {}", this.remote, report);
+			pos += ProfileReport.HEADER_BYTES + length;
+		}
+		if (pos > 0) {
+			this.in.flip();
+			this.in.position(pos);
+			this.in.compact();
+		}
+	}
+
+	/**
+	 * @return the report, or null if it has not fully arrived yet
+	 */
+	private Profile parse() throws IOException {
+		try {
+			ObjectInputStream ois = new ReportInputStream(new ByteArrayInputStream(
+					this.in.array(), 0, this.in.position()));
+			String ip = ois.readObject().toString();
+			double cpu = Double.valueOf(ois.readObject().toString());
+			double bandwidth_in = Double.valueOf(ois.readObject().toString());
+			double bandwidth_out = Double.valueOf(ois.readObject().toString());
+			Profile prf = new Profile(ip);
 			prf.setBandwidth_in(bandwidth_in);
 			prf.setBandwidth_out(bandwidth_out);
 			prf.setCpu_usage(cpu);
-			
-			Master.profile_map.put(prf.ip, prf);
-			//print out information
-			System.out.println("host IP address: "+prf.ip);
-			System.out.println(prf.ip+"-Bandwidth_in: "+prf.getBandwidth_in());
-			System.out.println(prf.ip+"-Bandwidth_out: "+prf.getBandwidth_out());
-			System.out.println(prf.ip+"-cpu_usage: "+prf.getCpu_usage());
-			
-			
-			Master.profile_map.put(prf.ip, prf);
-			//print out information
-			LOG.info("host IP address: "+prf.ip);
-			LOG.info(prf.ip+"-Bandwidth_in: "+prf.getBandwidth_in());
-			LOG.info(prf.ip+"-Bandwidth_out: "+prf.getBandwidth_out());
-			LOG.info(prf.ip+"-cpu_usage: "+prf.getCpu_usage());
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return prf;
+		} catch (EOFException e) {
+			return null;
 		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			throw new IOException(e.toString());
+		} catch (NumberFormatException e) {
+			throw new IOException(e.toString());
 		}
 	}
-	
-}
\ No newline at end of file
+}
+
+/**
+ * Only lets the values an agent sends (strings and boxed numbers) be
+ * deserialized, so a client cannot make the scheduler instantiate arbitrary
+ * classes.
+ */
+class ReportInputStream extends ObjectInputStream {
+
+	public ReportInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+			ClassNotFoundException {
+		String name = desc.getName();
+		if (name.equals("java.lang.String") || name.equals("java.lang.Number")
+				|| name.equals("java.lang.Double") || name.equals("java.lang.Float")
+				|| name.equals("java.lang.Integer") || name.equals("java.lang.Long")) {
+			return super.resolveClass(desc);
+		}
+		throw new InvalidClassException(name, "not allowed in a profile report");
+	}
+}
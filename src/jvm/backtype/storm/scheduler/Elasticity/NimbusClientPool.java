@@ -0,0 +1,236 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.generated.InvalidTopologyException;
+import backtype.storm.generated.Nimbus;
+import backtype.storm.generated.NotAliveException;
+
+/**
+ * Pool of long lived Nimbus thrift connections shared by every Nimbus call in
+ * the elasticity package.
+ *
+ * Connections are reused across scheduling rounds, validated with a cheap
+ * call when they sat idle for too long, and dropped when the transport
+ * breaks. Reconnects after a failure are throttled with exponential backoff so
+ * a dead Nimbus is not hammered from inside its own scheduling thread.
+ */
+public class NimbusClientPool {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(NimbusClientPool.class);
+
+	private static NimbusClientPool instance = null;
+
+	/**
+	 * A unit of work against Nimbus, executed on a pooled client
+	 */
+	public interface NimbusCall<T> {
+		T call(Nimbus.Client client) throws TException, NotAliveException,
+				InvalidTopologyException;
+	}
+
+	static class PooledClient {
+		TTransport transport;
+		Nimbus.Client client;
+		long lastUsed;
+
+		PooledClient(TTransport transport, Nimbus.Client client) {
+			this.transport = transport;
+			this.client = client;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		void close() {
+			try {
+				this.transport.close();
+			} catch (Exception e) {
+				// nothing left to do with a broken transport
+			}
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final int timeoutMs;
+	private final long validateIdleMs;
+	private final long backoffBaseMs;
+	private final long backoffMaxMs;
+	private final LinkedBlockingDeque<PooledClient> idle;
+
+	private long backoffMs = 0;
+	private long nextConnectTime = 0;
+
+	@SuppressWarnings("rawtypes")
+	protected NimbusClientPool(Map conf) {
+		this.host = ElasticityConfig.getString(conf,
+				ElasticityConfig.NIMBUS_HOST, "localhost");
+		this.port = ElasticityConfig.getInt(conf,
+				ElasticityConfig.NIMBUS_THRIFT_PORT, 6627);
+		this.timeoutMs = ElasticityConfig.getInt(conf,
+				ElasticityConfig.NIMBUS_CLIENT_TIMEOUT_MS, 5000);
+		this.validateIdleMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.NIMBUS_CLIENT_VALIDATE_IDLE_MS, 30000);
+		this.backoffBaseMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.NIMBUS_CLIENT_BACKOFF_BASE_MS, 500);
+		this.backoffMaxMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.NIMBUS_CLIENT_BACKOFF_MAX_MS, 30000);
+		this.idle = new LinkedBlockingDeque<PooledClient>(Math.max(1,
+				ElasticityConfig.getInt(conf,
+						ElasticityConfig.NIMBUS_CLIENT_POOL_SIZE, 4)));
+	}
+
+	public static synchronized NimbusClientPool getInstance() {
+		if (instance == null) {
+			instance = new NimbusClientPool(null);
+		}
+		return instance;
+	}
+
+	/**
+	 * (Re)create the shared pool from the storm conf. Connections of a
+	 * previous pool are closed.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static synchronized void configure(Map conf) {
+		if (instance != null) {
+			instance.close();
+		}
+		instance = new NimbusClientPool(conf);
+		LOG.info("Nimbus client pool configured for {}:{}", instance.host,
+				instance.port);
+	}
+
+	/**
+	 * Run call on a pooled client. A connection that fails at the transport
+	 * level is discarded and the call is retried once on a fresh connection,
+	 * which covers sockets that went stale while idle. Errors reported by
+	 * Nimbus itself are wrapped into a TException.
+	 */
+	public <T> T execute(NimbusCall<T> call) throws TException {
+		return this.execute(call, true);
+	}
+
+	/**
+	 * @param retry retry once after a transport failure; false for calls
+	 *        that must not run twice, e.g. rebalance, as the failure may be
+	 *        a read timeout after Nimbus did the work
+	 */
+	public <T> T execute(NimbusCall<T> call, boolean retry) throws TException {
+		TTransportException lastError = null;
+		for (int attempt = 0; attempt < (retry ? 2 : 1); attempt++) {
+			PooledClient pc = this.borrow();
+			try {
+				T retVal = call.call(pc.client);
+				this.release(pc);
+				return retVal;
+			} catch (TTransportException e) {
+				LOG.warn("Nimbus connection failed: {}", e.toString());
+				pc.close();
+				lastError = e;
+			} catch (TApplicationException e) {
+				// a complete error reply, the connection is still in sync
+				this.release(pc);
+				throw e;
+			} catch (TException e) {
+				// e.g. a protocol error, the framing can no longer be trusted
+				pc.close();
+				throw e;
+			} catch (NotAliveException e) {
+				this.release(pc);
+				throw new TException(e);
+			} catch (InvalidTopologyException e) {
+				this.release(pc);
+				throw new TException(e);
+			} catch (RuntimeException e) {
+				pc.close();
+				throw e;
+			}
+		}
+		throw lastError;
+	}
+
+	public void close() {
+		PooledClient pc;
+		while ((pc = this.idle.poll()) != null) {
+			pc.close();
+		}
+	}
+
+	private PooledClient borrow() throws TTransportException {
+		PooledClient pc;
+		while ((pc = this.idle.poll()) != null) {
+			if (pc.transport.isOpen() == false) {
+				pc.close();
+				continue;
+			}
+			if (System.currentTimeMillis() - pc.lastUsed > this.validateIdleMs
+					&& this.validate(pc) == false) {
+				pc.close();
+				continue;
+			}
+			return pc;
+		}
+		return this.connect();
+	}
+
+	private void release(PooledClient pc) {
+		pc.lastUsed = System.currentTimeMillis();
+		if (this.idle.offerFirst(pc) == false) {
+			pc.close();
+		}
+	}
+
+	private boolean validate(PooledClient pc) {
+		try {
+			pc.client.getNimbusConf();
+			return true;
+		} catch (TException e) {
+			LOG.info("Dropping stale Nimbus connection: {}", e.toString());
+			return false;
+		}
+	}
+
+	private PooledClient connect() throws TTransportException {
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (now < this.nextConnectTime) {
+				throw new TTransportException("Nimbus " + this.host + ":"
+						+ this.port + " unreachable, next attempt in "
+						+ (this.nextConnectTime - now) + "ms");
+			}
+		}
+		TSocket tsocket = new TSocket(this.host, this.port, this.timeoutMs);
+		TFramedTransport tTransport = new TFramedTransport(tsocket);
+		TBinaryProtocol tBinaryProtocol = new TBinaryProtocol(tTransport);
+		try {
+			tTransport.open();
+		} catch (TTransportException e) {
+			synchronized (this) {
+				this.backoffMs = this.backoffMs == 0 ? this.backoffBaseMs
+						: Math.min(this.backoffMs * 2, this.backoffMaxMs);
+				this.nextConnectTime = System.currentTimeMillis()
+						+ this.backoffMs;
+			}
+			LOG.error("Cannot connect to Nimbus {}:{}, backing off {}ms",
+					new Object[] { this.host, this.port, this.backoffMs });
+			throw e;
+		}
+		synchronized (this) {
+			this.backoffMs = 0;
+			this.nextConnectTime = 0;
+		}
+		return new PooledClient(tTransport, new Nimbus.Client(tBinaryProtocol));
+	}
+}
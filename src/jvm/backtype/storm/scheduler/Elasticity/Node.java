@@ -18,6 +18,8 @@ public class Node {
 	public List<WorkerSlot> slots;
 	public List<ExecutorDetails> execs;
 	public Map<WorkerSlot, List<ExecutorDetails>> slot_to_exec;
+	//hardware reports of this node, set by ProfileResolver
+	public NodeProfile profile;
 	
 	public Node(String supervisor_id, Cluster cluster) {
 		this.sup = cluster.getSupervisors().get(supervisor_id);
@@ -0,0 +1,382 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hardware agent run on every supervisor host. Samples /proc every interval
+ * and streams a ProfileReport (cpu, bandwidth in/out, memory) to the Master
+ * monitoring server over one long lived connection, reconnecting with backoff
+ * when the connection drops.
+ *
+ * Usage: NodeAgent <master host> [port, 6789] [interval ms, 1000] [host name]
+ *
+ * Master closes connections that stay silent for
+ * elasticity.master.read.timeout.ms, 10s by default, so the interval is
+ * capped at MAX_INTERVAL_MS.
+ *
+ * The host name defaults to the canonical name of the local host, the same
+ * name a supervisor reports to Nimbus unless storm.local.hostname is set.
+ */
+public class NodeAgent implements Runnable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(NodeAgent.class);
+
+	private static final long BACKOFF_MAX_MS = 30000;
+	// half of the default read timeout of Master
+	static final long MAX_INTERVAL_MS = 5000;
+
+	private final InetSocketAddress master;
+	private final long intervalMs;
+	private final String host;
+	private final ProcSampler sampler;
+	private final ByteBuffer frame;
+	private SocketChannel channel = null;
+	private long backoffMs = 0;
+	private long retryAt = 0;
+	private volatile boolean running = true;
+
+	public NodeAgent(String masterHost, int port, long intervalMs, String host) {
+		this.master = new InetSocketAddress(masterHost, port);
+		if (intervalMs > MAX_INTERVAL_MS) {
+			LOG.info("error! interval {}ms would let Master time the connection out, using {}ms",
+					intervalMs, MAX_INTERVAL_MS);
+		}
+		this.intervalMs = Math.max(1, Math.min(intervalMs, MAX_INTERVAL_MS));
+		this.host = host;
+		this.sampler = new ProcSampler();
+		this.frame = ByteBuffer.allocate(1024);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: NodeAgent <master host> [port] [interval ms] [host name]");
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 6789;
+		long intervalMs = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+		String host = args.length > 3 ? args[3] : InetAddress.getLocalHost()
+				.getCanonicalHostName();
+		new NodeAgent(args[0], port, intervalMs, host).run();
+	}
+
+	public long getIntervalMs() {
+		return this.intervalMs;
+	}
+
+	public void stop() {
+		this.running = false;
+	}
+
+	@Override
+	public void run() {
+		LOG.info("Node agent for {} reporting to {} every {}ms", new Object[] {
+				this.host, this.master, this.intervalMs });
+		long next = System.currentTimeMillis();
+		while (this.running == true) {
+			try {
+				this.sampler.sample();
+				if (this.sampler.isReady() == true) {
+					this.send(System.currentTimeMillis());
+				}
+			} catch (IOException e) {
+				LOG.info("error! sampling /proc: {}", e.toString());
+			}
+			next += this.intervalMs;
+			long sleepMs = next - System.currentTimeMillis();
+			if (sleepMs < 0) {
+				// fell behind, e.g. after a suspend: do not burst to catch up
+				next = System.currentTimeMillis();
+				continue;
+			}
+			try {
+				Thread.sleep(sleepMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		this.disconnect();
+	}
+
+	private void send(long now) {
+		if (this.channel == null) {
+			if (now < this.retryAt) {
+				return;
+			}
+			try {
+				this.channel = SocketChannel.open();
+				this.channel.socket().setTcpNoDelay(true);
+				this.channel.socket().connect(this.master, (int) Math.max(this.intervalMs, 1000));
+				this.backoffMs = 0;
+				LOG.info("Connected to {}", this.master);
+			} catch (IOException e) {
+				this.disconnect();
+				this.backoffMs = Math.min(BACKOFF_MAX_MS, Math.max(this.intervalMs, this.backoffMs * 2));
+				this.retryAt = now + this.backoffMs;
+				LOG.info("error! cannot connect to {}, retrying in {}ms", this.master, this.backoffMs);
+				return;
+			}
+		}
+		// one frame: HEADER_BYTES length prefix, then the report
+		this.frame.clear();
+		new ProfileReport(this.host, now)
+				.add(ProfileReport.CPU, this.sampler.getCpu())
+				.add(ProfileReport.BANDWIDTH_IN, this.sampler.getBandwidthIn())
+				.add(ProfileReport.BANDWIDTH_OUT, this.sampler.getBandwidthOut())
+				.add(ProfileReport.MEMORY, this.sampler.getMemory())
+				.add(ProfileReport.CORES, Runtime.getRuntime().availableProcessors())
+				.encode(this.frame);
+		this.frame.flip();
+		try {
+			while (this.frame.hasRemaining()) {
+				this.channel.write(this.frame);
+			}
+		} catch (IOException e) {
+			LOG.info("error! lost connection to {}: {}", this.master, e.toString());
+			this.disconnect();
+		}
+	}
+
+	private void disconnect() {
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// already closed
+			}
+			this.channel = null;
+		}
+	}
+}
+
+/**
+ * Reads /proc/stat, /proc/meminfo and /proc/net/dev into one reused buffer
+ * and keeps the previous counters to turn them into utilisation and rates.
+ * Numbers are parsed straight from the bytes, so a sample allocates nothing
+ * but the file handles.
+ */
+class ProcSampler {
+
+	private static final byte[] CPU = "cpu ".getBytes();
+	private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+	private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes();
+	private static final byte[] MEM_FREE = "MemFree:".getBytes();
+	private static final byte[] BUFFERS = "Buffers:".getBytes();
+	private static final byte[] CACHED = "Cached:".getBytes();
+
+	private byte[] buf = new byte[16 * 1024];
+	private int len;
+	private int pos;
+
+	private long lastTime = -1;
+	private long lastBusy;
+	private long lastTotal;
+	private long lastRx;
+	private long lastTx;
+	private boolean ready = false;
+
+	private double cpu;
+	private double memory;
+	private double bandwidthIn;
+	private double bandwidthOut;
+
+	/**
+	 * @return true once two samples were taken, so rates are known
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	public double getCpu() {
+		return this.cpu;
+	}
+
+	public double getMemory() {
+		return this.memory;
+	}
+
+	public double getBandwidthIn() {
+		return this.bandwidthIn;
+	}
+
+	public double getBandwidthOut() {
+		return this.bandwidthOut;
+	}
+
+	public void sample() throws IOException {
+		long now = System.nanoTime();
+
+		// cpu  user nice system idle iowait irq softirq steal guest guest_nice
+		this.load("/proc/stat");
+		long busy = 0;
+		long total = 0;
+		if (this.seekLine(CPU) == true) {
+			for (int field = 0; field < 8; field++) {
+				long v = this.nextLong();
+				if (v < 0) {
+					break;
+				}
+				total += v;
+				if (field != 3 && field != 4) {
+					busy += v;
+				}
+			}
+		}
+
+		this.load("/proc/meminfo");
+		long memTotal = this.seekLine(MEM_TOTAL) ? this.nextLong() : 0;
+		long memAvailable = this.seekLine(MEM_AVAILABLE) ? this.nextLong() : -1;
+		if (memAvailable < 0) {
+			// kernels before 3.14
+			memAvailable = (this.seekLine(MEM_FREE) ? this.nextLong() : 0)
+					+ (this.seekLine(BUFFERS) ? this.nextLong() : 0)
+					+ (this.seekLine(CACHED) ? this.nextLong() : 0);
+		}
+		if (memTotal > 0) {
+			this.memory = Math.max(0, memTotal - memAvailable) * 100.0 / memTotal;
+		}
+
+		// iface: rx bytes packets errs drop fifo frame compressed multicast
+		//        tx bytes ...
+		this.load("/proc/net/dev");
+		long rx = 0;
+		long tx = 0;
+		this.pos = 0;
+		this.skipLine();
+		this.skipLine();
+		while (this.pos < this.len) {
+			int colon = this.indexOf((byte) ':');
+			if (colon < 0) {
+				break;
+			}
+			boolean loopback = this.isLoopback(this.pos, colon);
+			this.pos = colon + 1;
+			long rxBytes = this.nextLong();
+			for (int i = 0; i < 7; i++) {
+				this.nextLong();
+			}
+			long txBytes = this.nextLong();
+			if (loopback == false) {
+				rx += Math.max(0, rxBytes);
+				tx += Math.max(0, txBytes);
+			}
+			this.skipLine();
+		}
+
+		if (this.lastTime >= 0) {
+			double secs = (now - this.lastTime) / 1e9;
+			long dTotal = total - this.lastTotal;
+			if (dTotal > 0) {
+				this.cpu = Math.max(0, busy - this.lastBusy) * 100.0 / dTotal;
+			}
+			if (secs > 0) {
+				// counters restart when an interface goes away: count from 0
+				this.bandwidthIn = (rx >= this.lastRx ? rx - this.lastRx : rx) / secs;
+				this.bandwidthOut = (tx >= this.lastTx ? tx - this.lastTx : tx) / secs;
+			}
+			this.ready = true;
+		}
+		this.lastTime = now;
+		this.lastBusy = busy;
+		this.lastTotal = total;
+		this.lastRx = rx;
+		this.lastTx = tx;
+	}
+
+	private void load(String path) throws IOException {
+		FileInputStream in = new FileInputStream(path);
+		try {
+			this.len = 0;
+			int n;
+			while ((n = in.read(this.buf, this.len, this.buf.length - this.len)) > 0) {
+				this.len += n;
+				if (this.len == this.buf.length) {
+					byte[] bigger = new byte[this.buf.length * 2];
+					System.arraycopy(this.buf, 0, bigger, 0, this.len);
+					this.buf = bigger;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		this.pos = 0;
+	}
+
+	/**
+	 * Move pos behind prefix at the start of a line
+	 * @return false if no line starts with prefix
+	 */
+	private boolean seekLine(byte[] prefix) {
+		int i = 0;
+		while (i + prefix.length <= this.len) {
+			boolean match = true;
+			for (int j = 0; j < prefix.length; j++) {
+				if (this.buf[i + j] != prefix[j]) {
+					match = false;
+					break;
+				}
+			}
+			if (match == true) {
+				this.pos = i + prefix.length;
+				return true;
+			}
+			while (i < this.len && this.buf[i] != '\n') {
+				i++;
+			}
+			i++;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the next unsigned number on the current line, -1 if there is
+	 *         none
+	 */
+	private long nextLong() {
+		while (this.pos < this.len && this.buf[this.pos] != '\n'
+				&& (this.buf[this.pos] < '0' || this.buf[this.pos] > '9')) {
+			this.pos++;
+		}
+		if (this.pos >= this.len || this.buf[this.pos] == '\n') {
+			return -1;
+		}
+		long v = 0;
+		while (this.pos < this.len && this.buf[this.pos] >= '0'
+				&& this.buf[this.pos] <= '9') {
+			v = v * 10 + (this.buf[this.pos] - '0');
+			this.pos++;
+		}
+		return v;
+	}
+
+	private void skipLine() {
+		while (this.pos < this.len && this.buf[this.pos] != '\n') {
+			this.pos++;
+		}
+		this.pos++;
+	}
+
+	private int indexOf(byte b) {
+		for (int i = this.pos; i < this.len && this.buf[i] != '\n'; i++) {
+			if (this.buf[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isLoopback(int from, int to) {
+		while (from < to && this.buf[from] == ' ') {
+			from++;
+		}
+		return to - from == 2 && this.buf[from] == 'l' && this.buf[from + 1] == 'o';
+	}
+}
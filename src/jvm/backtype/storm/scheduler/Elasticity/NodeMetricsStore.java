@@ -0,0 +1,202 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent hardware samples of every node reporting to Master, so placement can
+ * look at a node's load over a window instead of its latest, possibly spiky,
+ * sample.
+ *
+ * Each node has a fixed size ring of primitive samples per metric
+ * (ProfileReport.CPU, BANDWIDTH_IN, BANDWIDTH_OUT, MEMORY, CORES), so memory is
+ * bounded by nodes x samples no matter how long Master runs. Nodes that
+ * stopped reporting are dropped after the retention time. Samples are stamped
+ * with Master's clock, so windows do not depend on agent clocks.
+ */
+public class NodeMetricsStore {
+
+	public static final int NUM_METRICS = 5;
+
+	private static NodeMetricsStore instance = null;
+
+	private final ConcurrentHashMap<String, Series> nodes;
+	private volatile int samples = 600;
+	private volatile long retentionMs = 600000;
+
+	private NodeMetricsStore() {
+		this.nodes = new ConcurrentHashMap<String, Series>();
+	}
+
+	public static synchronized NodeMetricsStore getInstance() {
+		if (instance == null) {
+			instance = new NodeMetricsStore();
+		}
+		return instance;
+	}
+
+	/**
+	 * Read retention from the storm conf; series already created keep their
+	 * size
+	 */
+	@SuppressWarnings("rawtypes")
+	public void configure(Map conf) {
+		this.samples = Math.max(2, ElasticityConfig.getInt(conf,
+				ElasticityConfig.MASTER_HISTORY_SAMPLES, this.samples));
+		this.retentionMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.MASTER_HISTORY_RETENTION_MS, this.retentionMs);
+	}
+
+	/**
+	 * @param values
+	 *            one value per metric id, NaN if the sample lacks it
+	 */
+	public void record(String host, long timeMs, double[] values) {
+		Series series = this.nodes.get(host);
+		if (series == null) {
+			Series created = new Series(this.samples);
+			series = this.nodes.putIfAbsent(host, created);
+			if (series == null) {
+				series = created;
+			}
+		}
+		series.add(timeMs, values);
+	}
+
+	/**
+	 * @return summary of metric over the last windowMs, null if the node has
+	 *         no sample of it in the window
+	 */
+	public Summary getSummary(String host, short metric, long windowMs) {
+		Series series = this.nodes.get(host);
+		if (series == null) {
+			return null;
+		}
+		return series.summarize(metric, System.currentTimeMillis() - windowMs);
+	}
+
+	/**
+	 * @return time of the latest sample of host, -1 if unknown
+	 */
+	public long getLastTime(String host) {
+		Series series = this.nodes.get(host);
+		return series == null ? -1 : series.getLastTime();
+	}
+
+	public Set<String> getHosts() {
+		return this.nodes.keySet();
+	}
+
+	/**
+	 * Drop nodes without a sample in the retention time
+	 */
+	public void expire(long now) {
+		Iterator<Map.Entry<String, Series>> it = this.nodes.entrySet().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().getValue().getLastTime() > this.retentionMs) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * min / avg / p95 / max of one metric over a window
+	 */
+	public static class Summary {
+		public final int count;
+		public final double min;
+		public final double avg;
+		public final double p95;
+		public final double max;
+		public final double last;
+
+		Summary(int count, double min, double avg, double p95, double max, double last) {
+			this.count = count;
+			this.min = min;
+			this.avg = avg;
+			this.p95 = p95;
+			this.max = max;
+			this.last = last;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d min=%.2f avg=%.2f p95=%.2f max=%.2f",
+					this.count, this.min, this.avg, this.p95, this.max);
+		}
+	}
+
+	/**
+	 * Ring buffer of one node
+	 */
+	static class Series {
+		private final long[] times;
+		private final double[][] values;
+		private int head = 0;
+		private int size = 0;
+		// reused by summarize() to sort for the percentile
+		private double[] scratch;
+
+		Series(int capacity) {
+			this.times = new long[capacity];
+			this.values = new double[NUM_METRICS][capacity];
+			this.scratch = new double[capacity];
+		}
+
+		synchronized void add(long timeMs, double[] sample) {
+			this.times[this.head] = timeMs;
+			for (int m = 0; m < NUM_METRICS; m++) {
+				this.values[m][this.head] = m < sample.length ? sample[m] : Double.NaN;
+			}
+			this.head = (this.head + 1) % this.times.length;
+			if (this.size < this.times.length) {
+				this.size++;
+			}
+		}
+
+		synchronized long getLastTime() {
+			if (this.size == 0) {
+				return -1;
+			}
+			return this.times[(this.head - 1 + this.times.length) % this.times.length];
+		}
+
+		synchronized Summary summarize(short metric, long since) {
+			if (metric < 0 || metric >= NUM_METRICS) {
+				return null;
+			}
+			int n = 0;
+			double sum = 0.0;
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			double last = Double.NaN;
+			// newest to oldest, stop at the first sample outside the window
+			for (int i = 1; i <= this.size; i++) {
+				int idx = (this.head - i + this.times.length) % this.times.length;
+				if (this.times[idx] < since) {
+					break;
+				}
+				double v = this.values[metric][idx];
+				if (Double.isNaN(v)) {
+					continue;
+				}
+				if (n == 0) {
+					last = v;
+				}
+				this.scratch[n++] = v;
+				sum += v;
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			if (n == 0) {
+				return null;
+			}
+			Arrays.sort(this.scratch, 0, n);
+			double p95 = this.scratch[Math.min(n - 1, (int) Math.ceil(0.95 * n) - 1)];
+			return new Summary(n, min, sum / n, p95, max, last);
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package backtype.storm.scheduler.Elasticity;
+
+/**
+ * Live view of the hardware reports of one supervisor. ProfileResolver finds
+ * which agent reports belong to the supervisor and sets agentKey; the view
+ * itself holds no samples and always reads the latest data from
+ * Master.profile_map and NodeMetricsStore.
+ *
+ * Headroom is what is left of the busiest resource: 1.0 is an idle node,
+ * 0.0 a node whose cpu or NIC is saturated.
+ */
+public class NodeProfile {
+
+	public final String supervisor_id;
+	public volatile String hostname;
+	// key of the agent reports (host name or IP), null until resolved
+	public volatile String agentKey = null;
+
+	// headroom is recomputed only when a new sample arrived
+	private long cachedAt = -1;
+	private long cachedWindowMs = -1;
+	private double cachedCpu = Double.NaN;
+	private double cachedNic = Double.NaN;
+
+	public NodeProfile(String supervisor_id, String hostname) {
+		this.supervisor_id = supervisor_id;
+		this.hostname = hostname;
+	}
+
+	/**
+	 * @return latest report of the node, null if none arrived
+	 */
+	public Profile getLatest() {
+		String key = this.agentKey;
+		if (key == null || Master.profile_map == null) {
+			return null;
+		}
+		return Master.profile_map.get(key);
+	}
+
+	public boolean hasData() {
+		String key = this.agentKey;
+		return key != null && NodeMetricsStore.getInstance().getLastTime(key) >= 0;
+	}
+
+	/**
+	 * @return ms since the latest sample, Long.MAX_VALUE if there is none
+	 */
+	public long getAge() {
+		String key = this.agentKey;
+		long last = key == null ? -1 : NodeMetricsStore.getInstance().getLastTime(key);
+		return last < 0 ? Long.MAX_VALUE : System.currentTimeMillis() - last;
+	}
+
+	/**
+	 * @return summary of metric (a ProfileReport id) over windowMs, null if
+	 *         unknown
+	 */
+	public NodeMetricsStore.Summary getSummary(short metric, long windowMs) {
+		String key = this.agentKey;
+		if (key == null) {
+			return null;
+		}
+		return NodeMetricsStore.getInstance().getSummary(key, metric, windowMs);
+	}
+
+	/**
+	 * @return spare cpu, 0.0 - 1.0, from the p95 over windowMs; NaN if unknown
+	 */
+	public synchronized double getCpuHeadroom(long windowMs) {
+		this.refresh(windowMs);
+		return this.cachedCpu;
+	}
+
+	/**
+	 * @return spare NIC bandwidth, 0.0 - 1.0, from the p95 of the busier
+	 *         direction over windowMs; NaN if unknown
+	 */
+	public synchronized double getNicHeadroom(long windowMs, double nicBytesPerSec) {
+		this.refresh(windowMs);
+		if (Double.isNaN(this.cachedNic) || nicBytesPerSec <= 0) {
+			return Double.NaN;
+		}
+		return clamp(1.0 - this.cachedNic / nicBytesPerSec);
+	}
+
+	/**
+	 * @return headroom of the scarcer of cpu and NIC, NaN if both are unknown
+	 */
+	public double getHeadroom(long windowMs, double nicBytesPerSec) {
+		double cpu = this.getCpuHeadroom(windowMs);
+		double nic = this.getNicHeadroom(windowMs, nicBytesPerSec);
+		if (Double.isNaN(cpu)) {
+			return nic;
+		}
+		if (Double.isNaN(nic)) {
+			return cpu;
+		}
+		return Math.min(cpu, nic);
+	}
+
+	/**
+	 * @return processors of the node in its latest report, NaN if unknown
+	 */
+	public double getCores() {
+		NodeMetricsStore.Summary cores = this.getSummary(ProfileReport.CORES, Long.MAX_VALUE);
+		return cores == null ? Double.NaN : cores.last;
+	}
+
+	private void refresh(long windowMs) {
+		String key = this.agentKey;
+		long last = key == null ? -1 : NodeMetricsStore.getInstance().getLastTime(key);
+		if (last == this.cachedAt && windowMs == this.cachedWindowMs) {
+			return;
+		}
+		this.cachedAt = last;
+		this.cachedWindowMs = windowMs;
+		NodeMetricsStore.Summary cpu = this.getSummary(ProfileReport.CPU, windowMs);
+		this.cachedCpu = cpu == null ? Double.NaN : clamp(1.0 - cpu.p95 / 100.0);
+		NodeMetricsStore.Summary in = this.getSummary(ProfileReport.BANDWIDTH_IN, windowMs);
+		NodeMetricsStore.Summary out = this.getSummary(ProfileReport.BANDWIDTH_OUT, windowMs);
+		if (in == null && out == null) {
+			this.cachedNic = Double.NaN;
+		} else {
+			this.cachedNic = Math.max(in == null ? 0.0 : in.p95, out == null ? 0.0 : out.p95);
+		}
+	}
+
+	private static double clamp(double v) {
+		return Math.max(0.0, Math.min(1.0, v));
+	}
+
+	@Override
+	public String toString() {
+		Profile prf = this.getLatest();
+		if (prf == null) {
+			return this.hostname + " (no reports" + (this.agentKey == null ? "" : " from " + this.agentKey) + ")";
+		}
+		return String.format("%s (agent %s) cpu=%.1f%% mem=%.1f%% in=%.0fB/s out=%.0fB/s",
+				this.hostname, this.agentKey, prf.getCpu_usage(), prf.getMemory_usage(),
+				prf.getBandwidth_in(), prf.getBandwidth_out());
+	}
+}
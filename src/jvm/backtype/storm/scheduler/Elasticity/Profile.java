@@ -15,6 +15,9 @@ public class Profile implements Serializable{
 	private double bandwidth_out;
 	private double current_inoctets;
 	private double current_outoctets;
+	private double memory_usage;
+	// agent time of the last report, ms
+	private long timestamp;
 	
 	
 	public Profile(String ip) throws IOException{
@@ -24,6 +27,8 @@ public class Profile implements Serializable{
 		this.bandwidth_out=0.0;
 		this.current_inoctets=0.0;
 		this.current_outoctets=0.0;
+		this.memory_usage=0.0;
+		this.timestamp=0;
 	}
 	
 	public double getCpu_usage() {
@@ -54,7 +59,19 @@ public class Profile implements Serializable{
 		return current_outoctets; 
 	}
 	public void setCurrent_outoctets(double Current_outoctets) {
-		this.current_inoctets = Current_outoctets;
+		this.current_outoctets = Current_outoctets;
+	}
+	public double getMemory_usage() {
+		return memory_usage;
+	}
+	public void setMemory_usage(double memory_usage) {
+		this.memory_usage = memory_usage;
+	}
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
 	}
 	
 
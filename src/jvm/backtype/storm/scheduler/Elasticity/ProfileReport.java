@@ -0,0 +1,174 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * One hardware report of a node agent, and its wire format.
+ *
+ * An agent keeps one connection to Master open and writes one frame per
+ * report, all big endian:
+ *
+ * int    length of the rest of the frame
+ * byte   VERSION
+ * long   time of the sample, ms
+ * short  length of host, then host in UTF-8
+ * short  number of metrics n
+ * n x    (short metric id, double value)
+ *
+ * Metric ids the Master does not know are skipped, so agents can send more
+ * metrics than this version understands. Master greets every connection with
+ * the Java serialization stream header for the old ObjectOutputStream
+ * agents; frame agents ignore it.
+ */
+public class ProfileReport {
+
+	public static final byte VERSION = 1;
+	// the int length prefix in front of every frame
+	public static final int HEADER_BYTES = 4;
+	public static final int MAX_FRAME_BYTES = 64 * 1024;
+
+	/**
+	 * Metric ids
+	 */
+	// percent of cpu time busy, 0 - 100
+	public static final short CPU = 0;
+	// bytes per second received / sent on all interfaces but loopback
+	public static final short BANDWIDTH_IN = 1;
+	public static final short BANDWIDTH_OUT = 2;
+	// percent of memory in use, 0 - 100
+	public static final short MEMORY = 3;
+	// processors available to the jvm of the agent
+	public static final short CORES = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public String host;
+	public long timestamp;
+	private short[] ids;
+	private double[] values;
+	private int size;
+
+	public ProfileReport(String host, long timestamp) {
+		this.host = host;
+		this.timestamp = timestamp;
+		this.ids = new short[4];
+		this.values = new double[4];
+		this.size = 0;
+	}
+
+	public ProfileReport add(short id, double value) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.ids[i] == id) {
+				this.values[i] = value;
+				return this;
+			}
+		}
+		if (this.size == this.ids.length) {
+			short[] ids = new short[this.size * 2];
+			double[] values = new double[this.size * 2];
+			System.arraycopy(this.ids, 0, ids, 0, this.size);
+			System.arraycopy(this.values, 0, values, 0, this.size);
+			this.ids = ids;
+			this.values = values;
+		}
+		this.ids[this.size] = id;
+		this.values[this.size] = value;
+		this.size++;
+		return this;
+	}
+
+	public boolean has(short id) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.ids[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return value of metric id, or defaultValue if the report lacks it
+	 */
+	public double get(short id, double defaultValue) {
+		for (int i = 0; i < this.size; i++) {
+			if (this.ids[i] == id) {
+				return this.values[i];
+			}
+		}
+		return defaultValue;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Write the whole frame, the HEADER_BYTES length prefix included, into
+	 * buf
+	 */
+	public void encode(ByteBuffer buf) {
+		byte[] hostBytes = this.host.getBytes(UTF8);
+		int length = 1 + 8 + 2 + hostBytes.length + 2 + this.size * 10;
+		buf.putInt(length);
+		buf.put(VERSION);
+		buf.putLong(this.timestamp);
+		buf.putShort((short) hostBytes.length);
+		buf.put(hostBytes);
+		buf.putShort((short) this.size);
+		for (int i = 0; i < this.size; i++) {
+			buf.putShort(this.ids[i]);
+			buf.putDouble(this.values[i]);
+		}
+	}
+
+	/**
+	 * @param frame
+	 *            the bytes after the length prefix, exactly one frame
+	 */
+	public static ProfileReport decode(ByteBuffer frame) throws IOException {
+		try {
+			byte version = frame.get();
+			if (version != VERSION) {
+				throw new IOException("unsupported report version " + version);
+			}
+			long timestamp = frame.getLong();
+			byte[] hostBytes = new byte[frame.getShort() & 0xffff];
+			frame.get(hostBytes);
+			ProfileReport report = new ProfileReport(new String(hostBytes, UTF8), timestamp);
+			int n = frame.getShort() & 0xffff;
+			for (int i = 0; i < n; i++) {
+				report.add(frame.getShort(), frame.getDouble());
+			}
+			return report;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated report frame");
+		}
+	}
+
+	/**
+	 * Copy the metrics Profile knows about into prf
+	 */
+	public void applyTo(Profile prf) {
+		prf.setCpu_usage(this.get(CPU, prf.getCpu_usage()));
+		prf.setBandwidth_in(this.get(BANDWIDTH_IN, prf.getBandwidth_in()));
+		prf.setBandwidth_out(this.get(BANDWIDTH_OUT, prf.getBandwidth_out()));
+		prf.setMemory_usage(this.get(MEMORY, prf.getMemory_usage()));
+		prf.setTimestamp(this.timestamp);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.host).append("@").append(this.timestamp).append(" {");
+		for (int i = 0; i < this.size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(this.ids[i]).append("=").append(this.values[i]);
+		}
+		return sb.append("}").toString();
+	}
+}
@@ -0,0 +1,170 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Joins the agent reports in Master (keyed by whatever host name or IP the
+ * agent sends) to the supervisors in GlobalState (keyed by supervisor id).
+ *
+ * A report key matches a supervisor when it equals its host name, its short
+ * host name, or one of the addresses the host name resolves to. Every key is
+ * matched once and the result cached; keys that match nothing are retried at
+ * most every RETRY_MS, so DNS is not queried on every scheduling round. The
+ * NodeProfile views live here as well, so they outlive the Node objects that
+ * are rebuilt every round.
+ */
+public class ProfileResolver {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ProfileResolver.class);
+
+	static final long RETRY_MS = 60000;
+
+	private static ProfileResolver instance = null;
+
+	// supervisor id -> view
+	private final Map<String, NodeProfile> views;
+	// agent key -> supervisor id
+	private final Map<String, String> resolved;
+	// agent key -> time of the last failed match
+	private final Map<String, Long> misses;
+	// host name -> addresses
+	private final Map<String, Set<String>> addresses;
+
+	private ProfileResolver() {
+		this.views = new HashMap<String, NodeProfile>();
+		this.resolved = new HashMap<String, String>();
+		this.misses = new HashMap<String, Long>();
+		this.addresses = new HashMap<String, Set<String>>();
+	}
+
+	public static synchronized ProfileResolver getInstance() {
+		if (instance == null) {
+			instance = new ProfileResolver();
+		}
+		return instance;
+	}
+
+	/**
+	 * Set Node.profile of every node, resolving agent keys not seen before
+	 * @param nodes supervisor id -> Node
+	 */
+	public synchronized void attach(Map<String, Node> nodes) {
+		if (nodes == null) {
+			return;
+		}
+		for (Node n : nodes.values()) {
+			NodeProfile view = this.views.get(n.supervisor_id);
+			if (view == null) {
+				view = new NodeProfile(n.supervisor_id, n.hostname);
+				this.views.put(n.supervisor_id, view);
+			} else if (n.hostname.equals(view.hostname) == false) {
+				// supervisor moved: resolve again
+				this.addresses.remove(view.hostname);
+				view.hostname = n.hostname;
+				view.agentKey = null;
+				this.forget(n.supervisor_id);
+			}
+			n.profile = view;
+		}
+		this.views.keySet().retainAll(nodes.keySet());
+		this.resolved.values().retainAll(nodes.keySet());
+
+		long now = System.currentTimeMillis();
+		Set<String> keys = new HashSet<String>(NodeMetricsStore.getInstance().getHosts());
+		if (Master.profile_map != null) {
+			keys.addAll(Master.profile_map.keySet());
+		}
+		for (String key : keys) {
+			String supId = this.resolved.get(key);
+			if (supId == null) {
+				Long missedAt = this.misses.get(key);
+				if (missedAt != null && now - missedAt < RETRY_MS) {
+					continue;
+				}
+				supId = this.match(key, nodes);
+				if (supId == null) {
+					this.misses.put(key, now);
+					LOG.info("Agent {} matches no supervisor", key);
+					continue;
+				}
+				this.misses.remove(key);
+				this.resolved.put(key, supId);
+				LOG.info("Agent {} reports for supervisor {} ({})", new Object[] {
+						key, supId, nodes.get(supId).hostname });
+			}
+			this.views.get(supId).agentKey = key;
+		}
+		this.misses.keySet().retainAll(keys);
+	}
+
+	/**
+	 * @return view of supervisor supId, null before it was attached
+	 */
+	public synchronized NodeProfile getView(String supId) {
+		return this.views.get(supId);
+	}
+
+	private String match(String key, Map<String, Node> nodes) {
+		for (Node n : nodes.values()) {
+			if (key.equalsIgnoreCase(n.hostname)) {
+				return n.supervisor_id;
+			}
+		}
+		String shortKey = shortName(key);
+		for (Node n : nodes.values()) {
+			if (shortKey.equalsIgnoreCase(shortName(n.hostname))) {
+				return n.supervisor_id;
+			}
+		}
+		for (Node n : nodes.values()) {
+			if (this.getAddresses(n.hostname).contains(key)) {
+				return n.supervisor_id;
+			}
+		}
+		return null;
+	}
+
+	private Set<String> getAddresses(String hostname) {
+		Set<String> retVal = this.addresses.get(hostname);
+		if (retVal == null) {
+			retVal = new HashSet<String>();
+			try {
+				for (InetAddress addr : InetAddress.getAllByName(hostname)) {
+					retVal.add(addr.getHostAddress());
+				}
+			} catch (UnknownHostException e) {
+				LOG.info("error! cannot resolve {}", hostname);
+			}
+			this.addresses.put(hostname, retVal);
+		}
+		return retVal;
+	}
+
+	private void forget(String supId) {
+		Iterator<Map.Entry<String, String>> it = this.resolved.entrySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().getValue().equals(supId)) {
+				it.remove();
+			}
+		}
+	}
+
+	private static String shortName(String host) {
+		// leave IPs alone
+		if (host.length() > 0 && Character.isDigit(host.charAt(0))) {
+			return host;
+		}
+		int dot = host.indexOf('.');
+		return dot < 0 ? host : host.substring(0, dot);
+	}
+}
@@ -0,0 +1,211 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Tuple rate of one cumulative counter (e.g. the :all-time transferred count
+ * of an executor) over several sliding windows.
+ *
+ * Raw counters restart from zero when a worker restarts, so every sample is
+ * folded into a running total that only grows: a counter that went backwards,
+ * or an executor whose uptime went backwards, counts from zero again. Each
+ * window keeps a small ring buffer of (time, total) samples spaced window /
+ * BUCKETS apart, so memory does not depend on the poll interval or the window
+ * length. Rates are divided by the measured wall time between samples, which
+ * keeps them correct when polls are late or irregular.
+ */
+public class RateTracker {
+
+	// samples kept per window
+	static final int BUCKETS = 6;
+
+	private final long[] windowsMs;
+	private final long[][] times;
+	private final long[][] totals;
+	private final int[] head;
+	private final int[] size;
+
+	private long lastRaw = -1;
+	private int lastUptime = -1;
+	private long lastTime = -1;
+	private long lastDelta = 0;
+	private long lastElapsedMs = 0;
+	private long total = 0;
+	private int resets = 0;
+
+	public RateTracker(long[] windowsMs) {
+		this.windowsMs = windowsMs;
+		this.times = new long[windowsMs.length][BUCKETS + 1];
+		this.totals = new long[windowsMs.length][BUCKETS + 1];
+		this.head = new int[windowsMs.length];
+		this.size = new int[windowsMs.length];
+	}
+
+	/**
+	 * @param timeMs
+	 *            wall time of the poll
+	 * @param raw
+	 *            current value of the cumulative counter
+	 * @param uptimeSecs
+	 *            uptime of the executor, -1 if unknown
+	 * @return tuples counted since the previous sample
+	 */
+	public long record(long timeMs, long raw, int uptimeSecs) {
+		long delta;
+		if (this.lastRaw < 0) {
+			// first sample only sets the baseline
+			delta = 0;
+		} else if (raw < this.lastRaw
+				|| (uptimeSecs >= 0 && uptimeSecs < this.lastUptime)) {
+			this.resets++;
+			delta = raw;
+		} else {
+			delta = raw - this.lastRaw;
+		}
+		this.lastElapsedMs = this.lastTime < 0 ? 0 : timeMs - this.lastTime;
+		this.lastRaw = raw;
+		this.lastUptime = uptimeSecs;
+		this.lastTime = timeMs;
+		this.lastDelta = delta;
+		this.total += delta;
+
+		for (int w = 0; w < this.windowsMs.length; w++) {
+			long step = this.windowsMs[w] / BUCKETS;
+			int last = (this.head[w] + BUCKETS) % (BUCKETS + 1);
+			if (this.size[w] > 0 && timeMs - this.times[w][last] < step) {
+				continue;
+			}
+			this.times[w][this.head[w]] = timeMs;
+			this.totals[w][this.head[w]] = this.total;
+			this.head[w] = (this.head[w] + 1) % (BUCKETS + 1);
+			if (this.size[w] < BUCKETS + 1) {
+				this.size[w]++;
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * @return tuples per second over window w, measured from the oldest sample
+	 *         still inside the window to the latest poll
+	 */
+	public double getRate(int w) {
+		if (this.size[w] == 0) {
+			return 0.0;
+		}
+		int oldest = (this.head[w] - this.size[w] + BUCKETS + 1)
+				% (BUCKETS + 1);
+		// skip samples that fell out of the window
+		for (int i = 0; i < this.size[w] - 1; i++) {
+			int idx = (oldest + i) % (BUCKETS + 1);
+			if (this.lastTime - this.times[w][idx] <= this.windowsMs[w]) {
+				oldest = idx;
+				break;
+			}
+			oldest = (idx + 1) % (BUCKETS + 1);
+		}
+		long elapsedMs = this.lastTime - this.times[w][oldest];
+		if (elapsedMs <= 0) {
+			return this.getInstantRate();
+		}
+		return (this.total - this.totals[w][oldest]) * 1000.0 / elapsedMs;
+	}
+
+	/**
+	 * @return tuples per second between the last two polls
+	 */
+	public double getInstantRate() {
+		if (this.lastElapsedMs <= 0) {
+			return 0.0;
+		}
+		return this.lastDelta * 1000.0 / this.lastElapsedMs;
+	}
+
+	public long getLastDelta() {
+		return this.lastDelta;
+	}
+
+	public long getLastRaw() {
+		return this.lastRaw;
+	}
+
+	public long getLastTime() {
+		return this.lastTime;
+	}
+
+	public long getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * @return number of counter resets (worker restarts) seen so far
+	 */
+	public int getResets() {
+		return this.resets;
+	}
+
+	public int getNumWindows() {
+		return this.windowsMs.length;
+	}
+
+	/**
+	 * Write baseline and samples, see readFrom
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(this.lastRaw);
+		out.writeInt(this.lastUptime);
+		out.writeLong(this.lastTime);
+		out.writeLong(this.lastDelta);
+		out.writeLong(this.lastElapsedMs);
+		out.writeLong(this.total);
+		out.writeInt(this.resets);
+		out.writeInt(this.windowsMs.length);
+		for (int w = 0; w < this.windowsMs.length; w++) {
+			out.writeLong(this.windowsMs[w]);
+			out.writeInt(this.head[w]);
+			out.writeInt(this.size[w]);
+			for (int i = 0; i <= BUCKETS; i++) {
+				out.writeLong(this.times[w][i]);
+				out.writeLong(this.totals[w][i]);
+			}
+		}
+	}
+
+	/**
+	 * Read a tracker written by writeTo. The samples of windows that are not
+	 * in windowsMs any more are dropped, the baseline is always kept so the
+	 * next sample yields a correct delta.
+	 */
+	public static RateTracker readFrom(DataInput in, long[] windowsMs)
+			throws IOException {
+		RateTracker t = new RateTracker(windowsMs);
+		t.lastRaw = in.readLong();
+		t.lastUptime = in.readInt();
+		t.lastTime = in.readLong();
+		t.lastDelta = in.readLong();
+		t.lastElapsedMs = in.readLong();
+		t.total = in.readLong();
+		t.resets = in.readInt();
+		int n = in.readInt();
+		long[] times = new long[BUCKETS + 1];
+		long[] totals = new long[BUCKETS + 1];
+		for (int w = 0; w < n; w++) {
+			long windowMs = in.readLong();
+			int head = in.readInt();
+			int size = in.readInt();
+			for (int i = 0; i <= BUCKETS; i++) {
+				times[i] = in.readLong();
+				totals[i] = in.readLong();
+			}
+			if (w < windowsMs.length && windowsMs[w] == windowMs) {
+				t.head[w] = head;
+				t.size[w] = size;
+				System.arraycopy(times, 0, t.times[w], 0, BUCKETS + 1);
+				System.arraycopy(totals, 0, t.totals[w], 0, BUCKETS + 1);
+			}
+		}
+		return t;
+	}
+}
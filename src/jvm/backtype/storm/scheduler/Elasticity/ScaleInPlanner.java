@@ -0,0 +1,350 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.scheduler.Cluster;
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.SchedulerAssignment;
+import backtype.storm.scheduler.WorkerSlot;
+
+/**
+ * Finds nodes that have been idle for a while and plans how to empty them,
+ * so their supervisors can be released.
+ *
+ * A node is idle when the p95 of its cpu over elasticity.node.headroom.window.ms
+ * is below elasticity.scalein.cpu.percent and its executors transfer fewer
+ * than elasticity.scalein.tuples.per.sec; it can be drained once it has been
+ * idle for elasticity.scalein.window.ms. Nodes without hardware reports are
+ * never drained nor used as targets, as their load is not known. A node that
+ * joined after the first round only starts counting as idle once it has been
+ * up for elasticity.scalein.window.ms, so a scale-out is not undone before
+ * the scheduler got to fill the new node.
+ *
+ * Idle nodes are drained least busy first. Every worker of a drained node
+ * moves as a whole, heaviest first, to the node it fits best: into the
+ * topology's worker there if it has one, else into a free slot. A node may
+ * be filled up to elasticity.scalein.max.cpu.percent of its cores, counting
+ * its measured cpu plus the load of the executors moved to it, see
+ * GraphPartitioner.executorLoads. A node is only drained when all its
+ * workers fit, and at least elasticity.scalein.min.nodes nodes are kept;
+ * nodes that workers were moved to are not drained in the same plan.
+ */
+public class ScaleInPlanner {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ScaleInPlanner.class);
+
+	// window of the transfer rates, see StatsSnapshot.NodeStat
+	static final int RATE_WINDOW = 0;
+
+	/**
+	 * One worker of a drained node moving to another node
+	 */
+	public static class Move {
+		public final String topologyId;
+		public final WorkerSlot from;
+		public final WorkerSlot to;
+		public final List<ExecutorDetails> execs;
+
+		Move(String topologyId, WorkerSlot from, WorkerSlot to, List<ExecutorDetails> execs) {
+			this.topologyId = topologyId;
+			this.from = from;
+			this.to = to;
+			this.execs = execs;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s:%d->%s:%d %s", this.topologyId, this.from.getNodeId(), this.from.getPort(),
+					this.to.getNodeId(), this.to.getPort(), this.execs);
+		}
+	}
+
+	public static class Plan {
+		public final List<Move> moves;
+		// supervisor ids of the nodes that are empty once the moves are done
+		public final List<String> releasable;
+
+		Plan(List<Move> moves, List<String> releasable) {
+			this.moves = moves;
+			this.releasable = releasable;
+		}
+
+		@Override
+		public String toString() {
+			return "release " + this.releasable + " moving " + this.moves;
+		}
+	}
+
+	/**
+	 * A node as the plan sees it
+	 */
+	private static class Target {
+		// cores used by what runs on the node, measured or moved there
+		double usedCores;
+		double maxCores;
+		List<WorkerSlot> freeSlots;
+		// topology id -> a slot of the topology on the node
+		Map<String, WorkerSlot> topoSlots;
+
+		Target copy() {
+			Target retVal = new Target();
+			retVal.usedCores = this.usedCores;
+			retVal.maxCores = this.maxCores;
+			retVal.freeSlots = new ArrayList<WorkerSlot>(this.freeSlots);
+			retVal.topoSlots = new HashMap<String, WorkerSlot>(this.topoSlots);
+			return retVal;
+		}
+	}
+
+	private final double cpuPercent;
+	private final double tuplesPerSec;
+	private final long idleMs;
+	private final double maxCpuPercent;
+	private final int minNodes;
+	private final long windowMs;
+
+	// supervisor id -> since when the node is idle
+	private final Map<String, Long> idleSince = new HashMap<String, Long>();
+	// supervisor id -> when the node joined, nodes of the first round count
+	// as old
+	private final Map<String, Long> firstSeen = new HashMap<String, Long>();
+	private boolean started = false;
+
+	public ScaleInPlanner(double cpuPercent, double tuplesPerSec, long idleMs, double maxCpuPercent,
+			int minNodes, long windowMs) {
+		this.cpuPercent = cpuPercent;
+		this.tuplesPerSec = tuplesPerSec;
+		this.idleMs = idleMs;
+		this.maxCpuPercent = maxCpuPercent;
+		this.minNodes = minNodes;
+		this.windowMs = windowMs;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public static ScaleInPlanner fromConf(Map conf) {
+		return new ScaleInPlanner(
+				ElasticityConfig.getDouble(conf, ElasticityConfig.SCALEIN_CPU_PERCENT, 20),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.SCALEIN_TUPLES_PER_SEC, 1000),
+				ElasticityConfig.getLong(conf, ElasticityConfig.SCALEIN_WINDOW_MS, 600000),
+				ElasticityConfig.getDouble(conf, ElasticityConfig.SCALEIN_MAX_CPU_PERCENT, 70),
+				ElasticityConfig.getInt(conf, ElasticityConfig.SCALEIN_MIN_NODES, 1),
+				ElasticityConfig.getLong(conf, ElasticityConfig.NODE_HEADROOM_WINDOW_MS, 60000));
+	}
+
+	/**
+	 * Track which nodes are idle, once per scheduling round
+	 * @return nodes idle for the whole window, least busy first
+	 */
+	public List<Node> update(Collection<Node> nodes, StatsSnapshot stats, long now) {
+		final Map<Node, Double> cpu = new HashMap<Node, Double>();
+		Set<String> seen = new HashSet<String>();
+		for (Node n : nodes) {
+			seen.add(n.supervisor_id);
+			if (this.firstSeen.containsKey(n.supervisor_id) == false) {
+				this.firstSeen.put(n.supervisor_id, this.started == true ? now : now - this.idleMs);
+			}
+			if (now - this.firstSeen.get(n.supervisor_id) < this.idleMs) {
+				// new node, still waiting for its workers
+				this.idleSince.remove(n.supervisor_id);
+				continue;
+			}
+			NodeMetricsStore.Summary summary = n.profile == null ? null : n.profile.getSummary(ProfileReport.CPU, this.windowMs);
+			StatsSnapshot.NodeStat ns = stats.getNodes().get(n.hostname);
+			double tuples = ns == null ? 0.0 : ns.getTransferRate(RATE_WINDOW);
+			if (summary == null || summary.p95 >= this.cpuPercent || tuples >= this.tuplesPerSec) {
+				this.idleSince.remove(n.supervisor_id);
+				continue;
+			}
+			if (this.idleSince.containsKey(n.supervisor_id) == false) {
+				this.idleSince.put(n.supervisor_id, now);
+			}
+			if (now - this.idleSince.get(n.supervisor_id) >= this.idleMs) {
+				cpu.put(n, summary.p95);
+			}
+		}
+		this.idleSince.keySet().retainAll(seen);
+		this.firstSeen.keySet().retainAll(seen);
+		this.started = true;
+
+		List<Node> retVal = new ArrayList<Node>(cpu.keySet());
+		Collections.sort(retVal, new Comparator<Node>() {
+			@Override
+			public int compare(Node a, Node b) {
+				return Double.compare(cpu.get(a), cpu.get(b));
+			}
+		});
+		return retVal;
+	}
+
+	/**
+	 * @param nodes all nodes of the cluster
+	 * @param idle nodes to drain, in order, see update
+	 */
+	public Plan plan(Collection<Node> nodes, List<Node> idle, Cluster cluster, StatsSnapshot stats) {
+		// supervisor id -> slot -> topology id, and what runs in every slot
+		Map<String, Map<WorkerSlot, String>> slotTopos = new HashMap<String, Map<WorkerSlot, String>>();
+		Map<WorkerSlot, List<ExecutorDetails>> slotExecs = new LinkedHashMap<WorkerSlot, List<ExecutorDetails>>();
+		final Map<WorkerSlot, Double> slotLoads = new HashMap<WorkerSlot, Double>();
+		for (SchedulerAssignment assignment : cluster.getAssignments().values()) {
+			String topoId = assignment.getTopologyId();
+			Map<ExecutorDetails, Double> loads = GraphPartitioner.executorLoads(assignment.getExecutors(), topoId, stats);
+			for (Map.Entry<ExecutorDetails, WorkerSlot> entry : assignment.getExecutorToSlot().entrySet()) {
+				WorkerSlot ws = entry.getValue();
+				if (slotTopos.containsKey(ws.getNodeId()) == false) {
+					slotTopos.put(ws.getNodeId(), new HashMap<WorkerSlot, String>());
+				}
+				slotTopos.get(ws.getNodeId()).put(ws, topoId);
+				if (slotExecs.containsKey(ws) == false) {
+					slotExecs.put(ws, new ArrayList<ExecutorDetails>());
+				}
+				slotExecs.get(ws).add(entry.getKey());
+				Double load = slotLoads.get(ws);
+				slotLoads.put(ws, (load == null ? 0.0 : load) + loads.get(entry.getKey()));
+			}
+		}
+
+		Map<String, Target> targets = new LinkedHashMap<String, Target>();
+		for (Node n : nodes) {
+			Target t = this.target(n, cluster, nodes, slotTopos.get(n.supervisor_id));
+			if (t != null) {
+				targets.put(n.supervisor_id, t);
+			}
+		}
+
+		List<Move> moves = new ArrayList<Move>();
+		List<String> releasable = new ArrayList<String>();
+		// nodes workers were moved to stay
+		Set<String> receivers = new HashSet<String>();
+		for (Node n : idle) {
+			if (nodes.size() - releasable.size() <= this.minNodes) {
+				break;
+			}
+			if (receivers.contains(n.supervisor_id) == true) {
+				continue;
+			}
+			Map<WorkerSlot, String> workers = slotTopos.get(n.supervisor_id);
+			if (workers == null) {
+				workers = Collections.emptyMap();
+			}
+			// try on copies, kept only if the whole node fits
+			Map<String, Target> trial = new LinkedHashMap<String, Target>();
+			for (Map.Entry<String, Target> entry : targets.entrySet()) {
+				if (entry.getKey().equals(n.supervisor_id) == false) {
+					trial.put(entry.getKey(), entry.getValue().copy());
+				}
+			}
+			List<Move> nodeMoves = new ArrayList<Move>();
+			boolean fits = true;
+			// heaviest worker first
+			List<WorkerSlot> froms = new ArrayList<WorkerSlot>(workers.keySet());
+			Collections.sort(froms, new Comparator<WorkerSlot>() {
+				@Override
+				public int compare(WorkerSlot a, WorkerSlot b) {
+					return Double.compare(slotLoads.get(b), slotLoads.get(a));
+				}
+			});
+			for (WorkerSlot from : froms) {
+				Move move = this.place(workers.get(from), from, slotExecs.get(from), slotLoads.get(from), trial.values());
+				if (move == null) {
+					fits = false;
+					break;
+				}
+				nodeMoves.add(move);
+			}
+			if (fits == false) {
+				LOG.info("Idle node {} does not fit in the others", n.hostname);
+				continue;
+			}
+			targets = trial;
+			moves.addAll(nodeMoves);
+			for (Move move : nodeMoves) {
+				receivers.add(move.to.getNodeId());
+			}
+			releasable.add(n.supervisor_id);
+		}
+		Plan retVal = new Plan(moves, releasable);
+		LOG.info("Scale in plan: {}", retVal);
+		return retVal;
+	}
+
+	/**
+	 * @return n as a target, null if its load is not known
+	 */
+	private Target target(Node n, Cluster cluster, Collection<Node> nodes, Map<WorkerSlot, String> workers) {
+		NodeMetricsStore.Summary cpu = n.profile == null ? null : n.profile.getSummary(ProfileReport.CPU, this.windowMs);
+		if (cpu == null) {
+			return null;
+		}
+		double cores = n.profile.getCores();
+		if (Double.isNaN(cores) == true || cores <= 0) {
+			cores = this.meanCores(nodes);
+		}
+		Target retVal = new Target();
+		retVal.usedCores = cpu.p95 / 100.0 * cores;
+		retVal.maxCores = this.maxCpuPercent / 100.0 * cores;
+		retVal.freeSlots = new ArrayList<WorkerSlot>(cluster.getAvailableSlots(n.sup));
+		retVal.topoSlots = new HashMap<String, WorkerSlot>();
+		if (workers != null) {
+			for (Map.Entry<WorkerSlot, String> entry : workers.entrySet()) {
+				retVal.topoSlots.put(entry.getValue(), entry.getKey());
+			}
+		}
+		return retVal;
+	}
+
+	private double meanCores(Collection<Node> nodes) {
+		double sum = 0.0;
+		int count = 0;
+		for (Node n : nodes) {
+			double cores = n.profile == null ? Double.NaN : n.profile.getCores();
+			if (Double.isNaN(cores) == false && cores > 0) {
+				sum += cores;
+				count++;
+			}
+		}
+		return count == 0 ? 1.0 : sum / count;
+	}
+
+	/**
+	 * Reserve the best fitting target for a worker
+	 * @return the move, null if no target has room
+	 */
+	private Move place(String topoId, WorkerSlot from, List<ExecutorDetails> execs, double load,
+			Collection<Target> targets) {
+		Target best = null;
+		double bestLeft = Double.MAX_VALUE;
+		for (Target t : targets) {
+			double left = t.maxCores - t.usedCores - load;
+			if (left < 0 || (t.topoSlots.containsKey(topoId) == false && t.freeSlots.isEmpty() == true)) {
+				continue;
+			}
+			if (left < bestLeft) {
+				best = t;
+				bestLeft = left;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		WorkerSlot to = best.topoSlots.get(topoId);
+		if (to == null) {
+			to = best.freeSlots.remove(0);
+			best.topoSlots.put(topoId, to);
+		}
+		best.usedCores += load;
+		return new Move(topoId, from, to, execs);
+	}
+}
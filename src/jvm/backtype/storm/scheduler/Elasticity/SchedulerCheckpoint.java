@@ -0,0 +1,214 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the scheduler state on disk so a restarted Nimbus resumes where it
+ * stopped: the stored schedule and rebalance progress of GlobalState (written
+ * when they change) and the topology start times and executor counters of
+ * GetStats (written every elasticity.checkpoint.stats.interval.ms by the
+ * stats collector).
+ *
+ * Each part is one small binary file, replaced atomically: it is written to
+ * <name>.tmp, synced and renamed over the old one, so a crash leaves either
+ * the old or the new checkpoint. Files end with a CRC32 of their content and
+ * a damaged or foreign file is ignored.
+ *
+ * Layout: int MAGIC, int VERSION, int payload length, payload, long crc
+ */
+public class SchedulerCheckpoint {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(SchedulerCheckpoint.class);
+
+	static final int MAGIC = 0x45434b50; // "ECKP"
+	static final int VERSION = 2;
+
+	static final String GLOBAL_STATE_FILE = "globalstate.ckpt";
+	static final String STATS_FILE = "stats.ckpt";
+
+	private static SchedulerCheckpoint instance = null;
+
+	private final File dir;
+	private final boolean enabled;
+	private final long statsIntervalMs;
+	private long lastStatsSave = 0;
+	private byte[] lastGlobalState = null;
+
+	@SuppressWarnings("rawtypes")
+	private SchedulerCheckpoint(Map conf) {
+		String localDir = ElasticityConfig.getString(conf, "storm.local.dir", "/tmp");
+		this.dir = new File(ElasticityConfig.getString(conf,
+				ElasticityConfig.CHECKPOINT_DIR, new File(localDir, "elasticity").getPath()));
+		this.enabled = ElasticityConfig.getBoolean(conf,
+				ElasticityConfig.CHECKPOINT_ENABLED, true);
+		this.statsIntervalMs = ElasticityConfig.getLong(conf,
+				ElasticityConfig.CHECKPOINT_STATS_INTERVAL_MS, 60000);
+		if (this.enabled == true && this.dir.isDirectory() == false && this.dir.mkdirs() == false) {
+			LOG.info("error! cannot create checkpoint dir {}", this.dir);
+		}
+	}
+
+	/**
+	 * Create the checkpoint from the storm conf, unless it already exists
+	 */
+	@SuppressWarnings("rawtypes")
+	public static synchronized SchedulerCheckpoint configure(Map conf) {
+		if (instance == null) {
+			instance = new SchedulerCheckpoint(conf);
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the checkpoint, null before configure
+	 */
+	public static synchronized SchedulerCheckpoint getInstance() {
+		return instance;
+	}
+
+	public synchronized void loadGlobalState(GlobalState globalState) {
+		DataInputStream in = this.read(GLOBAL_STATE_FILE);
+		if (in == null) {
+			return;
+		}
+		try {
+			globalState.readCheckpoint(in);
+			LOG.info("Restored scheduling state of {} topologies", globalState.schedState.size());
+		} catch (IOException e) {
+			LOG.info("error! bad scheduling state checkpoint: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Write the scheduling state if it changed since the last save
+	 */
+	public synchronized void saveGlobalState(GlobalState globalState) {
+		if (this.enabled == false) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			globalState.writeCheckpoint(out);
+			out.flush();
+			byte[] payload = bytes.toByteArray();
+			if (Arrays.equals(payload, this.lastGlobalState) == true) {
+				return;
+			}
+			this.write(GLOBAL_STATE_FILE, payload);
+			this.lastGlobalState = payload;
+		} catch (IOException e) {
+			LOG.info("error! writing scheduling state checkpoint: {}", e.toString());
+		}
+	}
+
+	public synchronized void loadStats(GetStats stats) {
+		DataInputStream in = this.read(STATS_FILE);
+		if (in == null) {
+			return;
+		}
+		try {
+			stats.readCheckpoint(in);
+			LOG.info("Restored counters of {} executors", stats.statsTable.size());
+		} catch (IOException e) {
+			LOG.info("error! bad stats checkpoint: {}", e.toString());
+		}
+	}
+
+	/**
+	 * Write the stats counters if the interval passed since the last save
+	 */
+	public synchronized void saveStats(GetStats stats, boolean force) {
+		long now = System.currentTimeMillis();
+		if (this.enabled == false || (force == false && now - this.lastStatsSave < this.statsIntervalMs)) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			stats.writeCheckpoint(out);
+			out.flush();
+			this.write(STATS_FILE, bytes.toByteArray());
+			this.lastStatsSave = now;
+		} catch (IOException e) {
+			LOG.info("error! writing stats checkpoint: {}", e.toString());
+		}
+	}
+
+	private void write(String name, byte[] payload) throws IOException {
+		File tmp = new File(this.dir, name + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(payload.length);
+			out.write(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			out.writeLong(crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (tmp.renameTo(new File(this.dir, name)) == false) {
+			throw new IOException("cannot rename " + tmp);
+		}
+	}
+
+	/**
+	 * @return the payload of checkpoint name, null if missing or damaged
+	 */
+	private DataInputStream read(String name) {
+		File file = new File(this.dir, name);
+		if (this.enabled == false || file.isFile() == false) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			byte[] payload;
+			long crcValue;
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					LOG.info("error! {} is not a checkpoint of this version", file);
+					return null;
+				}
+				int length = in.readInt();
+				if (length < 0 || length > file.length()) {
+					LOG.info("error! {} is damaged", file);
+					return null;
+				}
+				payload = new byte[length];
+				in.readFully(payload);
+				crcValue = in.readLong();
+			} finally {
+				in.close();
+			}
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (crc.getValue() != crcValue) {
+				LOG.info("error! {} is damaged", file);
+				return null;
+			}
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		} catch (IOException e) {
+			LOG.info("error! reading {}: {}", file, e.toString());
+			return null;
+		}
+	}
+}
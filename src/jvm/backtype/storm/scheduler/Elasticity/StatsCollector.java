@@ -0,0 +1,118 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Polls executor stats from Nimbus on a background thread, so that slow
+ * getTopologyInfo calls and log writes never run on Nimbus's scheduling
+ * thread. Every poll publishes a new StatsSnapshot; schedulers read the
+ * latest one through getLatest() without blocking.
+ */
+public class StatsCollector implements Runnable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StatsCollector.class);
+
+	private static StatsCollector instance = null;
+
+	private final GetStats stats;
+	private final long intervalMs;
+	private final AtomicReference<StatsSnapshot> latest;
+	private final ScheduledExecutorService executor;
+
+	private StatsCollector(GetStats stats, long intervalMs) {
+		this.stats = stats;
+		this.intervalMs = intervalMs;
+		this.latest = new AtomicReference<StatsSnapshot>(StatsSnapshot.EMPTY);
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "elasticity-stats-collector");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Start polling, unless a collector is already running
+	 * @param schedType name of the scheduler, used for the stats log files
+	 */
+	@SuppressWarnings("rawtypes")
+	public static synchronized StatsCollector start(Map conf, String schedType) {
+		if (instance == null) {
+			long intervalMs = ElasticityConfig.getLong(conf,
+					ElasticityConfig.STATS_POLL_INTERVAL_MS, 10000);
+			GetStats stats = GetStats.getInstance(schedType);
+			long[] windowsSecs = ElasticityConfig.getLongArray(conf,
+					ElasticityConfig.STATS_RATE_WINDOWS_SECS, null);
+			if (windowsSecs != null) {
+				long[] windowsMs = new long[windowsSecs.length];
+				for (int i = 0; i < windowsSecs.length; i++) {
+					windowsMs[i] = windowsSecs[i] * 1000;
+				}
+				stats.setRateWindows(windowsMs);
+			}
+			stats.configureLog(conf);
+			SchedulerCheckpoint.configure(conf).loadStats(stats);
+			instance = new StatsCollector(stats, intervalMs);
+			instance.executor.scheduleWithFixedDelay(instance, 0,
+					intervalMs, TimeUnit.MILLISECONDS);
+			LOG.info("Stats collector started, polling every {}ms",
+					intervalMs);
+		}
+		return instance;
+	}
+
+	public static synchronized StatsCollector getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return stats of the most recent completed poll, StatsSnapshot.EMPTY
+	 *         before the first one
+	 */
+	public StatsSnapshot getLatest() {
+		return this.latest.get();
+	}
+
+	public long getIntervalMs() {
+		return this.intervalMs;
+	}
+
+	public static synchronized void stop() {
+		if (instance != null) {
+			instance.executor.shutdownNow();
+			SchedulerCheckpoint ckpt = SchedulerCheckpoint.getInstance();
+			if (ckpt != null) {
+				ckpt.saveStats(instance.stats, true);
+			}
+			instance = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			StatsSnapshot snapshot = this.stats.getStatistics(ClusterSnapshot
+					.take());
+			this.latest.set(snapshot);
+			SchedulerCheckpoint ckpt = SchedulerCheckpoint.getInstance();
+			if (ckpt != null) {
+				ckpt.saveStats(this.stats, false);
+			}
+		} catch (Throwable t) {
+			// an exception would cancel all further polls
+			LOG.error("Error while collecting stats", t);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts binary stats logs written by StatsLogWriter into CSV for offline
+ * analysis: a header row, then one row per record. Output records leave
+ * host, port and task empty and put the output bolts in component.
+ *
+ * usage: StatsLogReader <binary log> [<binary log> ...] > stats.csv
+ */
+public class StatsLogReader {
+
+	static final String HEADER = "type,time,scheduler,host,port,component,topology,task,throughput\n";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: StatsLogReader <binary log> ...");
+			System.exit(1);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out,
+				"UTF-8"));
+		out.write(HEADER);
+		for (String path : args) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(path)));
+			try {
+				convert(in, out);
+			} finally {
+				in.close();
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write one CSV row per record of in to out
+	 * @return number of records converted
+	 */
+	public static long convert(DataInputStream in, Writer out)
+			throws IOException {
+		if (in.readInt() != StatsLogWriter.MAGIC) {
+			throw new IOException("not a binary stats log");
+		}
+		int version = in.readInt();
+		if (version != StatsLogWriter.VERSION) {
+			throw new IOException("unsupported stats log version " + version);
+		}
+		Map<Integer, String> strings = new HashMap<Integer, String>();
+		long records = 0;
+		while (true) {
+			int type;
+			try {
+				type = in.readByte();
+			} catch (EOFException e) {
+				break;
+			}
+			switch (type) {
+			case StatsLogWriter.REC_STRING:
+				int id = in.readInt();
+				strings.put(id, in.readUTF());
+				break;
+			case StatsLogWriter.REC_EXECUTOR:
+				long time = in.readLong();
+				String sched = strings.get(in.readInt());
+				String host = strings.get(in.readInt());
+				int port = in.readInt();
+				String comp = strings.get(in.readInt());
+				String topo = strings.get(in.readInt());
+				int task = in.readInt();
+				long throughput = in.readLong();
+				out.write(row("executor", time, sched, host,
+						String.valueOf(port), comp, topo, String.valueOf(task),
+						throughput));
+				records++;
+				break;
+			case StatsLogWriter.REC_OUTPUT:
+				long outTime = in.readLong();
+				String outSched = strings.get(in.readInt());
+				String bolts = strings.get(in.readInt());
+				String outTopo = strings.get(in.readInt());
+				long avg = in.readLong();
+				out.write(row("output", outTime, outSched, "", "", bolts,
+						outTopo, "", avg));
+				records++;
+				break;
+			default:
+				throw new IOException("corrupt stats log, record type "
+						+ type + " after " + records + " records");
+			}
+		}
+		return records;
+	}
+
+	private static String row(String type, long time, String sched,
+			String host, String port, String comp, String topo, String task,
+			long throughput) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(type).append(',').append(time);
+		for (String field : new String[] { sched, host, port, comp, topo, task }) {
+			sb.append(',').append(quote(field));
+		}
+		return sb.append(',').append(throughput).append('\n').toString();
+	}
+
+	/**
+	 * @return field, quoted if it holds a comma, quote or line break
+	 */
+	private static String quote(String field) {
+		if (field == null) {
+			return "";
+		}
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0
+				&& field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+			return field;
+		}
+		return '"' + field.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,221 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long lived writer for the stats logs (/tmp/<sched>_complete and
+ * <sched>output_bolt). The file is opened once and written through a buffer
+ * that is flushed once per poll, instead of being opened and closed for every
+ * line. The file is rotated to <name>.<time opened> when it grows over
+ * maxBytes or gets older than maxAgeMs; only the newest maxBackups rotated
+ * files are kept.
+ *
+ * In text mode the lines are the same as before. In binary mode every record
+ * is fixed width: strings (hosts, components, topology ids) are written once
+ * per file as a REC_STRING definition and referred to by int id afterwards.
+ * StatsLogReader turns a binary file back into the text lines.
+ *
+ * Binary layout, all big endian:
+ * file header:  int MAGIC, int VERSION
+ * REC_STRING:   byte 0, int id, utf string
+ * REC_EXECUTOR: byte 1, long time, int sched, int host, int port,
+ *               int component, int topology, int task, long throughput
+ * REC_OUTPUT:   byte 2, long time, int sched, int output bolts, int topology,
+ *               long avg throughput
+ */
+public class StatsLogWriter {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(StatsLogWriter.class);
+
+	static final int MAGIC = 0x45534c47; // "ESLG"
+	static final int VERSION = 1;
+	static final byte REC_STRING = 0;
+	static final byte REC_EXECUTOR = 1;
+	static final byte REC_OUTPUT = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final boolean binary;
+	private final long maxBytes;
+	private final long maxAgeMs;
+	private final int maxBackups;
+
+	private DataOutputStream out = null;
+	private long openedAt;
+	private Map<String, Integer> strings;
+
+	public StatsLogWriter(File file, boolean binary, long maxBytes,
+			long maxAgeMs, int maxBackups) {
+		this.file = file;
+		this.binary = binary;
+		this.maxBytes = maxBytes;
+		this.maxAgeMs = maxAgeMs;
+		this.maxBackups = maxBackups;
+		this.strings = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Line of <sched>_complete: throughput of one executor
+	 */
+	public synchronized void writeExecutor(long time, String sched,
+			String host, int port, String componentId, String topoId,
+			int taskId, long throughput) throws IOException {
+		this.open();
+		if (this.binary == true) {
+			int schedId = this.string(sched);
+			int hostId = this.string(host);
+			int compId = this.string(componentId);
+			int topologyId = this.string(topoId);
+			this.out.writeByte(REC_EXECUTOR);
+			this.out.writeLong(time);
+			this.out.writeInt(schedId);
+			this.out.writeInt(hostId);
+			this.out.writeInt(port);
+			this.out.writeInt(compId);
+			this.out.writeInt(topologyId);
+			this.out.writeInt(taskId);
+			this.out.writeLong(throughput);
+		} else {
+			this.out.write(executorLine(time, sched, host, port, componentId,
+					topoId, taskId, throughput).getBytes(UTF8));
+		}
+	}
+
+	/**
+	 * Line of <sched>output_bolt: average throughput of the output bolts
+	 */
+	public synchronized void writeOutput(long time, String sched,
+			String outputBolts, String topoId, long avgThroughput)
+			throws IOException {
+		this.open();
+		if (this.binary == true) {
+			int schedId = this.string(sched);
+			int boltsId = this.string(outputBolts);
+			int topologyId = this.string(topoId);
+			this.out.writeByte(REC_OUTPUT);
+			this.out.writeLong(time);
+			this.out.writeInt(schedId);
+			this.out.writeInt(boltsId);
+			this.out.writeInt(topologyId);
+			this.out.writeLong(avgThroughput);
+		} else {
+			this.out.write(outputLine(time, sched, outputBolts, topoId,
+					avgThroughput).getBytes(UTF8));
+		}
+	}
+
+	static String executorLine(long time, String sched, String host,
+			int port, String componentId, String topoId, int taskId,
+			long throughput) {
+		return String.valueOf(time) + ':' + sched + ":" + host + ':' + port
+				+ ':' + componentId + ":" + topoId + ":" + taskId + ","
+				+ throughput + "\n";
+	}
+
+	static String outputLine(long time, String sched, String outputBolts,
+			String topoId, long avgThroughput) {
+		return String.valueOf(time) + ':' + sched + "," + outputBolts + ":"
+				+ topoId + ":" + avgThroughput + "\n";
+	}
+
+	/**
+	 * Push buffered records to the file and rotate it if it is due
+	 */
+	public synchronized void flush() throws IOException {
+		if (this.out == null) {
+			return;
+		}
+		this.out.flush();
+		if (this.out.size() >= this.maxBytes
+				|| System.currentTimeMillis() - this.openedAt >= this.maxAgeMs) {
+			this.rotate();
+		}
+	}
+
+	public synchronized void close() {
+		if (this.out == null) {
+			return;
+		}
+		try {
+			this.out.close();
+		} catch (IOException e) {
+			LOG.info("error! closing {} {}", this.file, e);
+		}
+		this.out = null;
+	}
+
+	private void open() throws IOException {
+		if (this.out != null) {
+			return;
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(this.file, true), 64 * 1024));
+		this.openedAt = System.currentTimeMillis();
+		this.strings.clear();
+		if (this.binary == true && this.file.length() == 0) {
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+		}
+	}
+
+	private int string(String str) throws IOException {
+		Integer id = this.strings.get(str);
+		if (id == null) {
+			id = this.strings.size();
+			this.strings.put(str, id);
+			this.out.writeByte(REC_STRING);
+			this.out.writeInt(id);
+			this.out.writeUTF(str);
+		}
+		return id;
+	}
+
+	private void rotate() throws IOException {
+		this.close();
+		File rotated = new File(this.file.getPath() + "." + this.openedAt);
+		if (this.file.renameTo(rotated) == false) {
+			LOG.info("error! cannot rotate {}", this.file);
+			return;
+		}
+		final String prefix = this.file.getName() + ".";
+		File[] backups = this.file.getAbsoluteFile().getParentFile()
+				.listFiles(new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.startsWith(prefix)
+								&& name.substring(prefix.length()).matches(
+										"[0-9]+");
+					}
+				});
+		if (backups == null || backups.length <= this.maxBackups) {
+			return;
+		}
+		Arrays.sort(backups, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(a.getName().substring(prefix.length()))
+						.compareTo(
+								Long.valueOf(b.getName().substring(
+										prefix.length())));
+			}
+		});
+		for (int i = 0; i < backups.length - this.maxBackups; i++) {
+			backups[i].delete();
+		}
+	}
+}
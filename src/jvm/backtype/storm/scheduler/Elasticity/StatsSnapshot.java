@@ -0,0 +1,431 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, timestamped result of one stats poll. Published by
+ * StatsCollector and read by the schedulers without any locking.
+ */
+public class StatsSnapshot {
+
+	// 30s, 5m and 1h
+	public static final long[] DEFAULT_RATE_WINDOWS_MS = { 30000, 300000,
+			3600000 };
+
+	public static final StatsSnapshot EMPTY = new StatsSnapshot(0,
+			new ArrayList<ExecutorStat>(), new HashMap<String, Integer>(),
+			DEFAULT_RATE_WINDOWS_MS);
+
+	/**
+	 * Latency and load of an executor, or of all executors of a component,
+	 * taken from the bolt/spout specific stats Nimbus reports over its 10
+	 * minute window.
+	 *
+	 * capacity is the fraction of wall time spent in execute(), i.e. executed
+	 * x execute latency / window length, as shown in the storm UI. A value
+	 * close to 1 marks a bolt that cannot keep up.
+	 */
+	public static class LatencyStat {
+		public static final LatencyStat NONE = new LatencyStat(0.0, 0.0, 0.0,
+				0, 0, 0, 0.0);
+
+		public final double executeLatencyMs;
+		public final double processLatencyMs;
+		public final double completeLatencyMs;
+		public final long executed;
+		public final long acked;
+		public final long failed;
+		public final double capacity;
+
+		public LatencyStat(double executeLatencyMs, double processLatencyMs,
+				double completeLatencyMs, long executed, long acked,
+				long failed, double capacity) {
+			this.executeLatencyMs = executeLatencyMs;
+			this.processLatencyMs = processLatencyMs;
+			this.completeLatencyMs = completeLatencyMs;
+			this.executed = executed;
+			this.acked = acked;
+			this.failed = failed;
+			this.capacity = capacity;
+		}
+
+		/**
+		 * Latencies averaged weighted by executed (bolts) or acked (spouts)
+		 * counts, counts summed, capacity of the busiest executor
+		 */
+		static LatencyStat combine(List<LatencyStat> stats) {
+			double execute = 0.0, process = 0.0, complete = 0.0, capacity = 0.0;
+			long executed = 0, acked = 0, failed = 0;
+			for (LatencyStat ls : stats) {
+				execute += ls.executeLatencyMs * ls.executed;
+				process += ls.processLatencyMs * ls.executed;
+				complete += ls.completeLatencyMs * ls.acked;
+				executed += ls.executed;
+				acked += ls.acked;
+				failed += ls.failed;
+				capacity = Math.max(capacity, ls.capacity);
+			}
+			return new LatencyStat(executed == 0 ? 0.0 : execute / executed,
+					executed == 0 ? 0.0 : process / executed,
+					acked == 0 ? 0.0 : complete / acked, executed, acked,
+					failed, capacity);
+		}
+
+		@Override
+		public String toString() {
+			return "execute: " + executeLatencyMs + "ms process: "
+					+ processLatencyMs + "ms complete: " + completeLatencyMs
+					+ "ms capacity: " + capacity;
+		}
+	}
+
+	/**
+	 * Throughput of one executor since the previous poll, and its tuple rates
+	 * per second over each of the snapshot's rate windows
+	 */
+	public static class ExecutorStat {
+		public final String topologyId;
+		public final String componentId;
+		public final String host;
+		public final int port;
+		public final int taskStart;
+		public final int taskEnd;
+		public final boolean isSpout;
+		public final long transferThroughput;
+		public final long emitThroughput;
+		public final LatencyStat latency;
+		private final double[] transferRates;
+		private final double[] emitRates;
+		// source component -> tuples per second executed from it
+		private final Map<String, Double> inputRates;
+
+		public ExecutorStat(String topologyId, String componentId,
+				String host, int port, int taskStart, int taskEnd,
+				boolean isSpout, long transferThroughput, long emitThroughput,
+				double[] transferRates, double[] emitRates, LatencyStat latency,
+				Map<String, Double> inputRates) {
+			this.topologyId = topologyId;
+			this.componentId = componentId;
+			this.host = host;
+			this.port = port;
+			this.taskStart = taskStart;
+			this.taskEnd = taskEnd;
+			this.isSpout = isSpout;
+			this.transferThroughput = transferThroughput;
+			this.emitThroughput = emitThroughput;
+			this.transferRates = transferRates.clone();
+			this.emitRates = emitRates.clone();
+			this.latency = latency == null ? LatencyStat.NONE : latency;
+			this.inputRates = inputRates == null ? Collections
+					.<String, Double> emptyMap() : Collections
+					.unmodifiableMap(new HashMap<String, Double>(inputRates));
+		}
+
+		public double getTransferRate(int window) {
+			return this.transferRates[window];
+		}
+
+		public double getEmitRate(int window) {
+			return this.emitRates[window];
+		}
+
+		/**
+		 * @return source component -> tuples per second this bolt executor
+		 *         executed from it over the latency window, empty for spouts
+		 */
+		public Map<String, Double> getInputRates() {
+			return this.inputRates;
+		}
+
+		@Override
+		public String toString() {
+			return host + ':' + port + ':' + componentId + ":" + topologyId
+					+ ":" + taskStart + "," + transferThroughput + ","
+					+ emitThroughput + "," + latency;
+		}
+	}
+
+	/**
+	 * Sum over the executors of one component
+	 */
+	public static class ComponentStat {
+		public final String topologyId;
+		public final String componentId;
+		public final int parallelismHint;
+		public final int numExecutors;
+		public final long totalTransferThroughput;
+		public final long totalEmitThroughput;
+		public final LatencyStat latency;
+		private final double[] transferRates;
+		private final double[] emitRates;
+		private final Map<String, Double> inputRates;
+
+		ComponentStat(String topologyId, String componentId,
+				int parallelismHint, int numExecutors,
+				long totalTransferThroughput, long totalEmitThroughput,
+				double[] transferRates, double[] emitRates, LatencyStat latency,
+				Map<String, Double> inputRates) {
+			this.topologyId = topologyId;
+			this.componentId = componentId;
+			this.parallelismHint = parallelismHint;
+			this.numExecutors = numExecutors;
+			this.totalTransferThroughput = totalTransferThroughput;
+			this.totalEmitThroughput = totalEmitThroughput;
+			this.transferRates = transferRates;
+			this.emitRates = emitRates;
+			this.latency = latency;
+			this.inputRates = Collections.unmodifiableMap(inputRates);
+		}
+
+		/**
+		 * @return tuples per second transferred by all executors of the
+		 *         component over the given rate window
+		 */
+		public double getTransferRate(int window) {
+			return this.transferRates[window];
+		}
+
+		public double getEmitRate(int window) {
+			return this.emitRates[window];
+		}
+
+		/**
+		 * @return source component -> tuples per second all executors of the
+		 *         component executed from it, i.e. the measured rate of each
+		 *         incoming edge
+		 */
+		public Map<String, Double> getInputRates() {
+			return this.inputRates;
+		}
+
+		public long getAvgTransferThroughput() {
+			return this.numExecutors == 0 ? 0 : this.totalTransferThroughput
+					/ this.numExecutors;
+		}
+
+		public long getAvgEmitThroughput() {
+			return this.numExecutors == 0 ? 0 : this.totalEmitThroughput
+					/ this.numExecutors;
+		}
+
+		@Override
+		public String toString() {
+			return componentId + " transfer: " + totalTransferThroughput
+					+ " emit: " + totalEmitThroughput + " execs: "
+					+ numExecutors + " " + latency;
+		}
+	}
+
+	/**
+	 * Sum over the executors running on one host
+	 */
+	public static class NodeStat {
+		public final String hostname;
+		public final int numSpouts;
+		public final int numBolts;
+		public final long transferThroughput;
+		public final long emitThroughput;
+		private final double[] transferRates;
+
+		NodeStat(String hostname, int numSpouts, int numBolts,
+				long transferThroughput, long emitThroughput,
+				double[] transferRates) {
+			this.hostname = hostname;
+			this.numSpouts = numSpouts;
+			this.numBolts = numBolts;
+			this.transferThroughput = transferThroughput;
+			this.emitThroughput = emitThroughput;
+			this.transferRates = transferRates;
+		}
+
+		public double getTransferRate(int window) {
+			return this.transferRates[window];
+		}
+
+		@Override
+		public String toString() {
+			return hostname + " transfer: " + transferThroughput + " emit: "
+					+ emitThroughput;
+		}
+	}
+
+	public final long timestamp;
+	private final long[] rateWindowsMs;
+	private final List<ExecutorStat> executors;
+	// topology id -> executors
+	private final Map<String, List<ExecutorStat>> topoExecutors;
+	// topology id -> component id -> stats
+	private final Map<String, Map<String, ComponentStat>> components;
+	// hostname -> stats
+	private final Map<String, NodeStat> nodes;
+
+	/**
+	 * @param parallelismHints
+	 *            "topologyId:componentId" -> parallelism hint
+	 */
+	public StatsSnapshot(long timestamp, List<ExecutorStat> executors,
+			Map<String, Integer> parallelismHints, long[] rateWindowsMs) {
+		this.timestamp = timestamp;
+		this.rateWindowsMs = rateWindowsMs.clone();
+		int numWindows = rateWindowsMs.length;
+		this.executors = Collections
+				.unmodifiableList(new ArrayList<ExecutorStat>(executors));
+
+		Map<String, long[]> compSums = new HashMap<String, long[]>();
+		Map<String, long[]> nodeSums = new HashMap<String, long[]>();
+		Map<String, ExecutorStat> compFirst = new HashMap<String, ExecutorStat>();
+		// [0, numWindows) transfer rates, [numWindows, 2*numWindows) emit rates
+		Map<String, double[]> compRates = new HashMap<String, double[]>();
+		Map<String, double[]> nodeRates = new HashMap<String, double[]>();
+		Map<String, List<LatencyStat>> compLatencies = new HashMap<String, List<LatencyStat>>();
+		Map<String, Map<String, Double>> compInputs = new HashMap<String, Map<String, Double>>();
+		Map<String, List<ExecutorStat>> byTopo = new HashMap<String, List<ExecutorStat>>();
+		for (ExecutorStat es : executors) {
+			String compKey = es.topologyId + ":" + es.componentId;
+			if (compSums.containsKey(compKey) == false) {
+				compSums.put(compKey, new long[3]);
+				compFirst.put(compKey, es);
+				compRates.put(compKey, new double[2 * numWindows]);
+				compLatencies.put(compKey, new ArrayList<LatencyStat>());
+				compInputs.put(compKey, new HashMap<String, Double>());
+			}
+			compLatencies.get(compKey).add(es.latency);
+			Map<String, Double> inputs = compInputs.get(compKey);
+			for (Map.Entry<String, Double> input : es.getInputRates().entrySet()) {
+				Double sum = inputs.get(input.getKey());
+				inputs.put(input.getKey(), (sum == null ? 0.0 : sum) + input.getValue());
+			}
+			if (byTopo.containsKey(es.topologyId) == false) {
+				byTopo.put(es.topologyId, new ArrayList<ExecutorStat>());
+			}
+			byTopo.get(es.topologyId).add(es);
+			double[] cr = compRates.get(compKey);
+			for (int w = 0; w < numWindows; w++) {
+				cr[w] += es.getTransferRate(w);
+				cr[numWindows + w] += es.getEmitRate(w);
+			}
+			long[] c = compSums.get(compKey);
+			c[0]++;
+			c[1] += es.transferThroughput;
+			c[2] += es.emitThroughput;
+
+			if (nodeSums.containsKey(es.host) == false) {
+				nodeSums.put(es.host, new long[4]);
+				nodeRates.put(es.host, new double[numWindows]);
+			}
+			double[] nr = nodeRates.get(es.host);
+			for (int w = 0; w < numWindows; w++) {
+				nr[w] += es.getTransferRate(w);
+			}
+			long[] n = nodeSums.get(es.host);
+			n[es.isSpout ? 0 : 1]++;
+			n[2] += es.transferThroughput;
+			n[3] += es.emitThroughput;
+		}
+
+		Map<String, Map<String, ComponentStat>> comps = new HashMap<String, Map<String, ComponentStat>>();
+		for (Map.Entry<String, long[]> entry : compSums.entrySet()) {
+			ExecutorStat es = compFirst.get(entry.getKey());
+			Integer hint = parallelismHints.get(entry.getKey());
+			long[] c = entry.getValue();
+			double[] cr = compRates.get(entry.getKey());
+			if (comps.containsKey(es.topologyId) == false) {
+				comps.put(es.topologyId, new HashMap<String, ComponentStat>());
+			}
+			comps.get(es.topologyId).put(
+					es.componentId,
+					new ComponentStat(es.topologyId, es.componentId,
+							hint == null ? 0 : hint, (int) c[0], c[1], c[2],
+							Arrays.copyOfRange(cr, 0, numWindows), Arrays
+									.copyOfRange(cr, numWindows,
+											2 * numWindows), LatencyStat
+									.combine(compLatencies.get(entry.getKey())),
+							compInputs.get(entry.getKey())));
+		}
+		for (Map.Entry<String, List<ExecutorStat>> entry : byTopo.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		this.topoExecutors = Collections.unmodifiableMap(byTopo);
+		for (Map.Entry<String, Map<String, ComponentStat>> entry : comps
+				.entrySet()) {
+			entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+		}
+		this.components = Collections.unmodifiableMap(comps);
+
+		Map<String, NodeStat> nodeMap = new HashMap<String, NodeStat>();
+		for (Map.Entry<String, long[]> entry : nodeSums.entrySet()) {
+			long[] n = entry.getValue();
+			nodeMap.put(entry.getKey(), new NodeStat(entry.getKey(), (int) n[0],
+					(int) n[1], n[2], n[3], nodeRates.get(entry.getKey())));
+		}
+		this.nodes = Collections.unmodifiableMap(nodeMap);
+	}
+
+	/**
+	 * @return index of the rate window of the given length, or -1
+	 */
+	public int getWindowIndex(long windowMs) {
+		for (int i = 0; i < this.rateWindowsMs.length; i++) {
+			if (this.rateWindowsMs[i] == windowMs) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public long getWindowMs(int window) {
+		return this.rateWindowsMs[window];
+	}
+
+	public int getNumWindows() {
+		return this.rateWindowsMs.length;
+	}
+
+	public List<ExecutorStat> getExecutors() {
+		return this.executors;
+	}
+
+	/**
+	 * @return executors of topoId, empty if there is no data
+	 */
+	public List<ExecutorStat> getExecutors(String topoId) {
+		List<ExecutorStat> retVal = this.topoExecutors.get(topoId);
+		if (retVal == null) {
+			return Collections.emptyList();
+		}
+		return retVal;
+	}
+
+	/**
+	 * @return component id -> stats of topoId, empty if there is no data
+	 */
+	public Map<String, ComponentStat> getComponents(String topoId) {
+		Map<String, ComponentStat> retVal = this.components.get(topoId);
+		if (retVal == null) {
+			return Collections.emptyMap();
+		}
+		return retVal;
+	}
+
+	public Map<String, NodeStat> getNodes() {
+		return this.nodes;
+	}
+
+	/**
+	 * @return milliseconds since this snapshot was taken
+	 */
+	public long getAge() {
+		return System.currentTimeMillis() - this.timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "StatsSnapshot@" + this.timestamp + " nodes: "
+				+ this.nodes.values() + " components: " + this.components;
+	}
+}
@@ -31,7 +31,7 @@ public class StoreState {
 		this.nodes = new HashMap<String, Node>();
 	}
 	
-	public static StoreState getInstance(Cluster cluster, Topologies topologies) {
+	public static synchronized StoreState getInstance(Cluster cluster, Topologies topologies) {
 		if(instance==null) {
 			instance = new StoreState(cluster, topologies);
 		}
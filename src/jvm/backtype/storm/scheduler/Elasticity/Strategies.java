@@ -1,8 +1,11 @@
 package backtype.storm.scheduler.Elasticity;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -21,6 +24,67 @@ public class Strategies {
 		retMap.putAll(rankMap);
 		return retMap;
 	}
+
+	/**
+	 * Rank components by measured capacity (fraction of time spent executing
+	 * tuples), so the bolts that cannot keep up come first. Components
+	 * without stats rank last.
+	 */
+	public static TreeMap<Component, Integer> capacityStrategy(Map<String, Component> map, Map<String, StatsSnapshot.ComponentStat> stats) {
+		HashMap<Component, Integer> rankMap = new HashMap<Component, Integer>();
+		
+		ComponentComparator bvc =  new ComponentComparator(rankMap);
+		TreeMap<Component, Integer>retMap = new TreeMap<Component, Integer>(bvc);
+		for(Map.Entry<String, Component> entry : map.entrySet()) {
+			StatsSnapshot.ComponentStat cs = stats.get(entry.getKey());
+			// per mille, to keep the Integer ranks of the comparator
+			int rank = cs == null ? 0 : (int) Math.round(cs.latency.capacity * 1000);
+			rankMap.put(entry.getValue(), rank);
+		}
+		retMap.putAll(rankMap);
+		return retMap;
+	}
+
+	/**
+	 * Rank components by the tuples per second they send and receive, so the
+	 * components with the heaviest communication come first
+	 */
+	public static TreeMap<Component, Integer> trafficStrategy(Map<String, Component> map, TrafficGraph graph) {
+		HashMap<Component, Integer> rankMap = new HashMap<Component, Integer>();
+		
+		ComponentComparator bvc =  new ComponentComparator(rankMap);
+		TreeMap<Component, Integer>retMap = new TreeMap<Component, Integer>(bvc);
+		for(Map.Entry<String, Component> entry : map.entrySet()) {
+			rankMap.put(entry.getValue(), (int) Math.round(graph.getTraffic(entry.getKey())));
+		}
+		retMap.putAll(rankMap);
+		return retMap;
+	}
+
+	/**
+	 * Order nodes by spare hardware, most headroom (of cpu and NIC, whichever
+	 * is scarcer) first. Nodes without agent reports keep their order after
+	 * the measured ones.
+	 */
+	public static List<Node> headroomStrategy(Collection<Node> nodes, long windowMs, double nicBytesPerSec) {
+		final HashMap<Node, Double> rankMap = new HashMap<Node, Double>();
+		for (Node n : nodes) {
+			rankMap.put(n, n.profile == null ? Double.NaN : n.profile.getHeadroom(windowMs, nicBytesPerSec));
+		}
+		List<Node> retVal = new ArrayList<Node>(nodes);
+		Collections.sort(retVal, new Comparator<Node>() {
+			@Override
+			public int compare(Node a, Node b) {
+				double ha = rankMap.get(a);
+				double hb = rankMap.get(b);
+				if (Double.isNaN(ha) || Double.isNaN(hb)) {
+					return Boolean.compare(Double.isNaN(ha), Double.isNaN(hb));
+				}
+				return Double.compare(hb, ha);
+			}
+		});
+		return retVal;
+	}
 }
 
 class ComponentComparator implements Comparator<Component> {
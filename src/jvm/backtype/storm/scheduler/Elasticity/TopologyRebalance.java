@@ -0,0 +1,217 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rebalance progress of one topology, kept by GlobalState.
+ *
+ * IDLE -> PLANNED when Nimbus reports the topology as REBALANCING; the plan
+ * is made once Nimbus has released all its executors.
+ * PLANNED -> MIGRATING when the migration plan was assigned, or when the
+ * rebalance changed the executors and they are placed like a new topology.
+ * MIGRATING -> STABILIZING when the topology is back to its normal status.
+ * STABILIZING -> IDLE after elasticity.rebalance.stabilize.ms; a rebalance
+ * requested before that is left to EvenScheduler.
+ * PLANNED -> IDLE (aborted) when the rebalance ends without a plan, e.g.
+ * because there was no node to migrate to.
+ * IDLE -> STABILIZING when the scheduler moved executors itself, without a
+ * rebalance, e.g. to scale in.
+ */
+public class TopologyRebalance {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TopologyRebalance.class);
+
+	public enum Phase {
+		IDLE, PLANNED, MIGRATING, STABILIZING
+	}
+
+	public final String topologyId;
+
+	private Phase phase = Phase.IDLE;
+	private long phaseSince;
+	// a rebalance requested while STABILIZING is running
+	private boolean skipping = false;
+
+	// metrics
+	private int started = 0;
+	private int completed = 0;
+	private int aborted = 0;
+	private int skipped = 0;
+	private long executorsMigrated = 0;
+	private int lastMigrated = 0;
+	// PLANNED -> MIGRATING and MIGRATING -> STABILIZING of the last rebalance
+	private long lastPlanMs = 0;
+	private long lastMigrationMs = 0;
+
+	public TopologyRebalance(String topologyId) {
+		this.topologyId = topologyId;
+		this.phaseSince = System.currentTimeMillis();
+	}
+
+	public Phase getPhase() {
+		return this.phase;
+	}
+
+	/**
+	 * @return ms spent in the current phase
+	 */
+	public long getPhaseAge(long now) {
+		return now - this.phaseSince;
+	}
+
+	/**
+	 * Move on according to the status Nimbus reports for the topology
+	 * @param rebalancing Nimbus status is REBALANCING
+	 * @return the phase after the update
+	 */
+	public Phase update(boolean rebalancing, long now, long stabilizeMs) {
+		if (rebalancing == true) {
+			if (this.phase == Phase.IDLE) {
+				this.started++;
+				this.moveTo(Phase.PLANNED, now);
+			} else if (this.phase == Phase.STABILIZING && this.skipping == false) {
+				LOG.info("{} rebalanced again while stabilizing, leaving it to EvenScheduler", this.topologyId);
+				this.skipped++;
+				this.skipping = true;
+			}
+		} else {
+			if (this.phase == Phase.PLANNED) {
+				LOG.info("error! rebalance of {} ended before it was planned", this.topologyId);
+				this.aborted++;
+				this.moveTo(Phase.IDLE, now);
+			} else if (this.phase == Phase.MIGRATING) {
+				this.lastMigrationMs = now - this.phaseSince;
+				this.completed++;
+				this.moveTo(Phase.STABILIZING, now);
+			} else if (this.phase == Phase.STABILIZING && this.skipping == true) {
+				// EvenScheduler moved it again, settle from now on
+				this.skipping = false;
+				this.phaseSince = now;
+			} else if (this.phase == Phase.STABILIZING && now - this.phaseSince >= stabilizeMs) {
+				this.moveTo(Phase.IDLE, now);
+			}
+		}
+		return this.phase;
+	}
+
+	/**
+	 * The migration plan of numMigrated executors was assigned
+	 */
+	public void migrating(int numMigrated, long now) {
+		if (this.phase != Phase.PLANNED) {
+			LOG.info("error! {} migrating in phase {}", this.topologyId, this.phase);
+			return;
+		}
+		this.lastPlanMs = now - this.phaseSince;
+		this.lastMigrated = numMigrated;
+		this.executorsMigrated += numMigrated;
+		this.moveTo(Phase.MIGRATING, now);
+	}
+
+	/**
+	 * numMigrated executors were moved by the scheduler itself
+	 */
+	public void moved(int numMigrated, long now) {
+		if (this.phase != Phase.IDLE) {
+			LOG.info("error! {} moved in phase {}", this.topologyId, this.phase);
+			return;
+		}
+		this.started++;
+		this.completed++;
+		this.lastPlanMs = 0;
+		this.lastMigrationMs = 0;
+		this.lastMigrated = numMigrated;
+		this.executorsMigrated += numMigrated;
+		this.moveTo(Phase.STABILIZING, now);
+	}
+
+	private void moveTo(Phase next, long now) {
+		LOG.info("{}: {} -> {}", new Object[] { this.topologyId, this.phase, next });
+		this.phase = next;
+		this.phaseSince = now;
+	}
+
+	public int getStarted() {
+		return this.started;
+	}
+
+	public int getCompleted() {
+		return this.completed;
+	}
+
+	public int getAborted() {
+		return this.aborted;
+	}
+
+	public int getSkipped() {
+		return this.skipped;
+	}
+
+	public long getExecutorsMigrated() {
+		return this.executorsMigrated;
+	}
+
+	public int getLastMigrated() {
+		return this.lastMigrated;
+	}
+
+	public long getLastPlanMs() {
+		return this.lastPlanMs;
+	}
+
+	public long getLastMigrationMs() {
+		return this.lastMigrationMs;
+	}
+
+	/**
+	 * Write phase and metrics, see SchedulerCheckpoint
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(this.topologyId);
+		out.writeByte(this.phase.ordinal());
+		out.writeLong(this.phaseSince);
+		out.writeBoolean(this.skipping);
+		out.writeInt(this.started);
+		out.writeInt(this.completed);
+		out.writeInt(this.aborted);
+		out.writeInt(this.skipped);
+		out.writeLong(this.executorsMigrated);
+		out.writeInt(this.lastMigrated);
+		out.writeLong(this.lastPlanMs);
+		out.writeLong(this.lastMigrationMs);
+	}
+
+	public static TopologyRebalance readFrom(DataInput in) throws IOException {
+		TopologyRebalance retVal = new TopologyRebalance(in.readUTF());
+		int phase = in.readByte();
+		if (phase < 0 || phase >= Phase.values().length) {
+			throw new IOException("bad rebalance phase " + phase);
+		}
+		retVal.phase = Phase.values()[phase];
+		retVal.phaseSince = in.readLong();
+		retVal.skipping = in.readBoolean();
+		retVal.started = in.readInt();
+		retVal.completed = in.readInt();
+		retVal.aborted = in.readInt();
+		retVal.skipped = in.readInt();
+		retVal.executorsMigrated = in.readLong();
+		retVal.lastMigrated = in.readInt();
+		retVal.lastPlanMs = in.readLong();
+		retVal.lastMigrationMs = in.readLong();
+		return retVal;
+	}
+
+	@Override
+	public String toString() {
+		return this.topologyId + " " + this.phase + " rebalances: " + this.started
+				+ " (completed " + this.completed + ", aborted " + this.aborted + ", skipped " + this.skipped
+				+ ") executors migrated: " + this.executorsMigrated + " (last " + this.lastMigrated
+				+ ", planned in " + this.lastPlanMs + "ms, migrated in " + this.lastMigrationMs + "ms)";
+	}
+}
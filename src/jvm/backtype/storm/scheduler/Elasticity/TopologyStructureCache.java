@@ -0,0 +1,167 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import backtype.storm.generated.Nimbus;
+import backtype.storm.generated.NotAliveException;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.TopologyDetails;
+
+/**
+ * Parsed component graph (Component parents/children/execs) of every running
+ * topology, keyed by topology id.
+ *
+ * The structure of a topology does not change after submission, so the graph
+ * is only rebuilt (one getTopology call) when a topology is first seen or when
+ * its executor set changes, i.e. after a rebalance with new executor counts.
+ * Entries of killed topologies are evicted. A resubmitted topology gets a new
+ * id and therefore a fresh entry.
+ */
+public class TopologyStructureCache {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TopologyStructureCache.class);
+
+	private static TopologyStructureCache instance = null;
+
+	static class Entry {
+		// bumped every time the graph of this topology is rebuilt
+		long version;
+		// fingerprint of the executor set the graph was built for
+		int numExecs;
+		int execsHash;
+		Map<String, Component> components;
+	}
+
+	private Map<String, Entry> cache;
+	// raw thrift structure, for callers that need spout/bolt specs
+	private Map<String, StormTopology> stormTopologies;
+	private long misses = 0;
+
+	private TopologyStructureCache() {
+		this.cache = new HashMap<String, Entry>();
+		this.stormTopologies = new HashMap<String, StormTopology>();
+	}
+
+	public static synchronized TopologyStructureCache getInstance() {
+		if (instance == null) {
+			instance = new TopologyStructureCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return component name -> Component of topo, fetching the structure
+	 *         from Nimbus only if it is not cached or its executors changed
+	 */
+	public synchronized Map<String, Component> getComponents(
+			TopologyDetails topo, ClusterSnapshot snapshot) {
+		Set<ExecutorDetails> execs = new HashSet<ExecutorDetails>(
+				topo.getExecutors());
+		Entry entry = this.cache.get(topo.getId());
+		if (entry != null && entry.numExecs == execs.size()
+				&& entry.execsHash == execs.hashCode()) {
+			return entry.components;
+		}
+		if (entry != null && snapshot.isValid() == false) {
+			// cannot rebuild right now, keep serving the old graph
+			return entry.components;
+		}
+
+		this.misses++;
+		GetTopologyInfo gt = new GetTopologyInfo();
+		gt.getTopologyInfo(snapshot, topo.getId());
+		if (gt.all_comp.isEmpty() == true) {
+			// not running or Nimbus not reachable, try again next round
+			return entry == null ? gt.all_comp : entry.components;
+		}
+		for (Component comp : gt.all_comp.values()) {
+			comp.execs = HelperFuncs.compToExecs(topo, comp.id);
+		}
+		this.stormTopologies.put(topo.getId(), gt.storm_topo);
+
+		Entry newEntry = new Entry();
+		newEntry.version = entry == null ? 1 : entry.version + 1;
+		newEntry.numExecs = execs.size();
+		newEntry.execsHash = execs.hashCode();
+		newEntry.components = gt.all_comp;
+		this.cache.put(topo.getId(), newEntry);
+		LOG.info("Cached structure of topology {} version {}", topo.getId(),
+				newEntry.version);
+		return newEntry.components;
+	}
+
+	/**
+	 * @return thrift structure of topoId, fetched from Nimbus only the first
+	 *         time it is asked for, or null if it cannot be fetched
+	 */
+	public synchronized StormTopology getStormTopology(final String topoId) {
+		StormTopology retVal = this.stormTopologies.get(topoId);
+		if (retVal != null) {
+			return retVal;
+		}
+		this.misses++;
+		try {
+			retVal = NimbusClientPool.getInstance().execute(
+					new NimbusClientPool.NimbusCall<StormTopology>() {
+						@Override
+						public StormTopology call(Nimbus.Client client)
+								throws TException, NotAliveException {
+							return client.getTopology(topoId);
+						}
+					});
+		} catch (TException e) {
+			LOG.info("Cannot get structure of topology {}: {}", topoId,
+					e.toString());
+			return null;
+		}
+		this.stormTopologies.put(topoId, retVal);
+		return retVal;
+	}
+
+	/**
+	 * @return version of the cached graph of topoId, 0 if none is cached
+	 */
+	public synchronized long getVersion(String topoId) {
+		Entry entry = this.cache.get(topoId);
+		return entry == null ? 0 : entry.version;
+	}
+
+	public synchronized void invalidate(String topoId) {
+		this.cache.remove(topoId);
+		this.stormTopologies.remove(topoId);
+	}
+
+	/**
+	 * Drop cached graphs of topologies that are no longer running
+	 */
+	public synchronized void retainAll(Collection<String> liveTopoIds) {
+		Set<String> live = new HashSet<String>(liveTopoIds);
+		for (Iterator<String> it = this.cache.keySet().iterator(); it
+				.hasNext();) {
+			String topoId = it.next();
+			if (live.contains(topoId) == false) {
+				LOG.info("Evicting structure of killed topology {}", topoId);
+				it.remove();
+			}
+		}
+		this.stormTopologies.keySet().retainAll(live);
+	}
+
+	/**
+	 * @return number of times a topology structure had to be fetched
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+}
@@ -0,0 +1,234 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import backtype.storm.scheduler.ExecutorDetails;
+
+/**
+ * Communication graph of one topology, weighted by tuples per second.
+ *
+ * The rate of a component edge parent -> child is what the child's
+ * executors executed from the parent (bolt input stats). An edge without
+ * such stats gets the parent's transfer rate split evenly over its children,
+ * and a topology without any stats weighs every edge 1, so the graph
+ * degrades to the plain structure the centrality strategy uses.
+ *
+ * Executor edges spread the component rate over the executor pairs: the
+ * measured input rate of each child executor, divided over the parent's
+ * executors, or the component rate split evenly when the child executor has
+ * no input stats (grouping is not known, shuffle is assumed). A child
+ * executor is linked to at most MAX_FANOUT parent executors, spread so every
+ * parent gets its share, which keeps wide components from growing the graph
+ * quadratically while leaving the traffic of every executor unchanged.
+ */
+public class TrafficGraph {
+
+	// window of the transfer rates used for unmeasured edges, 30s
+	static final int RATE_WINDOW = 0;
+	static final int MAX_FANOUT = 16;
+
+	public final String topologyId;
+	private final boolean measured;
+	// parent -> child -> tuples per second
+	private final Map<String, Map<String, Double>> rates;
+	// component -> tuples per second sent and received
+	private final Map<String, Double> traffic;
+	// executor -> neighbour -> tuples per second, both directions
+	private final Map<ExecutorDetails, Map<ExecutorDetails, Double>> execEdges;
+	private final Map<ExecutorDetails, String> execToComp;
+
+	private TrafficGraph(String topologyId, boolean measured) {
+		this.topologyId = topologyId;
+		this.measured = measured;
+		this.rates = new HashMap<String, Map<String, Double>>();
+		this.traffic = new HashMap<String, Double>();
+		this.execEdges = new LinkedHashMap<ExecutorDetails, Map<ExecutorDetails, Double>>();
+		this.execToComp = new HashMap<ExecutorDetails, String>();
+	}
+
+	/**
+	 * @param components component id -> Component, see GlobalState.components
+	 * @param stats latest stats, StatsSnapshot.EMPTY if there are none
+	 */
+	public static TrafficGraph build(String topologyId, Map<String, Component> components, StatsSnapshot stats) {
+		Map<String, StatsSnapshot.ComponentStat> compStats = stats.getComponents(topologyId);
+		TrafficGraph retVal = new TrafficGraph(topologyId, compStats.isEmpty() == false);
+		if (components == null) {
+			return retVal;
+		}
+
+		// task start -> executor stats
+		Map<Integer, StatsSnapshot.ExecutorStat> execStats = new HashMap<Integer, StatsSnapshot.ExecutorStat>();
+		for (StatsSnapshot.ExecutorStat es : stats.getExecutors(topologyId)) {
+			execStats.put(es.taskStart, es);
+		}
+
+		for (Component comp : components.values()) {
+			retVal.traffic.put(comp.id, 0.0);
+			for (ExecutorDetails exec : comp.execs) {
+				retVal.execToComp.put(exec, comp.id);
+				retVal.execEdges.put(exec, new HashMap<ExecutorDetails, Double>());
+			}
+		}
+
+		for (Component parent : components.values()) {
+			for (String childId : parent.children) {
+				Component child = components.get(childId);
+				if (child == null) {
+					continue;
+				}
+				double rate = retVal.edgeRate(parent, child, compStats);
+				retVal.addRate(parent.id, child.id, rate);
+				if (parent.execs.isEmpty() == true || child.execs.isEmpty() == true) {
+					continue;
+				}
+				int numParents = parent.execs.size();
+				int fanout = Math.min(numParents, MAX_FANOUT);
+				double even = rate / child.execs.size();
+				for (int c = 0; c < child.execs.size(); c++) {
+					ExecutorDetails to = child.execs.get(c);
+					StatsSnapshot.ExecutorStat es = execStats.get(to.getStartTask());
+					Double in = es == null ? null : es.getInputRates().get(parent.id);
+					double perPair = (in == null ? even : in) / fanout;
+					if (perPair <= 0.0) {
+						continue;
+					}
+					for (int p = 0; p < fanout; p++) {
+						ExecutorDetails from = parent.execs.get((c * fanout + p) % numParents);
+						retVal.addExecRate(from, to, perPair);
+						retVal.addExecRate(to, from, perPair);
+					}
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private double edgeRate(Component parent, Component child, Map<String, StatsSnapshot.ComponentStat> compStats) {
+		if (this.measured == false) {
+			return 1.0;
+		}
+		StatsSnapshot.ComponentStat childStat = compStats.get(child.id);
+		if (childStat != null && childStat.getInputRates().containsKey(parent.id) == true) {
+			return childStat.getInputRates().get(parent.id);
+		}
+		StatsSnapshot.ComponentStat parentStat = compStats.get(parent.id);
+		if (parentStat == null || parent.children.isEmpty() == true) {
+			return 0.0;
+		}
+		return parentStat.getTransferRate(RATE_WINDOW) / parent.children.size();
+	}
+
+	private void addRate(String from, String to, double rate) {
+		if (this.rates.containsKey(from) == false) {
+			this.rates.put(from, new HashMap<String, Double>());
+		}
+		this.rates.get(from).put(to, rate);
+		this.traffic.put(from, this.traffic.get(from) + rate);
+		this.traffic.put(to, this.traffic.get(to) + rate);
+	}
+
+	private void addExecRate(ExecutorDetails from, ExecutorDetails to, double rate) {
+		Map<ExecutorDetails, Double> edges = this.execEdges.get(from);
+		Double old = edges.get(to);
+		edges.put(to, old == null ? rate : old + rate);
+	}
+
+	/**
+	 * @return false if the graph is built from structure only, without stats
+	 */
+	public boolean isMeasured() {
+		return this.measured;
+	}
+
+	/**
+	 * @return tuples per second from component from to component to
+	 */
+	public double getRate(String from, String to) {
+		Map<String, Double> children = this.rates.get(from);
+		Double retVal = children == null ? null : children.get(to);
+		return retVal == null ? 0.0 : retVal;
+	}
+
+	/**
+	 * @return tuples per second a component sends and receives
+	 */
+	public double getTraffic(String comp) {
+		Double retVal = this.traffic.get(comp);
+		return retVal == null ? 0.0 : retVal;
+	}
+
+	/**
+	 * @return executors of the topology in component order
+	 */
+	public Set<ExecutorDetails> getExecutors() {
+		return Collections.unmodifiableSet(this.execEdges.keySet());
+	}
+
+	/**
+	 * @return neighbour -> tuples per second exchanged with exec
+	 */
+	public Map<ExecutorDetails, Double> getNeighbors(ExecutorDetails exec) {
+		Map<ExecutorDetails, Double> retVal = this.execEdges.get(exec);
+		if (retVal == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(retVal);
+	}
+
+	public String getComponent(ExecutorDetails exec) {
+		return this.execToComp.get(exec);
+	}
+
+	/**
+	 * Grow a group of at most max executors that talk to each other the most,
+	 * to be placed in one worker. Starts with the first candidate and each
+	 * time adds the executor exchanging the most tuples with the group; when
+	 * nothing is connected to the group the next candidate starts over.
+	 *
+	 * @param candidates executors in order of preference
+	 */
+	public List<ExecutorDetails> pickGroup(List<ExecutorDetails> candidates, int max) {
+		Set<ExecutorDetails> group = new LinkedHashSet<ExecutorDetails>();
+		Set<ExecutorDetails> allowed = new LinkedHashSet<ExecutorDetails>(candidates);
+		// executor outside the group -> tuples per second exchanged with it
+		Map<ExecutorDetails, Double> gain = new HashMap<ExecutorDetails, Double>();
+		int next = 0;
+		while (group.size() < max && group.size() < allowed.size()) {
+			ExecutorDetails best = null;
+			double bestGain = 0.0;
+			for (ExecutorDetails exec : allowed) {
+				Double g = gain.get(exec);
+				if (g != null && g > bestGain && group.contains(exec) == false) {
+					best = exec;
+					bestGain = g;
+				}
+			}
+			if (best == null) {
+				while (group.contains(candidates.get(next)) == true) {
+					next++;
+				}
+				best = candidates.get(next);
+			}
+			group.add(best);
+			gain.remove(best);
+			for (Map.Entry<ExecutorDetails, Double> edge : this.getNeighbors(best).entrySet()) {
+				Double g = gain.get(edge.getKey());
+				gain.put(edge.getKey(), (g == null ? 0.0 : g) + edge.getValue());
+			}
+		}
+		return new ArrayList<ExecutorDetails>(group);
+	}
+
+	@Override
+	public String toString() {
+		return this.topologyId + (this.measured ? " measured " : " unmeasured ") + this.rates;
+	}
+}
@@ -0,0 +1,75 @@
+package backtype.storm.scheduler.Elasticity;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class AutoScalerTest {
+
+	private final AutoScaler scaler = new AutoScaler(100, 0, 0.8, 0, 0.1, 3, 600000, 10);
+
+	@Test
+	public void outputBoltsCountEvenWhenTheyEmitNothing() {
+		List<StatsSnapshot.ExecutorStat> execs = new ArrayList<StatsSnapshot.ExecutorStat>();
+		execs.add(executor("spout", 1, 50, 0.0, null));
+		execs.add(executor("split", 2, 50, 0.3, Collections.singletonMap("spout", 50.0)));
+		// the sink writes elsewhere and emits no tuple
+		execs.add(executor("sink", 3, 0, 0.6, Collections.singletonMap("split", 30.0)));
+		execs.add(executor("sink", 4, 0, 0.2, Collections.singletonMap("split", 20.0)));
+		StatsSnapshot stats = new StatsSnapshot(1000, execs, new HashMap<String, Integer>(),
+				StatsSnapshot.DEFAULT_RATE_WINDOWS_MS);
+
+		AutoScaler.Health health = this.scaler.measure(chain(), stats.getComponents("t"));
+		assertTrue(health.throughput > 0);
+		assertEquals(health.throughput, 50.0, 1e-9);
+		assertEquals(health.bolts.get("sink"), 0.6, 1e-9);
+		assertEquals(health.capacity, 0.6, 1e-9);
+	}
+
+	@Test
+	public void missingOutputBoltStatsLeaveThroughputUnknown() {
+		List<StatsSnapshot.ExecutorStat> execs = new ArrayList<StatsSnapshot.ExecutorStat>();
+		execs.add(executor("spout", 1, 50, 0.0, null));
+		execs.add(executor("split", 2, 50, 0.3, Collections.singletonMap("spout", 50.0)));
+		StatsSnapshot stats = new StatsSnapshot(1000, execs, new HashMap<String, Integer>(),
+				StatsSnapshot.DEFAULT_RATE_WINDOWS_MS);
+
+		AutoScaler.Health health = this.scaler.measure(chain(), stats.getComponents("t"));
+		assertTrue(Double.isNaN(health.throughput));
+		assertEquals(health.capacity, 0.3, 1e-9);
+	}
+
+	/**
+	 * spout -> split -> sink
+	 */
+	private static Map<String, Component> chain() {
+		Map<String, Component> retVal = new LinkedHashMap<String, Component>();
+		String[] ids = { "spout", "split", "sink" };
+		for (String id : ids) {
+			retVal.put(id, new Component(id));
+		}
+		for (int i = 1; i < ids.length; i++) {
+			retVal.get(ids[i - 1]).children.add(ids[i]);
+			retVal.get(ids[i]).parents.add(ids[i - 1]);
+		}
+		return retVal;
+	}
+
+	private static StatsSnapshot.ExecutorStat executor(String comp, int task, long emitted, double capacity,
+			Map<String, Double> inputRates) {
+		double[] rates = new double[StatsSnapshot.DEFAULT_RATE_WINDOWS_MS.length];
+		Arrays.fill(rates, emitted);
+		StatsSnapshot.LatencyStat latency = new StatsSnapshot.LatencyStat(1.0, 1.0, 0.0, 1000, 1000, 0, capacity);
+		return new StatsSnapshot.ExecutorStat("t", comp, "host-" + task, 6700, task, task, inputRates == null,
+				emitted, emitted, rates, rates, latency, inputRates);
+	}
+}
@@ -0,0 +1,82 @@
+package backtype.storm.scheduler.Elasticity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import backtype.storm.scheduler.Cluster;
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.SchedulerAssignmentImpl;
+import backtype.storm.scheduler.SupervisorDetails;
+import backtype.storm.scheduler.Topologies;
+import backtype.storm.scheduler.TopologyDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+/**
+ * Supervisors, topologies and assignments of a test cluster, turned into
+ * the Cluster and Topologies Nimbus would pass to a scheduler
+ */
+class ClusterFixture {
+
+	final Map<String, SupervisorDetails> supervisors = new LinkedHashMap<String, SupervisorDetails>();
+	final Map<String, TopologyDetails> topologies = new LinkedHashMap<String, TopologyDetails>();
+	// topology id -> executor -> slot
+	final Map<String, Map<ExecutorDetails, WorkerSlot>> assignments = new HashMap<String, Map<ExecutorDetails, WorkerSlot>>();
+
+	ClusterFixture supervisor(String id, int slots) {
+		List<Number> ports = new ArrayList<Number>();
+		for (int i = 0; i < slots; i++) {
+			ports.add(6700 + i);
+		}
+		this.supervisors.put(id, new SupervisorDetails(id, "host-" + id, null, ports));
+		return this;
+	}
+
+	/**
+	 * Add a topology with one single-task executor per entry of components,
+	 * numbered from 1
+	 */
+	TopologyDetails topology(String id, int numWorkers, String... components) {
+		Map<ExecutorDetails, String> execToComp = new HashMap<ExecutorDetails, String>();
+		for (int i = 0; i < components.length; i++) {
+			execToComp.put(new ExecutorDetails(i + 1, i + 1), components[i]);
+		}
+		TopologyDetails topo = new TopologyDetails(id, new HashMap<String, Object>(), null, numWorkers, execToComp);
+		this.topologies.put(id, topo);
+		return topo;
+	}
+
+	static ExecutorDetails exec(int task) {
+		return new ExecutorDetails(task, task);
+	}
+
+	static WorkerSlot slot(String supervisor, int index) {
+		return new WorkerSlot(supervisor, 6700 + index);
+	}
+
+	ClusterFixture assign(String topoId, WorkerSlot ws, ExecutorDetails... execs) {
+		Map<ExecutorDetails, WorkerSlot> assignment = this.assignments.get(topoId);
+		if (assignment == null) {
+			assignment = new HashMap<ExecutorDetails, WorkerSlot>();
+			this.assignments.put(topoId, assignment);
+		}
+		for (ExecutorDetails exec : execs) {
+			assignment.put(exec, ws);
+		}
+		return this;
+	}
+
+	Cluster cluster() {
+		Map<String, SchedulerAssignmentImpl> impls = new HashMap<String, SchedulerAssignmentImpl>();
+		for (Map.Entry<String, Map<ExecutorDetails, WorkerSlot>> entry : this.assignments.entrySet()) {
+			impls.put(entry.getKey(), new SchedulerAssignmentImpl(entry.getKey(), entry.getValue()));
+		}
+		return new Cluster(null, this.supervisors, impls);
+	}
+
+	Topologies topologies() {
+		return new Topologies(this.topologies);
+	}
+}
@@ -0,0 +1,174 @@
+package backtype.storm.scheduler.Elasticity;
+
+import static backtype.storm.scheduler.Elasticity.ClusterFixture.exec;
+import static backtype.storm.scheduler.Elasticity.ClusterFixture.slot;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.SupervisorDetails;
+import backtype.storm.scheduler.TopologyDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+public class GlobalStateTest {
+
+	@Test
+	public void migrateTaskKeepsTheIndexConsistent() {
+		ClusterFixture fixture = new ClusterFixture().supervisor("s0", 2).supervisor("s1", 2).supervisor("s2", 2);
+		TopologyDetails topo = fixture.topology("t", 2, "a", "a", "b", "b", "c", "c");
+		fixture.assign("t", slot("s0", 0), exec(1), exec(2), exec(3));
+		fixture.assign("t", slot("s1", 0), exec(4), exec(5), exec(6));
+		GlobalState gs = new GlobalState();
+		gs.storeSchedState(fixture.cluster(), fixture.topologies());
+		assertIndexed(gs, topo);
+		assertEquals(gs.getSlot(exec(4), topo), slot("s1", 0));
+
+		List<WorkerSlot> slots = new ArrayList<WorkerSlot>();
+		for (String sup : fixture.supervisors.keySet()) {
+			slots.add(slot(sup, 0));
+			slots.add(slot(sup, 1));
+		}
+		Random rnd = new Random(15);
+		for (int i = 0; i < 500; i++) {
+			ExecutorDetails exec = exec(1 + rnd.nextInt(6));
+			WorkerSlot ws = slots.get(rnd.nextInt(slots.size()));
+			gs.migrateTask(exec, ws, topo);
+			assertEquals(gs.getSlot(exec, topo), ws);
+			assertIndexed(gs, topo);
+		}
+	}
+
+	@Test
+	public void migrateTaskIgnoresUnknownExecutors() {
+		ClusterFixture fixture = new ClusterFixture().supervisor("s0", 2);
+		TopologyDetails topo = fixture.topology("t", 1, "a", "b");
+		fixture.assign("t", slot("s0", 0), exec(1), exec(2));
+		GlobalState gs = new GlobalState();
+		gs.storeSchedState(fixture.cluster(), fixture.topologies());
+
+		gs.migrateTask(exec(9), slot("s0", 1), topo);
+		assertFalse(gs.execExist(exec(9), topo));
+		assertNull(gs.getSlot(exec(9), topo));
+		Set<ExecutorDetails> target = gs.schedState.get("t").get(slot("s0", 1));
+		assertTrue(target == null || target.isEmpty());
+		assertIndexed(gs, topo);
+	}
+
+	@Test
+	public void emptyNodesMatchABruteForceScan() {
+		ClusterFixture fixture = new ClusterFixture();
+		for (int i = 0; i < 8; i++) {
+			fixture.supervisor("s" + i, 2);
+		}
+		List<TopologyDetails> topos = new ArrayList<TopologyDetails>();
+		for (int t = 0; t < 3; t++) {
+			topos.add(fixture.topology("t" + t, 2, "c", "c", "c", "c", "c", "c"));
+		}
+		GlobalState gs = new GlobalState();
+		Random rnd = new Random(16);
+		for (int round = 0; round < 300; round++) {
+			TopologyDetails topo = topos.get(rnd.nextInt(topos.size()));
+			int op = rnd.nextInt(4);
+			if (op == 0) {
+				// reassign the topology to two random free slots
+				fixture.assignments.remove(topo.getId());
+				List<WorkerSlot> free = freeSlots(fixture);
+				Collections.shuffle(free, rnd);
+				if (free.size() >= 2) {
+					fixture.assign(topo.getId(), free.get(0), exec(1), exec(2), exec(3));
+					fixture.assign(topo.getId(), free.get(1), exec(4), exec(5), exec(6));
+				}
+				gs.storeSchedState(fixture.cluster(), fixture.topologies());
+			} else if (op == 1 && gs.schedState.containsKey(topo.getId()) == true) {
+				// move random executors to a random slot
+				List<WorkerSlot> all = allSlots(fixture);
+				WorkerSlot ws = all.get(rnd.nextInt(all.size()));
+				for (ExecutorDetails exec : topo.getExecutors()) {
+					if (rnd.nextBoolean() == true) {
+						gs.migrateTask(exec, ws, topo);
+					}
+				}
+			} else if (op == 2) {
+				fixture.assignments.remove(topo.getId());
+				gs.storeSchedState(fixture.cluster(), fixture.topologies());
+			} else if (rnd.nextInt(10) == 0) {
+				fixture.supervisor("s" + rnd.nextInt(10), 2);
+				gs.storeSchedState(fixture.cluster(), fixture.topologies());
+			}
+			assertEquals(supervisorIds(gs.getNewNode()), emptyNodes(gs), "round " + round);
+		}
+	}
+
+	/**
+	 * Every executor of topo is in exactly one slot of schedState, the one
+	 * the index returns
+	 */
+	static void assertIndexed(GlobalState gs, TopologyDetails topo) {
+		Map<WorkerSlot, Set<ExecutorDetails>> sched = gs.schedState.get(topo.getId());
+		int placed = 0;
+		for (Map.Entry<WorkerSlot, Set<ExecutorDetails>> entry : sched.entrySet()) {
+			for (ExecutorDetails exec : entry.getValue()) {
+				assertEquals(gs.getSlot(exec, topo), entry.getKey(), "slot of " + exec);
+				placed++;
+			}
+		}
+		assertEquals(placed, topo.getExecutors().size());
+		for (ExecutorDetails exec : topo.getExecutors()) {
+			assertTrue(gs.execExist(exec, topo));
+		}
+	}
+
+	/**
+	 * @return supervisors without a slot holding executors in schedState,
+	 *         found by scanning every slot
+	 */
+	private static Set<String> emptyNodes(GlobalState gs) {
+		Set<String> retVal = new HashSet<String>(gs.nodes.keySet());
+		for (Map<WorkerSlot, Set<ExecutorDetails>> sched : gs.schedState.values()) {
+			for (Map.Entry<WorkerSlot, Set<ExecutorDetails>> entry : sched.entrySet()) {
+				if (entry.getValue().isEmpty() == false) {
+					retVal.remove(entry.getKey().getNodeId());
+				}
+			}
+		}
+		return retVal;
+	}
+
+	private static Set<String> supervisorIds(List<Node> nodes) {
+		Set<String> retVal = new HashSet<String>();
+		for (Node n : nodes) {
+			retVal.add(n.supervisor_id);
+		}
+		return retVal;
+	}
+
+	private static List<WorkerSlot> allSlots(ClusterFixture fixture) {
+		List<WorkerSlot> retVal = new ArrayList<WorkerSlot>();
+		for (SupervisorDetails sup : fixture.supervisors.values()) {
+			for (Integer port : sup.getAllPorts()) {
+				retVal.add(new WorkerSlot(sup.getId(), port));
+			}
+		}
+		return retVal;
+	}
+
+	private static List<WorkerSlot> freeSlots(ClusterFixture fixture) {
+		List<WorkerSlot> retVal = allSlots(fixture);
+		for (Map<ExecutorDetails, WorkerSlot> assignment : fixture.assignments.values()) {
+			retVal.removeAll(assignment.values());
+		}
+		return retVal;
+	}
+}
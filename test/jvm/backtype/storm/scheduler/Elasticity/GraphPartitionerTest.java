@@ -0,0 +1,121 @@
+package backtype.storm.scheduler.Elasticity;
+
+import static backtype.storm.scheduler.Elasticity.ClusterFixture.exec;
+import static backtype.storm.scheduler.Elasticity.ClusterFixture.slot;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import backtype.storm.scheduler.ExecutorDetails;
+import backtype.storm.scheduler.WorkerSlot;
+
+public class GraphPartitionerTest {
+
+	private static final double IMBALANCE = 0.1;
+
+	@Test
+	public void connectedExecutorsShareASlot() {
+		// a -> b and c -> d, one executor each
+		Map<String, Component> components = new LinkedHashMap<String, Component>();
+		link(components, "a", "b", 1);
+		link(components, "c", "d", 3);
+		TrafficGraph graph = TrafficGraph.build("t", components, StatsSnapshot.EMPTY);
+		List<ExecutorDetails> execs = Arrays.asList(exec(1), exec(2), exec(3), exec(4));
+
+		Map<WorkerSlot, List<ExecutorDetails>> placement = GraphPartitioner.place(execs, graph,
+				unitLoads(execs), Arrays.asList(slot("s0", 0), slot("s1", 0)), null, IMBALANCE);
+
+		assertPlacedOnce(placement, execs);
+		assertEquals(placement.size(), 2);
+		for (List<ExecutorDetails> placed : placement.values()) {
+			HashSet<ExecutorDetails> together = new HashSet<ExecutorDetails>(placed);
+			assertTrue(together.equals(new HashSet<ExecutorDetails>(Arrays.asList(exec(1), exec(2))))
+					|| together.equals(new HashSet<ExecutorDetails>(Arrays.asList(exec(3), exec(4)))),
+					"split pair: " + placed);
+		}
+	}
+
+	@Test
+	public void nodeSharesFollowTheSelectedSlots() {
+		// s0 had more free slots than were taken on it, only one slot per
+		// node is used, so both nodes must be able to take half the load
+		List<ExecutorDetails> execs = new ArrayList<ExecutorDetails>();
+		for (int i = 1; i <= 10; i++) {
+			execs.add(exec(i));
+		}
+		TrafficGraph graph = TrafficGraph.build("t", null, StatsSnapshot.EMPTY);
+		List<WorkerSlot> slots = Arrays.asList(slot("s0", 0), slot("s1", 0));
+		Map<String, Double> slotWeights = new HashMap<String, Double>();
+		slotWeights.put("s0", 1.0);
+		slotWeights.put("s1", 1.0);
+
+		Map<WorkerSlot, List<ExecutorDetails>> placement = GraphPartitioner.place(execs, graph,
+				unitLoads(execs), slots, slotWeights, IMBALANCE);
+
+		assertPlacedOnce(placement, execs);
+		double limit = (1.0 + IMBALANCE) * execs.size() / slots.size();
+		for (WorkerSlot ws : slots) {
+			List<ExecutorDetails> placed = placement.get(ws);
+			assertTrue(placed != null && placed.size() <= limit, ws + " holds " + placed);
+		}
+	}
+
+	@Test
+	public void slotsOfOneNodeShareItsWeight() {
+		// s0 counts twice as much per slot and has two of the three slots
+		List<ExecutorDetails> execs = new ArrayList<ExecutorDetails>();
+		for (int i = 1; i <= 12; i++) {
+			execs.add(exec(i));
+		}
+		TrafficGraph graph = TrafficGraph.build("t", null, StatsSnapshot.EMPTY);
+		List<WorkerSlot> slots = Arrays.asList(slot("s0", 0), slot("s1", 0), slot("s0", 1));
+		Map<String, Double> slotWeights = new HashMap<String, Double>();
+		slotWeights.put("s0", 2.0);
+		slotWeights.put("s1", 1.0);
+
+		Map<WorkerSlot, List<ExecutorDetails>> placement = GraphPartitioner.place(execs, graph,
+				unitLoads(execs), slots, slotWeights, IMBALANCE);
+
+		assertPlacedOnce(placement, execs);
+		int onS1 = placement.containsKey(slot("s1", 0)) ? placement.get(slot("s1", 0)).size() : 0;
+		// s1 has a fifth of the capacity: at most 1.1 * 12 / 5
+		assertTrue(onS1 <= (1.0 + IMBALANCE) * execs.size() / 5, "s1 holds " + onS1);
+	}
+
+	private static void link(Map<String, Component> components, String parent, String child, int firstTask) {
+		Component p = new Component(parent);
+		Component c = new Component(child);
+		p.execs.add(exec(firstTask));
+		c.execs.add(exec(firstTask + 1));
+		p.children.add(child);
+		c.parents.add(parent);
+		components.put(parent, p);
+		components.put(child, c);
+	}
+
+	private static Map<ExecutorDetails, Double> unitLoads(List<ExecutorDetails> execs) {
+		Map<ExecutorDetails, Double> retVal = new HashMap<ExecutorDetails, Double>();
+		for (ExecutorDetails exec : execs) {
+			retVal.put(exec, 1.0);
+		}
+		return retVal;
+	}
+
+	private static void assertPlacedOnce(Map<WorkerSlot, List<ExecutorDetails>> placement, List<ExecutorDetails> execs) {
+		List<ExecutorDetails> placed = new ArrayList<ExecutorDetails>();
+		for (List<ExecutorDetails> slotExecs : placement.values()) {
+			placed.addAll(slotExecs);
+		}
+		assertEquals(placed.size(), execs.size());
+		assertEquals(new HashSet<ExecutorDetails>(placed), new HashSet<ExecutorDetails>(execs));
+	}
+}
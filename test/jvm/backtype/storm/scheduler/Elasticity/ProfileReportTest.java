@@ -0,0 +1,36 @@
+package backtype.storm.scheduler.Elasticity;
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+public class ProfileReportTest {
+
+	@Test
+	public void frameStartsWithItsLength() throws Exception {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		new ProfileReport("host-1", 1234)
+				.add(ProfileReport.CPU, 12.5)
+				.add(ProfileReport.CORES, 8)
+				.encode(buf);
+		buf.flip();
+
+		int length = buf.getInt(0);
+		assertEquals(length, buf.remaining() - ProfileReport.HEADER_BYTES);
+
+		ProfileReport report = ProfileReport.decode(ByteBuffer.wrap(buf.array(),
+				ProfileReport.HEADER_BYTES, length));
+		assertEquals(report.host, "host-1");
+		assertEquals(report.get(ProfileReport.CPU, Double.NaN), 12.5, 0.0);
+		assertEquals(report.get(ProfileReport.CORES, Double.NaN), 8.0, 0.0);
+	}
+
+	@Test
+	public void agentIntervalStaysBelowTheReadTimeout() {
+		NodeAgent agent = new NodeAgent("localhost", 6789, 60000, "host-1");
+		assertEquals(agent.getIntervalMs(), NodeAgent.MAX_INTERVAL_MS);
+		assertEquals(new NodeAgent("localhost", 6789, 1000, "host-1").getIntervalMs(), 1000);
+	}
+}
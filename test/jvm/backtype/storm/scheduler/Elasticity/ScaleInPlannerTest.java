@@ -0,0 +1,53 @@
+package backtype.storm.scheduler.Elasticity;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import backtype.storm.scheduler.Cluster;
+
+public class ScaleInPlannerTest {
+
+	@Test
+	public void newNodesWaitTheIdleWindowBeforeCountingAsIdle() {
+		ClusterFixture fixture = new ClusterFixture().supervisor("in-s0", 2).supervisor("in-s1", 2);
+		Cluster cluster = fixture.cluster();
+		Node old = idleNode("in-s0", cluster);
+		Node added = idleNode("in-s1", cluster);
+		ScaleInPlanner planner = new ScaleInPlanner(20, 1000, 1000, 70, 1, 60000);
+
+		// nodes of the first round are old, they only wait for the window
+		assertEquals(ids(planner.update(Arrays.asList(old), StatsSnapshot.EMPTY, 0)), Arrays.asList());
+		assertEquals(ids(planner.update(Arrays.asList(old, added), StatsSnapshot.EMPTY, 1000)), Arrays.asList("in-s0"));
+		// the node added at 1000 is up for the window at 2000, idle at 3000
+		assertEquals(ids(planner.update(Arrays.asList(old, added), StatsSnapshot.EMPTY, 2000)), Arrays.asList("in-s0"));
+		assertEquals(ids(planner.update(Arrays.asList(old, added), StatsSnapshot.EMPTY, 2999)), Arrays.asList("in-s0"));
+		assertEquals(ids(planner.update(Arrays.asList(old, added), StatsSnapshot.EMPTY, 3000)).size(), 2);
+	}
+
+	/**
+	 * A node whose agent reports 5% cpu
+	 */
+	private static Node idleNode(String supId, Cluster cluster) {
+		Node retVal = new Node(supId, cluster);
+		retVal.profile = new NodeProfile(supId, retVal.hostname);
+		retVal.profile.agentKey = retVal.hostname;
+		double[] values = new double[NodeMetricsStore.NUM_METRICS];
+		Arrays.fill(values, Double.NaN);
+		values[ProfileReport.CPU] = 5.0;
+		NodeMetricsStore.getInstance().record(retVal.hostname, System.currentTimeMillis(), values);
+		return retVal;
+	}
+
+	private static List<String> ids(List<Node> nodes) {
+		List<String> retVal = new ArrayList<String>();
+		for (Node n : nodes) {
+			retVal.add(n.supervisor_id);
+		}
+		return retVal;
+	}
+}